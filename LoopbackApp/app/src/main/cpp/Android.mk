@@ -7,6 +7,7 @@ LOCAL_MODULE_TAGS := optional
 LOCAL_SRC_FILES   := \
     sles.cpp \
     byte_buffer.c \
+    quantiles.c \
     jni_native.c \
     loopback.c \
     audio_utils/atomic.c \
@@ -19,20 +19,21 @@
 #include <stdatomic.h>
 #include <string.h>
 
-typedef _Atomic int32_t writer_pos_t;
+// A 64 bit position never wraps around, even in multi-day tests at high sampling rates.
+typedef _Atomic int64_t writer_pos_t;
 
 ssize_t byteBuffer_write(byte_buffer_t byteBuffer, size_t byteBufferSize,
         const char *srcBuffer, size_t frameCount, int channels) {
     // bytebufferSize is in bytes
     const size_t dataSectionSize = byteBufferSize - sizeof(writer_pos_t);
     writer_pos_t *rear_ptr = (writer_pos_t*)(byteBuffer + dataSectionSize);
-    writer_pos_t rear = *rear_ptr;
-    // rear should not exceed 2^31 - 1, or else overflow will happen
+    // only this function writes rear, so it doesn't need any ordering to read it
+    int64_t rear = atomic_load_explicit(rear_ptr, memory_order_relaxed);
 
     size_t frameSize = channels * sizeof(short); // only one channel
     int32_t maxLengthInShort = dataSectionSize / frameSize;
     // mask the upper bits to get the correct position in the pipe
-    writer_pos_t tempRear = rear & (maxLengthInShort - 1);
+    int32_t tempRear = (int32_t) (rear & (maxLengthInShort - 1));
     size_t part1 = maxLengthInShort - tempRear;
 
     if (part1 > frameCount) {
@@ -50,9 +51,13 @@ ssize_t byteBuffer_write(byte_buffer_t byteBuffer, size_t byteBufferSize,
         }
     }
 
-    // increase value of rear using the strongest memory ordering
-    // (since it's being read by Java we can't control the ordering
-    // used by the other side).
-    atomic_store(rear_ptr, rear + frameCount);
+    // publish the data written above, pairs with the acquire in byteBuffer_readRear()
+    atomic_store_explicit(rear_ptr, rear + frameCount, memory_order_release);
     return frameCount;
 }
+
+int64_t byteBuffer_readRear(byte_buffer_t byteBuffer, size_t byteBufferSize) {
+    const size_t dataSectionSize = byteBufferSize - sizeof(writer_pos_t);
+    writer_pos_t *rear_ptr = (writer_pos_t*)(byteBuffer + dataSectionSize);
+    return atomic_load_explicit(rear_ptr, memory_order_acquire);
+}
@@ -17,6 +17,7 @@
 #ifndef _Included_org_drrickorang_loopback_byte_buffer
 #define _Included_org_drrickorang_loopback_byte_buffer
 
+#include <stdint.h>
 #include <sys/types.h>
 
 // Introduce a dedicated type because the destination buffer
@@ -33,6 +34,10 @@ extern "C" {
 ssize_t byteBuffer_write(byte_buffer_t byteBuffer, size_t byteBufferSize,
         const char *srcBuffer, size_t frameCount, int channels);
 
+// Returns the writer's position in frames, with acquire ordering so that the data
+// written before it was published by byteBuffer_write() is visible to the caller.
+int64_t byteBuffer_readRear(byte_buffer_t byteBuffer, size_t byteBufferSize);
+
 #ifdef __cplusplus
 }
 #endif
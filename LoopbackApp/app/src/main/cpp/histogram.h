@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _Included_org_drrickorang_loopback_histogram
+#define _Included_org_drrickorang_loopback_histogram
+
+#include <math.h>
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Log-linear histogram of durations in microseconds, like an HDR histogram. Durations below
+// 2 * HISTOGRAM_SUB_BUCKETS us have 1 us buckets, after that every power of two is split into
+// HISTOGRAM_SUB_BUCKETS linear buckets. The last bucket counts everything from
+// HISTOGRAM_MAX_VALUE_US. The Java side reads the counts with LogLinearHistogram.java.
+enum HISTOGRAM_CONSTANTS_ENUM {
+    // Must match constants in LogLinearHistogram.java
+    HISTOGRAM_SUB_BUCKET_BITS = 5,
+    HISTOGRAM_SUB_BUCKETS = 1 << HISTOGRAM_SUB_BUCKET_BITS,
+    HISTOGRAM_MAX_SHIFT = 15,
+    HISTOGRAM_MAX_VALUE_US = (2 * HISTOGRAM_SUB_BUCKETS) << HISTOGRAM_MAX_SHIFT,
+    HISTOGRAM_BUCKETS = (HISTOGRAM_MAX_SHIFT + 2) * HISTOGRAM_SUB_BUCKETS + 1
+};
+
+// Returns the bucket counting valueUs, which must be >= 0.
+static inline int histogram_getBucket(int64_t valueUs) {
+    if (valueUs >= HISTOGRAM_MAX_VALUE_US) {
+        return HISTOGRAM_BUCKETS - 1;
+    }
+    int shift = 0;
+    if (valueUs >= 2 * HISTOGRAM_SUB_BUCKETS) {
+        // index of the highest bit set, valueUs fits in 32 bits here
+        shift = 31 - __builtin_clz((uint32_t) valueUs) - HISTOGRAM_SUB_BUCKET_BITS;
+    }
+    return (shift << HISTOGRAM_SUB_BUCKET_BITS) + (int) (valueUs >> shift);
+}
+
+// Counts one duration in histogram, which has HISTOGRAM_BUCKETS elements.
+// Negative durations are ignored.
+static inline void histogram_record(int *histogram, int64_t durationNs) {
+    if (durationNs >= 0) {
+        histogram[histogram_getBucket(durationNs / 1000)]++;
+    }
+}
+
+// Returns the middle of bucket in us, used as the value of everything it counts.
+static inline double histogram_getBucketMidUs(int bucket) {
+    if (bucket >= HISTOGRAM_BUCKETS - 1) {
+        return HISTOGRAM_MAX_VALUE_US;
+    }
+    int shift = (bucket >> HISTOGRAM_SUB_BUCKET_BITS) - 1;
+    if (shift < 0) {
+        shift = 0;
+    }
+    int64_t lowUs = (int64_t) (bucket - (shift << HISTOGRAM_SUB_BUCKET_BITS)) << shift;
+    return lowUs + (1 << shift) / 2.0;
+}
+
+// Returns the middle of the bucket holding the fraction quantile in us (0.99 for p99), or 0 if
+// the histogram is empty. Same as LogLinearHistogram.getPercentileUs().
+static inline double histogram_getPercentileUs(const int *histogram, double fraction) {
+    int64_t total = 0;
+    for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+        total += histogram[i];
+    }
+    if (total == 0) {
+        return 0;
+    }
+    int64_t rank = (int64_t) ceil(fraction * total);
+    if (rank < 1) {
+        rank = 1;
+    }
+    int64_t cumulative = 0;
+    for (int i = 0; i < HISTOGRAM_BUCKETS - 1; i++) {
+        cumulative += histogram[i];
+        if (cumulative >= rank) {
+            return histogram_getBucketMidUs(i);
+        }
+    }
+    return histogram_getBucketMidUs(HISTOGRAM_BUCKETS - 1);
+}
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_histogram
@@ -16,10 +16,14 @@
 
 #include "jni_native.h"
 
+#include <math.h>
 #include <stdlib.h>
 
 #include <android/log.h>
 
+#include "byte_buffer.h"
+#include "histogram.h"
+#include "quantiles.h"
 #include "loopback.h"
 
 #define LOG_TAG "jni_native"
@@ -58,7 +62,8 @@ JNIEXPORT jlong JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeIn
   (JNIEnv *env, jobject obj __unused, jint threadType, jint samplingRate, jint frameCount,
    jint micSource, jint performanceMode,
    jint testType, jdouble frequency1, jobject byteBuffer, jshortArray loopbackTone,
-   jint maxRecordedLateCallbacks, jint ignoreFirstFrames) {
+   jint maxRecordedLateCallbacks, jint ignoreFirstFrames, jint impulseCount,
+   jint impulseSpacingFrames) {
 
     int engine = nativeEngineFromThreadType(threadType);
     if (engine == -1) return 0;
@@ -80,7 +85,8 @@ JNIEXPORT jlong JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeIn
     if (sEngines[engine].init(&pContext, samplingRate, frameCount, micSource,
                  performanceMode,
                  testType, frequency1, byteBufferPtr, byteBufferLength,
-                 loopbackToneArray, maxRecordedLateCallbacks, ignoreFirstFrames) != STATUS_FAIL) {
+                 loopbackToneArray, maxRecordedLateCallbacks, ignoreFirstFrames,
+                 impulseCount, impulseSpacingFrames) != STATUS_FAIL) {
         pInstance->context = pContext;
         pInstance->methods = &sEngines[engine];
         return (long) pInstance;
@@ -128,9 +134,9 @@ JNIEXPORT jintArray JNICALL
     int* recorderBufferPeriod = pInstance->methods->getRecorderBufferPeriod(
             pInstance->context);
 
-    // get the length = RANGE
-    jintArray result = (*env)->NewIntArray(env, RANGE);
-    (*env)->SetIntArrayRegion(env, result, 0, RANGE, recorderBufferPeriod);
+    // the counts of a log-linear histogram, see histogram.h
+    jintArray result = (*env)->NewIntArray(env, HISTOGRAM_BUCKETS);
+    (*env)->SetIntArrayRegion(env, result, 0, HISTOGRAM_BUCKETS, recorderBufferPeriod);
 
     return result;
 }
@@ -158,14 +164,33 @@ JNIEXPORT jdouble JNICALL
 }
 
 
+// Returns the estimates of the quantiles in StreamingQuantiles.QUANTILES, in ms.
+static jdoubleArray getQuantiles(JNIEnv *env, native_engine_instance_t *pInstance,
+        void (*getBufferPeriodQuantiles)(void *pCtx, double *pQuantilesMs)) {
+    double quantiles[QUANTILES_COUNT];
+    getBufferPeriodQuantiles(pInstance->context, quantiles);
+    jdoubleArray result = (*env)->NewDoubleArray(env, QUANTILES_COUNT);
+    (*env)->SetDoubleArrayRegion(env, result, 0, QUANTILES_COUNT, quantiles);
+    return result;
+}
+
+
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodQuantiles
+  (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return getQuantiles(env, pInstance, pInstance->methods->getRecorderBufferPeriodQuantiles);
+}
+
+
 JNIEXPORT jintArray
 JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriod
   (JNIEnv *env __unused, jobject obj __unused, jlong handle) {
     native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
     int* playerBufferPeriod = pInstance->methods->getPlayerBufferPeriod(pInstance->context);
 
-    jintArray result = (*env)->NewIntArray(env, RANGE);
-    (*env)->SetIntArrayRegion(env, result, 0, RANGE, playerBufferPeriod);
+    jintArray result = (*env)->NewIntArray(env, HISTOGRAM_BUCKETS);
+    (*env)->SetIntArrayRegion(env, result, 0, HISTOGRAM_BUCKETS, playerBufferPeriod);
 
     return result;
 }
@@ -192,6 +217,38 @@ Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerVarianceBufferPer
 }
 
 
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodQuantiles
+  (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return getQuantiles(env, pInstance, pInstance->methods->getPlayerBufferPeriodQuantiles);
+}
+
+
+// Returns a CallbackWindowStats wrapping copies of the windows, or NULL if they weren't collected.
+static jobject getCallbackWindows(JNIEnv *env, callbackWindows *windows) {
+    if (windows->capacity == 0) {
+        return NULL;
+    }
+    int capacity = windows->capacity;
+
+    jshortArray counts = (*env)->NewShortArray(env, capacity);
+    (*env)->SetShortArrayRegion(env, counts, 0, capacity, windows->counts);
+    jshortArray lateCounts = (*env)->NewShortArray(env, capacity);
+    (*env)->SetShortArrayRegion(env, lateCounts, 0, capacity, windows->lateCounts);
+    jintArray minUs = (*env)->NewIntArray(env, capacity);
+    (*env)->SetIntArrayRegion(env, minUs, 0, capacity, windows->minUs);
+    jintArray maxUs = (*env)->NewIntArray(env, capacity);
+    (*env)->SetIntArrayRegion(env, maxUs, 0, capacity, windows->maxUs);
+    jintArray p99Us = (*env)->NewIntArray(env, capacity);
+    (*env)->SetIntArrayRegion(env, p99Us, 0, capacity, windows->p99Us);
+
+    jclass cls = (*env)->FindClass(env, "org/drrickorang/loopback/CallbackWindowStats");
+    jmethodID methodID = (*env)->GetMethodID(env, cls, "<init>", "(II[S[S[I[I[I)V");
+    return (*env)->NewObject(env, cls, methodID, windows->windowMs, windows->windowCount,
+                             counts, lateCounts, minUs, maxUs, p99Us);
+}
+
 jobject getCallbackTimes(JNIEnv *env, callbackTimeStamps *callbacks, short expectedBufferPeriod){
     jintArray timeStamps = (*env)->NewIntArray(env, callbacks->index);
     (*env)->SetIntArrayRegion(env, timeStamps, 0, callbacks->index, callbacks->timeStampsMs);
@@ -201,9 +258,11 @@ jobject getCallbackTimes(JNIEnv *env, callbackTimeStamps *callbacks, short expec
                                 callbacks->callbackDurations);
 
     jclass cls = (*env)->FindClass(env, "org/drrickorang/loopback/BufferCallbackTimes");
-    jmethodID methodID = (*env)->GetMethodID(env, cls, "<init>", "([I[SZS)V");
+    jmethodID methodID = (*env)->GetMethodID(env, cls, "<init>",
+            "([I[SZSLorg/drrickorang/loopback/CallbackWindowStats;)V");
     jobject callbackTimes=(*env)->NewObject(env,cls, methodID, timeStamps, callbackLengths,
-                                            callbacks->exceededCapacity, expectedBufferPeriod);
+                                            callbacks->exceededCapacity, expectedBufferPeriod,
+                                            getCallbackWindows(env, &callbacks->windows));
     return callbackTimes;
 }
 
@@ -227,9 +286,51 @@ JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderCallbac
     return getCallbackTimes(env, pTSs, expectedBufferPeriod);
 }
 
+// Returns a BufferPeriodSnapshot, or NULL if the engine has no consistent copy to give.
+static jobject getBufferSnapshot(JNIEnv *env, native_engine_instance_t *pInstance,
+        bool (*getSnapshot)(void *pCtx, int *pHistogram, running_stats_t *pStats,
+                int *pExpectedBufferPeriod)) {
+    int histogram[HISTOGRAM_BUCKETS];
+    running_stats_t stats;
+    int expectedBufferPeriod;
+    if (!getSnapshot(pInstance->context, histogram, &stats, &expectedBufferPeriod)) {
+        return NULL;
+    }
+    jintArray bufferPeriod = (*env)->NewIntArray(env, HISTOGRAM_BUCKETS);
+    (*env)->SetIntArrayRegion(env, bufferPeriod, 0, HISTOGRAM_BUCKETS, histogram);
+
+    jclass cls = (*env)->FindClass(env, "org/drrickorang/loopback/BufferPeriodSnapshot");
+    jmethodID methodID = (*env)->GetMethodID(env, cls, "<init>", "([IJDDDD)V");
+    return (*env)->NewObject(env, cls, methodID, bufferPeriod, (jlong) stats.count, stats.mean,
+            sqrt(running_stats_getMeanSquareDeviation(&stats, expectedBufferPeriod)),
+            running_stats_getSkewness(&stats), stats.max);
+}
+
+JNIEXPORT jobject
+JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodSnapshot
+        (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return getBufferSnapshot(env, pInstance, pInstance->methods->getRecorderBufferSnapshot);
+}
+
+JNIEXPORT jobject
+JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodSnapshot
+        (JNIEnv *env, jobject obj __unused, jlong handle) {
+    native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
+    return getBufferSnapshot(env, pInstance, pInstance->methods->getPlayerBufferSnapshot);
+}
+
 JNIEXPORT jint
 JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeGetCaptureRank
         (JNIEnv *env __unused, jobject obj __unused, jlong handle) {
     native_engine_instance_t *pInstance = (native_engine_instance_t*) handle;
     return pInstance->methods->getCaptureRank(pInstance->context);
 }
+
+JNIEXPORT jlong
+JNICALL Java_org_drrickorang_loopback_PipeByteBuffer_nativeGetRear
+        (JNIEnv *env, jclass clazz __unused, jobject byteBuffer) {
+    char *byteBufferPtr = (*env)->GetDirectBufferAddress(env, byteBuffer);
+    jlong byteBufferLength = (*env)->GetDirectBufferCapacity(env, byteBuffer);
+    return byteBuffer_readRear(byteBufferPtr, (size_t) byteBufferLength);
+}
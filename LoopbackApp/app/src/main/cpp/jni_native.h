@@ -31,7 +31,8 @@ Java_org_drrickorang_loopback_NativeAudioThread_nativeComputeDefaultSettings
 
 JNIEXPORT jlong JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeInit
   (JNIEnv *, jobject, jint, jint, jint, jint, jint, jint, jdouble, jobject byteBuffer,
-   jshortArray loopbackTone, jint maxRecordedLateCallbacks, jint ignoreFirstFrames);
+   jshortArray loopbackTone, jint maxRecordedLateCallbacks, jint ignoreFirstFrames,
+   jint impulseCount, jint impulseSpacingFrames);
 
 JNIEXPORT jint JNICALL Java_org_drrickorang_loopback_NativeAudioThread_nativeProcessNext
   (JNIEnv *, jobject, jlong, jdoubleArray, jlong);
@@ -51,6 +52,10 @@ JNIEXPORT jdouble JNICALL
         Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderVarianceBufferPeriod
   (JNIEnv *, jobject, jlong);
 
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodQuantiles
+  (JNIEnv *, jobject, jlong);
+
 JNIEXPORT jintArray JNICALL
         Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriod
   (JNIEnv *, jobject, jlong);
@@ -63,10 +68,26 @@ JNIEXPORT jdouble JNICALL
         Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerVarianceBufferPeriod
   (JNIEnv *, jobject, jlong);
 
+JNIEXPORT jdoubleArray JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodQuantiles
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetRecorderBufferPeriodSnapshot
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT jobject JNICALL
+        Java_org_drrickorang_loopback_NativeAudioThread_nativeGetPlayerBufferPeriodSnapshot
+  (JNIEnv *, jobject, jlong);
+
 JNIEXPORT jint JNICALL
         Java_org_drrickorang_loopback_NativeAudioThread_nativeGetCaptureRank
   (JNIEnv *, jobject, jlong);
 
+JNIEXPORT jlong JNICALL
+        Java_org_drrickorang_loopback_PipeByteBuffer_nativeGetRear
+  (JNIEnv *, jclass, jobject byteBuffer);
+
 #ifdef __cplusplus
 }
 #endif
@@ -14,10 +14,13 @@
  * limitations under the License.
  */
 
+#include <algorithm>
 #include <memory>
 
 #include <android/log.h>
 
+#include "histogram.h"
+#include "quantiles.h"
 #include "lb2/logging.h"
 #include "lb2/loopback2.h"
 #include "lb2/loopback_test.h"
@@ -44,14 +47,15 @@ int lb2ComputeDefaultSettings(int performanceMode, int *samplingRate,
 int lb2Init(void **ppLbData, int samplingRate, int frameCount, int /*micSource*/,
         int performanceMode, int testType, double frequency1, char* byteBufferPtr,
         int byteBufferLength, short* loopbackTone, int /*maxRecordedLateCallbacks*/,
-        int ignoreFirstFrames) {
+        int ignoreFirstFrames, int impulseCount, int impulseSpacingFrames) {
     *ppLbData = nullptr;
     std::unique_ptr<LbData> lbData(new LbData());  // will auto-release in case if init fails.
     switch (testType) {
         case TEST_TYPE_LATENCY:
             lbData->testContext.reset(new LatencyTestContext(
                             static_cast<PerformanceMode>(performanceMode), frameCount,
-                            CHANNEL_COUNT, samplingRate, ignoreFirstFrames, loopbackTone));
+                            CHANNEL_COUNT, samplingRate, ignoreFirstFrames, loopbackTone,
+                            impulseCount, impulseSpacingFrames));
             break;
         case TEST_TYPE_BUFFER_PERIOD: {
             // TODO: Get rid of ByteBuffer.
@@ -107,7 +111,7 @@ int lb2Destroy(void **ppCtx) {
 }
 
 int* lb2GetRecorderBufferPeriod(void*) {
-    static int *bufferPeriod = new int[1002]();
+    static int *bufferPeriod = new int[HISTOGRAM_BUCKETS]();
     return bufferPeriod;
 }
 
@@ -119,8 +123,12 @@ int64_t lb2GetRecorderVarianceBufferPeriod(void*) {
     return 0;
 }
 
+void lb2GetRecorderBufferPeriodQuantiles(void*, double *pQuantilesMs) {
+    std::fill(pQuantilesMs, pQuantilesMs + QUANTILES_COUNT, 0.0);
+}
+
 int* lb2GetPlayerBufferPeriod(void*) {
-    static int *bufferPeriod = new int[1002]();
+    static int *bufferPeriod = new int[HISTOGRAM_BUCKETS]();
     return bufferPeriod;
 }
 
@@ -132,6 +140,10 @@ int64_t lb2GetPlayerVarianceBufferPeriod(void*) {
     return 0;
 }
 
+void lb2GetPlayerBufferPeriodQuantiles(void*, double *pQuantilesMs) {
+    std::fill(pQuantilesMs, pQuantilesMs + QUANTILES_COUNT, 0.0);
+}
+
 int lb2GetCaptureRank(void*) {
     return 0;
 }
@@ -161,3 +173,11 @@ int lb2GetRecorderTimeStampsAndExpectedBufferPeriod(void*, callbackTimeStamps **
     *ppTSs = &tss;
     return 0;
 }
+
+bool lb2GetRecorderBufferSnapshot(void*, int*, running_stats_t*, int*) {
+    return false;
+}
+
+bool lb2GetPlayerBufferSnapshot(void*, int*, running_stats_t*, int*) {
+    return false;
+}
@@ -28,18 +28,25 @@ int lb2ComputeDefaultSettings(int performanceMode, int *samplingRate,
 int lb2Init(void ** ppCtx, int samplingRate, int frameCount, int micSource,
              int performanceMode,
              int testType, double frequency1, char* byteBufferPtr, int byteBufferLength,
-             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
+             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames,
+             int impulseCount, int impulseSpacingFrames);
 int lb2Destroy(void ** ppCtx);
 int lb2ProcessNext(void *pCtx, double *pSamples, long maxSamples);
 int* lb2GetRecorderBufferPeriod(void *pCtx);
 int lb2GetRecorderMaxBufferPeriod(void *pCtx);
 int64_t lb2GetRecorderVarianceBufferPeriod(void *pCtx);
+void lb2GetRecorderBufferPeriodQuantiles(void *pCtx, double *pQuantilesMs);
 int* lb2GetPlayerBufferPeriod(void *pCtx);
 int lb2GetPlayerMaxBufferPeriod(void *pCtx);
 int64_t lb2GetPlayerVarianceBufferPeriod(void *pCtx);
+void lb2GetPlayerBufferPeriodQuantiles(void *pCtx, double *pQuantilesMs);
 int lb2GetCaptureRank(void *pCtx);
 int lb2GetPlayerTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
 int lb2GetRecorderTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
+bool lb2GetRecorderBufferSnapshot(void *pCtx, int *pHistogram, running_stats_t *pStats,
+        int *pExpectedBufferPeriod);
+bool lb2GetPlayerBufferSnapshot(void *pCtx, int *pHistogram, running_stats_t *pStats,
+        int *pExpectedBufferPeriod);
 
 #ifdef __cplusplus
 }
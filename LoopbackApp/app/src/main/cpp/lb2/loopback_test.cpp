@@ -91,7 +91,10 @@ LatencyTest::LatencyTest(SoundSystem* soundSys, LatencyTestContext* testCtx)
           mInitialSilenceFrameCount(wholeMultiplier(
                           testCtx->getSamplingRateHz() * INITIAL_SILENCE_MS, MS_PER_SECOND)),
           mInjectImpulseNextFramePos(0),
-          mImpulse(testCtx->getImpulse()) {
+          mImpulse(testCtx->getImpulse()),
+          mImpulsesToInject(testCtx->getImpulseCount() - 1),
+          mImpulseSpacingFrames(testCtx->getImpulseSpacingFrames()),
+          mFramesToNextImpulse(testCtx->getImpulseSpacingFrames()) {
 }
 
 LatencyTest::~LatencyTest() {
@@ -133,6 +136,13 @@ AudioBufferView<sample_t> LatencyTest::writeCallback(size_t expectedFrames) {
         if (framesRead > 0) {
             receiveRecording(framesRead);
         }
+        if (mInjectImpulseNextFramePos < 0 && mImpulsesToInject > 0 &&
+                mFramesToNextImpulse <= 0) {
+            mInjectImpulseNextFramePos = 0;
+            mImpulsesToInject--;
+            mFramesToNextImpulse += mImpulseSpacingFrames;
+        }
+        mFramesToNextImpulse -= expectedFrames;
         if (mInjectImpulseNextFramePos >= 0) {
             ALOGV("Injecting impulse from pos %d", mInjectImpulseNextFramePos);
             AudioBufferView<sample_t> impulseChunk =
@@ -80,6 +80,9 @@ class LatencyTest : public LoopbackTest {
     int mInitialSilenceFrameCount;
     int mInjectImpulseNextFramePos;
     AudioBufferView<sample_t> mImpulse;
+    int mImpulsesToInject;      // impulses left after the current one
+    int mImpulseSpacingFrames;
+    int mFramesToNextImpulse;
 };
 
 
@@ -64,6 +64,7 @@ class TestContext : public CountsConverter<sample_t> {
 // Context describing latency test parameters.
 // Carries test impulse data, but doesn't own it.
 // The size of the impulse is assumed to be 1 frame buffer.
+// The impulse is injected impulseCount times, impulseSpacingFrames apart.
 class LatencyTestContext : public TestContext {
   public:
     LatencyTestContext(PerformanceMode perfMode,
@@ -71,19 +72,27 @@ class LatencyTestContext : public TestContext {
             int channelCount,
             int samplingRateHz,
             int inputFramesToDiscard,
-            sample_t *impulse)
+            sample_t *impulse,
+            int impulseCount,
+            int impulseSpacingFrames)
             : TestContext(perfMode, testFrameCount, channelCount, samplingRateHz),
               mInputFramesToDiscard(inputFramesToDiscard),
-              mImpulse(impulse, testFrameCount, channelCount) {}
+              mImpulse(impulse, testFrameCount, channelCount),
+              mImpulseCount(impulseCount),
+              mImpulseSpacingFrames(impulseSpacingFrames) {}
     LatencyTestContext(const LatencyTestContext&) = delete;
     LatencyTestContext& operator=(const LatencyTestContext&) = delete;
 
     int getInputFramesToDiscard() const { return mInputFramesToDiscard; }
     AudioBufferView<sample_t> getImpulse() const { return mImpulse; }
+    int getImpulseCount() const { return mImpulseCount; }
+    int getImpulseSpacingFrames() const { return mImpulseSpacingFrames; }
 
   private:
     const int mInputFramesToDiscard;
     const AudioBufferView<sample_t> mImpulse;
+    const int mImpulseCount;
+    const int mImpulseSpacingFrames;
 };
 
 
@@ -27,12 +27,16 @@ native_engine_t sEngines[NATIVE_ENGINE_COUNT] = {
         slesGetRecorderBufferPeriod,
         slesGetRecorderMaxBufferPeriod,
         slesGetRecorderVarianceBufferPeriod,
+        slesGetRecorderBufferPeriodQuantiles,
         slesGetPlayerBufferPeriod,
         slesGetPlayerMaxBufferPeriod,
         slesGetPlayerVarianceBufferPeriod,
+        slesGetPlayerBufferPeriodQuantiles,
         slesGetCaptureRank,
         slesGetPlayerTimeStampsAndExpectedBufferPeriod,
-        slesGetRecorderTimeStampsAndExpectedBufferPeriod
+        slesGetRecorderTimeStampsAndExpectedBufferPeriod,
+        slesGetRecorderBufferSnapshot,
+        slesGetPlayerBufferSnapshot
     },
     // NATIVE_ENGINE_AAUDIO
     {
@@ -43,11 +47,15 @@ native_engine_t sEngines[NATIVE_ENGINE_COUNT] = {
         lb2GetRecorderBufferPeriod,
         lb2GetRecorderMaxBufferPeriod,
         lb2GetRecorderVarianceBufferPeriod,
+        lb2GetRecorderBufferPeriodQuantiles,
         lb2GetPlayerBufferPeriod,
         lb2GetPlayerMaxBufferPeriod,
         lb2GetPlayerVarianceBufferPeriod,
+        lb2GetPlayerBufferPeriodQuantiles,
         lb2GetCaptureRank,
         lb2GetPlayerTimeStampsAndExpectedBufferPeriod,
-        lb2GetRecorderTimeStampsAndExpectedBufferPeriod
+        lb2GetRecorderTimeStampsAndExpectedBufferPeriod,
+        lb2GetRecorderBufferSnapshot,
+        lb2GetPlayerBufferSnapshot
     }
 };
@@ -18,12 +18,29 @@
 #define _Included_org_drrickorang_loopback_loopback
 
 #include <stdbool.h>
+#include <stdint.h>
 #include <time.h>
 
+#include "running_stats.h"
+
 #ifdef __cplusplus
 extern "C" {
 #endif
 
+// Summaries of the callbacks per window of CALLBACK_WINDOW_MS. Once capacity windows are used,
+// pairs of windows are merged into windows twice as long. Read with CallbackWindowStats.java.
+typedef struct {
+    short* counts;              // Number of callbacks per window
+    short* lateCounts;          // Number of outliers per window
+    int* minUs;                 // Shortest callback per window in microseconds
+    int* maxUs;                 // Longest callback per window in microseconds
+    int* p99Us;                 // p99 of the callbacks per window in microseconds
+    int* histogram;             // Callbacks of the window in progress, see histogram.h
+    int capacity;               // Number of windows allocated, 0 if not collected
+    int windowCount;            // Number of windows started
+    int windowMs;               // Length of the windows, grows as they are merged
+} callbackWindows;
+
 typedef struct {
     int* timeStampsMs;          // Array of milliseconds since first callback
     short* callbackDurations;   // Array of milliseconds between callback and previous callback
@@ -31,6 +48,7 @@ typedef struct {
     struct timespec startTime;  // Time of first callback {seconds,nanoseconds}
     int capacity;               // Total number of callback times/lengths that can be recorded
     bool exceededCapacity;      // Set only if late callbacks come after array is full
+    callbackWindows windows;    // Summaries of all the callbacks, not limited by capacity
 } callbackTimeStamps;
 
 #define NANOS_PER_SECOND 1000000000
@@ -43,14 +61,17 @@ enum STATUS_ENUM {
 };
 
 enum JAVA_CONSTANTS_ENUM {
-    // Must match constant 'range' in BufferPeriod.java
-    RANGE = 1002,
     // Must match constants in Constant.java
     TEST_TYPE_LATENCY = 222,
     TEST_TYPE_BUFFER_PERIOD = 223,
     AUDIO_THREAD_TYPE_JAVA = 0,
     AUDIO_THREAD_TYPE_NATIVE_SLES = 1,
     AUDIO_THREAD_TYPE_NATIVE_AAUDIO = 2,
+    MAX_RECORDED_LATE_CALLBACKS_PER_SECOND = 2,
+    CALLBACK_WINDOW_MS = 1000,
+    CALLBACK_WINDOWS_EXTRA = 60,
+    MAX_CALLBACK_WINDOWS = 8192,
+    LIVE_STATS_MAX_RETRIES = 100,
 };
 
 typedef struct {
@@ -59,18 +80,27 @@ typedef struct {
     int (*init)(void **ppCtx, int samplingRate, int frameCount, int micSource,
             int performanceMode,
             int testType, double frequency1, char* byteBufferPtr, int byteBufferLength,
-            short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
+            short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames,
+            int impulseCount, int impulseSpacingFrames);
     int (*destroy)(void **ppCtx);
     int (*processNext)(void *pCtx, double *pSamples, long maxSamples);
     int* (*getRecorderBufferPeriod)(void *pCtx);
     int (*getRecorderMaxBufferPeriod)(void *pCtx);
     int64_t (*getRecorderVarianceBufferPeriod)(void *pCtx);
+    void (*getRecorderBufferPeriodQuantiles)(void *pCtx, double *pQuantilesMs);
     int* (*getPlayerBufferPeriod)(void *pCtx);
     int (*getPlayerMaxBufferPeriod)(void *pCtx);
     int64_t (*getPlayerVarianceBufferPeriod)(void *pCtx);
+    void (*getPlayerBufferPeriodQuantiles)(void *pCtx, double *pQuantilesMs);
     int (*getCaptureRank)(void *pCtx);
     int (*getPlayerTimeStampsAndExpectedBufferPeriod)(void *pCtx, callbackTimeStamps **ppTSs);
     int (*getRecorderTimeStampsAndExpectedBufferPeriod)(void *pCtx, callbackTimeStamps **ppTSs);
+    // Can be called while the test is running, pHistogram has HISTOGRAM_BUCKETS elements.
+    // Unlike get*TimeStampsAndExpectedBufferPeriod(), doesn't change any state of the engine.
+    bool (*getRecorderBufferSnapshot)(void *pCtx, int *pHistogram, running_stats_t *pStats,
+            int *pExpectedBufferPeriod);
+    bool (*getPlayerBufferSnapshot)(void *pCtx, int *pHistogram, running_stats_t *pStats,
+            int *pExpectedBufferPeriod);
 } native_engine_t;
 
 typedef struct {
@@ -28,18 +28,25 @@ int slesComputeDefaultSettings(int performanceMode, int *samplingRate,
 int slesInit(void ** ppCtx, int samplingRate, int frameCount, int micSource,
              int performanceMode,
              int testType, double frequency1, char* byteBufferPtr, int byteBufferLength,
-             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
+             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames,
+             int impulseCount, int impulseSpacingFrames);
 int slesDestroy(void ** ppCtx);
 int slesProcessNext(void *pCtx, double *pSamples, long maxSamples);
 int* slesGetRecorderBufferPeriod(void *pCtx);
 int slesGetRecorderMaxBufferPeriod(void *pCtx);
 int64_t slesGetRecorderVarianceBufferPeriod(void *pCtx);
+void slesGetRecorderBufferPeriodQuantiles(void *pCtx, double *pQuantilesMs);
 int* slesGetPlayerBufferPeriod(void *pCtx);
 int slesGetPlayerMaxBufferPeriod(void *pCtx);
 int64_t slesGetPlayerVarianceBufferPeriod(void *pCtx);
+void slesGetPlayerBufferPeriodQuantiles(void *pCtx, double *pQuantilesMs);
 int slesGetCaptureRank(void *pCtx);
 int slesGetPlayerTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
 int slesGetRecorderTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs);
+bool slesGetRecorderBufferSnapshot(void *pCtx, int *pHistogram, running_stats_t *pStats,
+        int *pExpectedBufferPeriod);
+bool slesGetPlayerBufferSnapshot(void *pCtx, int *pHistogram, running_stats_t *pStats,
+        int *pExpectedBufferPeriod);
 
 #ifdef __cplusplus
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "quantiles.h"
+
+#include <string.h>
+
+// Must match QUANTILES in StreamingQuantiles.java
+static const double QUANTILES[QUANTILES_COUNT] = {0.5, 0.9, 0.99, 0.999, 0.9999};
+
+// How much the desired position of each marker moves for every value added
+static double increment(int quantile, int marker) {
+    double p = QUANTILES[quantile];
+    switch (marker) {
+    case 0: return 0;
+    case 1: return p / 2;
+    case 2: return p;
+    case 3: return (1 + p) / 2;
+    default: return 1;
+    }
+}
+
+void quantiles_init(quantiles_t *quantiles) {
+    memset(quantiles, 0, sizeof(*quantiles));
+    for (int j = 0; j < QUANTILES_COUNT; j++) {
+        for (int i = 0; i < QUANTILES_MARKERS; i++) {
+            quantiles->positions[j][i] = i;
+            quantiles->desiredPositions[j][i] = 4 * increment(j, i);
+        }
+    }
+}
+
+static void insertSorted(double *heights, int count, double value) {
+    int i = count;
+    while (i > 0 && heights[i - 1] > value) {
+        heights[i] = heights[i - 1];
+        i--;
+    }
+    heights[i] = value;
+}
+
+// Piecewise parabolic prediction of the height of marker i moved by sign.
+static double parabolic(const double *q, const int64_t *n, int i, int sign) {
+    return q[i] + (double) sign / (n[i + 1] - n[i - 1]) *
+           ((n[i] - n[i - 1] + sign) * (q[i + 1] - q[i]) / (n[i + 1] - n[i]) +
+            (n[i + 1] - n[i] - sign) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+}
+
+void quantiles_add(quantiles_t *quantiles, double value) {
+    if (quantiles->count < QUANTILES_MARKERS) {
+        // the first values become the markers, kept sorted
+        for (int j = 0; j < QUANTILES_COUNT; j++) {
+            insertSorted(quantiles->heights[j], (int) quantiles->count, value);
+        }
+        quantiles->count++;
+        return;
+    }
+    quantiles->count++;
+
+    for (int j = 0; j < QUANTILES_COUNT; j++) {
+        double *q = quantiles->heights[j];
+        int64_t *n = quantiles->positions[j];
+
+        // find the cell k such that q[k] <= value < q[k + 1], extending the extremes
+        int k;
+        if (value < q[0]) {
+            q[0] = value;
+            k = 0;
+        } else if (value >= q[QUANTILES_MARKERS - 1]) {
+            q[QUANTILES_MARKERS - 1] = value;
+            k = QUANTILES_MARKERS - 2;
+        } else {
+            k = 0;
+            while (value >= q[k + 1]) {
+                k++;
+            }
+        }
+
+        for (int i = k + 1; i < QUANTILES_MARKERS; i++) {
+            n[i]++;
+        }
+        for (int i = 0; i < QUANTILES_MARKERS; i++) {
+            quantiles->desiredPositions[j][i] += increment(j, i);
+        }
+
+        // move the middle markers towards their desired positions
+        for (int i = 1; i < QUANTILES_MARKERS - 1; i++) {
+            double d = quantiles->desiredPositions[j][i] - n[i];
+            if ((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+                int sign = d > 0 ? 1 : -1;
+                double height = parabolic(q, n, i, sign);
+                if (q[i - 1] < height && height < q[i + 1]) {
+                    q[i] = height;
+                } else {
+                    q[i] += sign * (q[i + sign] - q[i]) / (n[i + sign] - n[i]);
+                }
+                n[i] += sign;
+            }
+        }
+    }
+}
+
+void quantiles_get(const quantiles_t *quantiles, double *values) {
+    for (int j = 0; j < QUANTILES_COUNT; j++) {
+        if (quantiles->count == 0) {
+            values[j] = 0;
+        } else if (quantiles->count < QUANTILES_MARKERS) {
+            // too few values for the markers, use the nearest rank of the sorted values
+            int rank = (int) (QUANTILES[j] * quantiles->count + 0.999999) - 1;
+            values[j] = quantiles->heights[j][rank > 0 ? rank : 0];
+        } else {
+            values[j] = quantiles->heights[j][2];
+        }
+    }
+}
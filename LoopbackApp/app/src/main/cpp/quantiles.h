@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _Included_org_drrickorang_loopback_quantiles
+#define _Included_org_drrickorang_loopback_quantiles
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Must match the length of QUANTILES in StreamingQuantiles.java
+#define QUANTILES_COUNT 5
+#define QUANTILES_MARKERS 5
+
+// Estimates quantiles of a stream of values with the P-square algorithm (Jain and Chlamtac,
+// 1985), with 5 markers per quantile instead of the values. Same as StreamingQuantiles.java.
+typedef struct {
+    double heights[QUANTILES_COUNT][QUANTILES_MARKERS];
+    int64_t positions[QUANTILES_COUNT][QUANTILES_MARKERS];
+    double desiredPositions[QUANTILES_COUNT][QUANTILES_MARKERS];
+    int64_t count;
+} quantiles_t;
+
+void quantiles_init(quantiles_t *quantiles);
+
+// Constant time, doesn't allocate, so it can be called from the audio callback.
+void quantiles_add(quantiles_t *quantiles, double value);
+
+// Writes the estimate of each quantile to values, which has QUANTILES_COUNT elements.
+// All estimates are 0 if no value was added.
+void quantiles_get(const quantiles_t *quantiles, double *values);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_quantiles
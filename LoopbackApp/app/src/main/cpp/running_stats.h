@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+#ifndef _Included_org_drrickorang_loopback_running_stats
+#define _Included_org_drrickorang_loopback_running_stats
+
+#include <math.h>
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Count, mean, variance, skewness and extremes of a stream of values, updated with Welford's
+// method and Kahan compensated additions. Same as RunningStats.java.
+typedef struct {
+    int64_t count;
+    double mean;
+    double meanCompensation;
+    double m2; // sum of squares of deviations from the mean
+    double m2Compensation;
+    double m3; // sum of cubes of deviations from the mean
+    double min;
+    double max;
+} running_stats_t;
+
+static inline void running_stats_init(running_stats_t *stats) {
+    stats->count = 0;
+    stats->mean = 0;
+    stats->meanCompensation = 0;
+    stats->m2 = 0;
+    stats->m2Compensation = 0;
+    stats->m3 = 0;
+    stats->min = 0;
+    stats->max = 0;
+}
+
+// Constant time, doesn't allocate, so it can be called from the audio callback.
+static inline void running_stats_add(running_stats_t *stats, double value) {
+    if (stats->count == 0 || value < stats->min) {
+        stats->min = value;
+    }
+    if (stats->count == 0 || value > stats->max) {
+        stats->max = value;
+    }
+
+    int64_t count = stats->count + 1;
+    double delta = value - stats->mean;
+    double deltaOverCount = delta / count;
+    // M3 needs the previous M2
+    stats->m3 += delta * deltaOverCount * deltaOverCount * stats->count * (stats->count - 1) -
+                 3 * deltaOverCount * stats->m2;
+
+    double m2Increment = delta * deltaOverCount * stats->count - stats->m2Compensation;
+    double m2 = stats->m2 + m2Increment;
+    stats->m2Compensation = (m2 - stats->m2) - m2Increment;
+    stats->m2 = m2;
+
+    double meanIncrement = deltaOverCount - stats->meanCompensation;
+    double mean = stats->mean + meanIncrement;
+    stats->meanCompensation = (mean - stats->mean) - meanIncrement;
+    stats->mean = mean;
+
+    stats->count = count;
+}
+
+// Returns the population variance, or 0 if no value was added.
+static inline double running_stats_getVariance(const running_stats_t *stats) {
+    return stats->count > 0 ? stats->m2 / stats->count : 0;
+}
+
+// Returns the mean square of the deviations from reference instead of the mean.
+static inline double running_stats_getMeanSquareDeviation(const running_stats_t *stats,
+                                                          double reference) {
+    double bias = stats->mean - reference;
+    return running_stats_getVariance(stats) + bias * bias;
+}
+
+// Returns the skewness, positive if the tail is on the high side, 0 if there is no spread.
+static inline double running_stats_getSkewness(const running_stats_t *stats) {
+    if (stats->m2 <= 0) {
+        return 0;
+    }
+    return sqrt((double) stats->count) * stats->m3 / pow(stats->m2, 1.5);
+}
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_running_stats
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+#ifndef _Included_org_drrickorang_loopback_seqlock
+#define _Included_org_drrickorang_loopback_seqlock
+
+#include <stdbool.h>
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Sequence lock for data written by a single thread, such as the audio callback, and copied by
+// other threads. The writer never waits. The sequence is odd while the data is being written,
+// a reader retries its copy if the sequence was odd or changed while it was copying.
+
+static inline void seqlock_writeBegin(volatile uint32_t *sequence) {
+    __atomic_store_n(sequence, *sequence + 1, __ATOMIC_RELAXED);
+    // the data must not be written before the sequence is odd
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+}
+
+static inline void seqlock_writeEnd(volatile uint32_t *sequence) {
+    __atomic_store_n(sequence, *sequence + 1, __ATOMIC_RELEASE);
+}
+
+// Returns the sequence to pass to seqlock_readRetry() once the data is copied.
+static inline uint32_t seqlock_readBegin(const volatile uint32_t *sequence) {
+    return __atomic_load_n(sequence, __ATOMIC_ACQUIRE);
+}
+
+// Returns true if the data copied since seqlock_readBegin() may be inconsistent.
+static inline bool seqlock_readRetry(const volatile uint32_t *sequence, uint32_t begin) {
+    // the data must be read before the sequence is checked again
+    __atomic_thread_fence(__ATOMIC_ACQUIRE);
+    return (begin & 1) != 0 || __atomic_load_n(sequence, __ATOMIC_RELAXED) != begin;
+}
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // _Included_org_drrickorang_loopback_seqlock
@@ -26,17 +26,21 @@
 // or acts as a delay if played through headset.
 
 #define _USE_MATH_DEFINES
+#include <climits>
 #include <cmath>
 #include "sles.h"
 #include "audio_utils/atomic.h"
 #include "byte_buffer.h"
+#include "histogram.h"
+#include <sched.h>
 #include <unistd.h>
 #include <string.h>
 
 static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount, int micSource,
         int performanceMode,
         int testType, double frequency1, char* byteBufferPtr, int byteBufferLength,
-        short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames);
+        short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames,
+        int impulseCount, int impulseSpacingFrames);
 static int slesDestroyServer(sles_data *pSles);
 
 static void initBufferStats(bufferStats *stats);
@@ -45,6 +49,12 @@ static void collectBufferPeriod(bufferStats *stats, bufferStats *fdpStats,
 static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int expectedBufferPeriod);
 static void recordTimeStamp(callbackTimeStamps *timeStamps,
         int64_t callbackDuration, int64_t timeStamp);
+static void initCallbackWindows(callbackWindows *windows, int capacity);
+static void recordCallbackWindow(callbackWindows *windows,
+        int64_t callbackDuration, int64_t timeStamp, bool outlier);
+static void foldCallbackWindows(callbackWindows *windows);
+static void storeCurrentWindowPercentile(callbackWindows *windows);
+static void freeCallbackWindows(callbackWindows *windows);
 
 int slesComputeDefaultSettings(int /*performanceMode*/, int* /*samplingRate*/,
             int* /*playerBufferFrameCount*/, int* /*recorderBufferFrameCount*/) {
@@ -55,7 +65,8 @@ int slesComputeDefaultSettings(int /*performanceMode*/, int* /*samplingRate*/,
 int slesInit(void ** ppCtx, int samplingRate, int frameCount, int micSource,
              int performanceMode,
              int testType, double frequency1, char* byteBufferPtr, int byteBufferLength,
-             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames) {
+             short* loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames,
+             int impulseCount, int impulseSpacingFrames) {
     sles_data ** ppSles = (sles_data**) ppCtx;
     int status = STATUS_FAIL;
     if (ppSles != NULL) {
@@ -72,7 +83,8 @@ int slesInit(void ** ppCtx, int samplingRate, int frameCount, int micSource,
             status = slesCreateServer(pSles, samplingRate, frameCount, micSource,
                                       performanceMode, testType,
                                       frequency1, byteBufferPtr, byteBufferLength, loopbackTone,
-                                      maxRecordedLateCallbacks, ignoreFirstFrames);
+                                      maxRecordedLateCallbacks, ignoreFirstFrames,
+                                      impulseCount, impulseSpacingFrames);
             SLES_PRINTF("slesCreateServer =%d", status);
         }
     }
@@ -267,15 +279,30 @@ static void playerCallback(SLBufferQueueItf caller __unused, void *context) {
                     }
                 }*/
 
-                //inject java generated tone
+                pSles->injectImpulse = 0;
+                pSles->impulseFrame = 0;
+                pSles->totalDiscardedInputFrames = 0;
+            }
+
+            if (pSles->impulseFrame >= 0) {
+                //inject java generated tone, impulse n starts n * impulseSpacingFrames frames
+                //after the first one
                 for (unsigned i = 0; i < pSles->bufSizeInFrames; ++i) {
-                    for (unsigned k = 0; k < pSles->channels; ++k) {
-                        ((short *) buffer)[i * pSles->channels + k] = pSles->loopbackTone[i];
+                    int frame = pSles->impulseFrame + i;
+                    int impulse = frame / pSles->impulseSpacingFrames;
+                    unsigned toneIndex = frame % pSles->impulseSpacingFrames;
+                    if (impulse < pSles->impulseCount && toneIndex < pSles->bufSizeInFrames) {
+                        for (unsigned k = 0; k < pSles->channels; ++k) {
+                            ((short *) buffer)[i * pSles->channels + k] =
+                                    pSles->loopbackTone[toneIndex];
+                        }
                     }
                 }
 
-                pSles->injectImpulse = 0;
-                pSles->totalDiscardedInputFrames = 0;
+                pSles->impulseFrame += pSles->bufSizeInFrames;
+                if (pSles->impulseFrame >= pSles->impulseCount * pSles->impulseSpacingFrames) {
+                    pSles->impulseFrame = -1;
+                }
             }
         } else if (pSles->testType == TEST_TYPE_BUFFER_PERIOD) {
             double twoPi = M_PI * 2;
@@ -325,16 +352,15 @@ static void playerCallback(SLBufferQueueItf caller __unused, void *context) {
 
 // Used to set initial values for the bufferStats struct before values can be recorded.
 static void initBufferStats(bufferStats *stats) {
-    stats->buffer_period = new int[RANGE](); // initialized to zeros
+    stats->buffer_period = new int[HISTOGRAM_BUCKETS](); // initialized to zeros
     stats->previous_time = {0,0};
     stats->current_time = {0,0};
 
     stats->buffer_count = 0;
-    stats->max_buffer_period = 0;
 
-    stats->measurement_count = 0;
-    stats->SDM = 0;
-    stats->var = 0;
+    stats->sequence = 0;
+    running_stats_init(&stats->stats);
+    quantiles_init(&stats->quantiles);
 }
 
 // Called in the beginning of playerCallback() to collect the interval between each callback.
@@ -356,9 +382,11 @@ static void collectBufferPeriod(bufferStats *stats, bufferStats *fdpStats,
 
         bool outlier = updateBufferStats(stats, callbackDuration, expectedBufferPeriod);
 
+        int64_t timeStamp = diffInNano(timeStamps->startTime, stats->current_time);
+        recordCallbackWindow(&timeStamps->windows, callbackDuration, timeStamp, outlier);
+
         //recording timestamps of buffer periods not at expected buffer period
         if (outlier) {
-            int64_t timeStamp = diffInNano(timeStamps->startTime, stats->current_time);
             recordTimeStamp(timeStamps, callbackDuration, timeStamp);
         }
     }
@@ -386,6 +414,120 @@ static void recordTimeStamp(callbackTimeStamps *timeStamps,
     }
 }
 
+static void initCallbackWindows(callbackWindows *windows, int capacity) {
+    windows->counts = new short[capacity]();
+    windows->lateCounts = new short[capacity]();
+    windows->minUs = new int[capacity]();
+    windows->maxUs = new int[capacity]();
+    windows->p99Us = new int[capacity]();
+    windows->histogram = new int[HISTOGRAM_BUCKETS]();
+    windows->capacity = capacity;
+    windows->windowCount = 0;
+    windows->windowMs = CALLBACK_WINDOW_MS;
+}
+
+// Counts a callback in the summary of its window, same as CallbackWindowStats.record().
+// Doesn't allocate, the histogram of the window is cleared once per window.
+static void recordCallbackWindow(callbackWindows *windows,
+        int64_t callbackDuration, int64_t timeStamp, bool outlier) {
+    if (windows->capacity == 0) {
+        return;
+    }
+
+    int64_t window = timeStamp / ((int64_t) windows->windowMs * NANOS_PER_MILLI);
+    while (window >= windows->capacity) {
+        foldCallbackWindows(windows);
+        window = timeStamp / ((int64_t) windows->windowMs * NANOS_PER_MILLI);
+    }
+    if (window >= windows->windowCount) {
+        storeCurrentWindowPercentile(windows);
+        memset(windows->histogram, 0, HISTOGRAM_BUCKETS * sizeof(int));
+
+        // clear the slots up to the new window, skipped windows stay empty
+        for (int slot = windows->windowCount; slot <= window; slot++) {
+            windows->counts[slot] = 0;
+            windows->lateCounts[slot] = 0;
+            windows->minUs[slot] = 0;
+            windows->maxUs[slot] = 0;
+            windows->p99Us[slot] = 0;
+        }
+        windows->windowCount = (int) window + 1;
+    }
+
+    int slot = (int) window;
+    int64_t durationUs = callbackDuration / 1000;
+    int clampedUs = durationUs > INT32_MAX ? INT32_MAX : (int) durationUs;
+    if (windows->counts[slot] == 0 || clampedUs < windows->minUs[slot]) {
+        windows->minUs[slot] = clampedUs;
+    }
+    if (clampedUs > windows->maxUs[slot]) {
+        windows->maxUs[slot] = clampedUs;
+    }
+    if (windows->counts[slot] < SHRT_MAX) {
+        windows->counts[slot]++;
+    }
+    if (outlier && windows->lateCounts[slot] < SHRT_MAX) {
+        windows->lateCounts[slot]++;
+    }
+    histogram_record(windows->histogram, callbackDuration);
+}
+
+// Merges every pair of windows into one twice as long, same as CallbackWindowStats.fold().
+static void foldCallbackWindows(callbackWindows *windows) {
+    storeCurrentWindowPercentile(windows);
+    int windowCount = (windows->windowCount + 1) / 2;
+    for (int slot = 0; slot < windowCount; slot++) {
+        int first = 2 * slot;
+        int second = first + 1;
+        int count = windows->counts[first];
+        int lateCount = windows->lateCounts[first];
+        int minUs = windows->minUs[first];
+        int maxUs = windows->maxUs[first];
+        int p99Us = windows->p99Us[first];
+        if (second < windows->windowCount) {
+            if (count == 0 || (windows->counts[second] != 0 && windows->minUs[second] < minUs)) {
+                minUs = windows->minUs[second];
+            }
+            count += windows->counts[second];
+            lateCount += windows->lateCounts[second];
+            if (windows->maxUs[second] > maxUs) {
+                maxUs = windows->maxUs[second];
+            }
+            if (windows->p99Us[second] > p99Us) {
+                p99Us = windows->p99Us[second];
+            }
+        }
+        windows->counts[slot] = (short) (count > SHRT_MAX ? SHRT_MAX : count);
+        windows->lateCounts[slot] = (short) (lateCount > SHRT_MAX ? SHRT_MAX : lateCount);
+        windows->minUs[slot] = minUs;
+        windows->maxUs[slot] = maxUs;
+        windows->p99Us[slot] = p99Us;
+    }
+    windows->windowCount = windowCount;
+    windows->windowMs *= 2;
+}
+
+// The window in progress may already hold the p99 of merged windows, keep the larger one.
+static void storeCurrentWindowPercentile(callbackWindows *windows) {
+    if (windows->capacity != 0 && windows->windowCount > 0) {
+        int p99Us = (int) histogram_getPercentileUs(windows->histogram, 0.99);
+        int slot = windows->windowCount - 1;
+        if (p99Us > windows->p99Us[slot]) {
+            windows->p99Us[slot] = p99Us;
+        }
+    }
+}
+
+static void freeCallbackWindows(callbackWindows *windows) {
+    delete[] windows->counts;
+    delete[] windows->lateCounts;
+    delete[] windows->minUs;
+    delete[] windows->maxUs;
+    delete[] windows->p99Us;
+    delete[] windows->histogram;
+    windows->capacity = 0;
+}
+
 static void atomicSetIfGreater(volatile int32_t *addr, int32_t val) {
     // TODO: rewrite this to avoid the need for unbounded spinning
     int32_t old;
@@ -397,30 +539,21 @@ static void atomicSetIfGreater(volatile int32_t *addr, int32_t val) {
 
 // Updates the stats being collected about buffer periods. Returns true if this is an outlier.
 static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int expectedBufferPeriod) {
-    stats->measurement_count++;
-
     // round up to nearest millisecond
     int diff_in_milli = (int) ((diff_in_nano + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
 
-    if (diff_in_milli > stats->max_buffer_period) {
-        stats->max_buffer_period = diff_in_milli;
-    }
-
-    // from 0 ms to 1000 ms, plus a sum of all instances > 1000ms
-    if (diff_in_milli >= (RANGE - 1)) {
-        (stats->buffer_period)[RANGE-1]++;
-    } else if (diff_in_milli >= 0) {
-        (stats->buffer_period)[diff_in_milli]++;
-    } else { // for diff_in_milli < 0
+    // microsecond resolution, see histogram.h
+    if (diff_in_nano >= 0) {
+        double diff_in_milli_exact = (double) diff_in_nano / NANOS_PER_MILLI;
+        seqlock_writeBegin(&stats->sequence);
+        histogram_record(stats->buffer_period, diff_in_nano);
+        running_stats_add(&stats->stats, diff_in_milli_exact);
+        seqlock_writeEnd(&stats->sequence);
+        quantiles_add(&stats->quantiles, diff_in_milli_exact);
+    } else {
         __android_log_print(ANDROID_LOG_INFO, "sles_player", "Having negative BufferPeriod.");
     }
 
-    int64_t delta = diff_in_nano - (int64_t) expectedBufferPeriod * NANOS_PER_MILLI;
-    stats->SDM += delta * delta;
-    if (stats->measurement_count > 1) {
-        stats->var = stats->SDM / stats->measurement_count;
-    }
-
     // check if the lateness is so bad that a systrace should be captured
     // TODO: replace static threshold of lateness with a dynamic determination
     if (diff_in_milli > expectedBufferPeriod + LATE_CALLBACK_CAPTURE_THRESHOLD) {
@@ -435,7 +568,8 @@ static bool updateBufferStats(bufferStats *stats, int64_t diff_in_nano, int expe
 static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount, int micSource,
         int performanceMode,
         int testType, double frequency1, char *byteBufferPtr, int byteBufferLength,
-        short *loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames) {
+        short *loopbackTone, int maxRecordedLateCallbacks, int ignoreFirstFrames,
+        int impulseCount, int impulseSpacingFrames) {
     int status = STATUS_FAIL;
 
     if (pSles != NULL) {
@@ -585,6 +719,11 @@ static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount,
 
         //init loopback tone
         pSles->loopbackTone = loopbackTone;
+        pSles->impulseCount = impulseCount;
+        // consecutive tones must not overlap, the tone fills one buffer
+        pSles->impulseSpacingFrames = impulseSpacingFrames > frameCount ?
+                impulseSpacingFrames : frameCount;
+        pSles->impulseFrame = -1;
 
         pSles->recorderTimeStamps = {
             new int[maxRecordedLateCallbacks],      //int* timeStampsMs
@@ -595,6 +734,16 @@ static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount,
             false                                   //bool exceededCapacity
         };
 
+        // one window per CALLBACK_WINDOW_MS for the duration of the test, merged past
+        // MAX_CALLBACK_WINDOWS. maxRecordedLateCallbacks is capped well beyond that duration.
+        int maxCallbackWindows = (int) ((int64_t) maxRecordedLateCallbacks /
+                MAX_RECORDED_LATE_CALLBACKS_PER_SECOND * MILLIS_PER_SECOND / CALLBACK_WINDOW_MS) +
+                CALLBACK_WINDOWS_EXTRA;
+        if (maxCallbackWindows > MAX_CALLBACK_WINDOWS) {
+            maxCallbackWindows = MAX_CALLBACK_WINDOWS;
+        }
+        initCallbackWindows(&pSles->recorderTimeStamps.windows, maxCallbackWindows);
+
         pSles->playerTimeStamps = {
             new int[maxRecordedLateCallbacks],      //int* timeStampsMs
             new short[maxRecordedLateCallbacks],    //short* callbackDurations;
@@ -603,6 +752,7 @@ static int slesCreateServer(sles_data *pSles, int samplingRate, int frameCount,
             maxRecordedLateCallbacks,               //int capacity
             false                                   //bool exceededCapacity
         };
+        initCallbackWindows(&pSles->playerTimeStamps.windows, maxCallbackWindows);
 
         pSles->expectedBufferPeriod = (short) (
                 round(pSles->bufSizeInFrames * MILLIS_PER_SECOND / (float) pSles->sampleRate));
@@ -938,6 +1088,9 @@ static int slesDestroyServer(sles_data *pSles) {
         audio_utils_fifo_deinit(&(pSles->fifo));
         delete[] pSles->fifoBuffer;
 
+        freeCallbackWindows(&pSles->recorderTimeStamps.windows);
+        freeCallbackWindows(&pSles->playerTimeStamps.windows);
+
         SLES_PRINTF("slesDestroyServer 2");
 
         //        if (sndfile != NULL) {
@@ -1009,12 +1162,23 @@ int* slesGetRecorderBufferPeriod(void *pCtx) {
 
 int slesGetRecorderMaxBufferPeriod(void *pCtx) {
     sles_data *pSles = (sles_data*)pCtx;
-    return pSles->recorderBufferStats.max_buffer_period;
+    return (int) ceil(pSles->recorderBufferStats.stats.max);
+}
+
+// Returns the mean square of the deviations from the expected buffer period, in nanoseconds^2.
+static int64_t getVarianceNs(const bufferStats *stats, int expectedBufferPeriod) {
+    return (int64_t) (running_stats_getMeanSquareDeviation(&stats->stats, expectedBufferPeriod) *
+                      NANOS_PER_MILLI * NANOS_PER_MILLI);
 }
 
 int64_t slesGetRecorderVarianceBufferPeriod(void *pCtx) {
     sles_data *pSles = (sles_data*)pCtx;
-    return pSles->recorderBufferStats.var;
+    return getVarianceNs(&pSles->recorderBufferStats, pSles->expectedBufferPeriod);
+}
+
+void slesGetRecorderBufferPeriodQuantiles(void *pCtx, double *pQuantilesMs) {
+    sles_data *pSles = (sles_data*)pCtx;
+    quantiles_get(&pSles->recorderBufferStats.quantiles, pQuantilesMs);
 }
 
 int* slesGetPlayerBufferPeriod(void *pCtx) {
@@ -1024,12 +1188,47 @@ int* slesGetPlayerBufferPeriod(void *pCtx) {
 
 int slesGetPlayerMaxBufferPeriod(void *pCtx) {
     sles_data *pSles = (sles_data*)pCtx;
-    return pSles->playerBufferStats.max_buffer_period;
+    return (int) ceil(pSles->playerBufferStats.stats.max);
 }
 
 int64_t slesGetPlayerVarianceBufferPeriod(void *pCtx) {
     sles_data *pSles = (sles_data*)pCtx;
-    return pSles->playerBufferStats.var;
+    return getVarianceNs(&pSles->playerBufferStats, pSles->expectedBufferPeriod);
+}
+
+void slesGetPlayerBufferPeriodQuantiles(void *pCtx, double *pQuantilesMs) {
+    sles_data *pSles = (sles_data*)pCtx;
+    quantiles_get(&pSles->playerBufferStats.quantiles, pQuantilesMs);
+}
+
+// Copies the histogram and the statistics of the buffer periods while the callback may be
+// updating them. Returns false if no consistent copy could be made after a few retries.
+static bool getBufferSnapshot(const bufferStats *stats, int *pHistogram,
+                              running_stats_t *pStats) {
+    for (int retry = 0; retry < LIVE_STATS_MAX_RETRIES; retry++) {
+        uint32_t sequence = seqlock_readBegin(&stats->sequence);
+        memcpy(pHistogram, stats->buffer_period, HISTOGRAM_BUCKETS * sizeof(int));
+        memcpy(pStats, &stats->stats, sizeof(running_stats_t));
+        if (!seqlock_readRetry(&stats->sequence, sequence)) {
+            return true;
+        }
+        sched_yield();
+    }
+    return false;
+}
+
+bool slesGetRecorderBufferSnapshot(void *pCtx, int *pHistogram, running_stats_t *pStats,
+        int *pExpectedBufferPeriod) {
+    sles_data *pSles = (sles_data*)pCtx;
+    *pExpectedBufferPeriod = pSles->expectedBufferPeriod;
+    return getBufferSnapshot(&pSles->recorderBufferStats, pHistogram, pStats);
+}
+
+bool slesGetPlayerBufferSnapshot(void *pCtx, int *pHistogram, running_stats_t *pStats,
+        int *pExpectedBufferPeriod) {
+    sles_data *pSles = (sles_data*)pCtx;
+    *pExpectedBufferPeriod = pSles->expectedBufferPeriod;
+    return getBufferSnapshot(&pSles->playerBufferStats, pHistogram, pStats);
 }
 
 int slesGetCaptureRank(void *pCtx) {
@@ -1047,12 +1246,14 @@ int slesGetCaptureRank(void *pCtx) {
 
 int slesGetPlayerTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs) {
     sles_data *pSles = (sles_data*)pCtx;
+    storeCurrentWindowPercentile(&pSles->playerTimeStamps.windows);
     *ppTSs = &pSles->playerTimeStamps;
     return pSles->expectedBufferPeriod;
 }
 
 int slesGetRecorderTimeStampsAndExpectedBufferPeriod(void *pCtx, callbackTimeStamps **ppTSs) {
     sles_data *pSles = (sles_data*)pCtx;
+    storeCurrentWindowPercentile(&pSles->recorderTimeStamps.windows);
     *ppTSs = &pSles->recorderTimeStamps;
     return pSles->expectedBufferPeriod;
 }
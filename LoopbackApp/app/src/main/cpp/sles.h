@@ -30,19 +30,21 @@
 #include <audio_utils/fifo.h>
 
 #include "loopback_sles.h"
+#include "quantiles.h"
+#include "running_stats.h"
+#include "seqlock.h"
 
 typedef struct {
     int* buffer_period;
     struct timespec previous_time;
     struct timespec current_time;
     int buffer_count;
-    int max_buffer_period;
 
     volatile int32_t captureRank;   // Set > 0 when the callback requests a systrace/bug report
 
-    int measurement_count; // number of measurements which were actually recorded
-    int64_t SDM; // sum of squares of deviations from the expected mean
-    int64_t var; // variance in nanoseconds^2
+    volatile uint32_t sequence; // seqlock of buffer_period and stats, see getBufferSnapshot()
+    running_stats_t stats; // of the buffer periods in milliseconds
+    quantiles_t quantiles; // of the buffer periods in milliseconds
 } bufferStats;
 
 //TODO fix this
@@ -98,6 +100,9 @@ typedef struct {
     int byteBufferLength;
 
     short* loopbackTone;
+    int impulseCount;
+    int impulseSpacingFrames;
+    int impulseFrame;       // frames played since the first impulse, -1 when not injecting
 
     callbackTimeStamps recorderTimeStamps;
     callbackTimeStamps playerTimeStamps;
@@ -20,69 +20,178 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 
 /**
  * Maintains and returns pairs of callback timestamps (in milliseconds since beginning of test) and
  * lengths (milliseconds between a callback and the previous callback).
+ * Summaries of all the callbacks per window of time are kept in a CallbackWindowStats, which is
+ * not limited by the capacity of the late callback arrays.
+ * The pairs are stored in chunks of Constant.CALLBACK_TIMES_CHUNK_SIZE, so a good run of several
+ * hours only uses a chunk or two, and never more than Constant.CALLBACK_TIMES_MAX_BYTES. The
+ * first chunk is allocated up front and every following one once the previous is half full, so
+ * a burst of late callbacks doesn't allocate on the audio thread. Reading them with
+ * getTimeStamp() and getCallbackDuration() or write() doesn't allocate per callback.
  */
-public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferCallback>,
-        Parcelable {
-    private final int[] mTimeStamps;
-    private final short[] mCallbackDurations;
+public class BufferCallbackTimes implements Parcelable {
+    private static final int CHUNK_BITS = Constant.CALLBACK_TIMES_CHUNK_BITS;
+    private static final int CHUNK_SIZE = Constant.CALLBACK_TIMES_CHUNK_SIZE;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final int[][] mTimeStamps;         // chunks are null until needed
+    private final short[][] mCallbackDurations;
+    private final int mCapacity;
     private final short mExpectedBufferPeriod;
     private boolean mExceededCapacity;
     private int mIndex;
+    private final CallbackWindowStats mWindowStats;
 
-    public BufferCallbackTimes(int maxRecords, int expectedBufferPeriod) {
+    public BufferCallbackTimes(int maxRecords, int expectedBufferPeriod, int maxWindows) {
         mIndex = 0;
-        mTimeStamps = new int[maxRecords];
-        mCallbackDurations = new short[maxRecords];
+        mCapacity = Math.min(maxRecords, Constant.MAX_RECORDED_LATE_CALLBACKS);
+        mTimeStamps = new int[getChunkCount(mCapacity)][];
+        mCallbackDurations = new short[getChunkCount(mCapacity)][];
+        allocateChunk(0);
         mExceededCapacity = false;
         mExpectedBufferPeriod = (short) expectedBufferPeriod;
+        mWindowStats = new CallbackWindowStats(maxWindows, Constant.CALLBACK_WINDOW_MS);
     }
 
     /**
-     * Instantiates an iterable object with already recorded callback times and lengths
+     * Instantiates an object with already recorded callback times and lengths
      * used for callbacks recorded by native sles callback functions.
      *
      * exceededCapacity should be set to true only when there were late callbacks observed but
-     * unable to be recorded because allocated arrays were already at capacity
+     * unable to be recorded because allocated arrays were already at capacity.
+     * windowStats is null if the native engine doesn't summarize callbacks.
      */
     public BufferCallbackTimes(int[] timeStamps, short[] callbackDurations,
-                               boolean exceededCapacity, short expectedBufferPeriod) {
-        mTimeStamps = timeStamps;
-        mCallbackDurations = callbackDurations;
+                               boolean exceededCapacity, short expectedBufferPeriod,
+                               CallbackWindowStats windowStats) {
+        int count = timeStamps.length;
+        mCapacity = count;
+        mTimeStamps = new int[getChunkCount(count)][];
+        mCallbackDurations = new short[getChunkCount(count)][];
+        for (int i = 0; i < count; i += CHUNK_SIZE) {
+            int length = Math.min(count - i, CHUNK_SIZE);
+            int chunk = i >> CHUNK_BITS;
+            mTimeStamps[chunk] = new int[CHUNK_SIZE];
+            mCallbackDurations[chunk] = new short[CHUNK_SIZE];
+            System.arraycopy(timeStamps, i, mTimeStamps[chunk], 0, length);
+            System.arraycopy(callbackDurations, i, mCallbackDurations[chunk], 0, length);
+        }
+        mIndex = count;
         mExceededCapacity = exceededCapacity;
-        mIndex = mTimeStamps.length;
         mExpectedBufferPeriod = expectedBufferPeriod;
+        mWindowStats = windowStats;
+    }
+
+    private static int getChunkCount(int records) {
+        return (records + CHUNK_SIZE - 1) >> CHUNK_BITS;
+    }
+
+    private void allocateChunk(int chunk) {
+        if (chunk < mTimeStamps.length && mTimeStamps[chunk] == null) {
+            mTimeStamps[chunk] = new int[CHUNK_SIZE];
+            mCallbackDurations[chunk] = new short[CHUNK_SIZE];
+        }
+    }
+
+    /**
+     * Record a callback in the window summaries and, if it is late or early, its length and the
+     * time it occurred. Both are in nanoseconds. Used by Java Thread.
+     */
+    public void recordCallback(long timeStampNs, long callbackLengthNs) {
+        // rounded up to the millisecond
+        int timeStamp = (int) ((timeStampNs + Constant.NANOS_PER_MILLI - 1) /
+                               Constant.NANOS_PER_MILLI);
+        short callbackLength = (short) ((callbackLengthNs + Constant.NANOS_PER_MILLI - 1) /
+                                        Constant.NANOS_PER_MILLI);
+        mWindowStats.record(timeStampNs, callbackLengthNs, isLateOrEarly(callbackLength));
+        recordCallbackTime(timeStamp, callbackLength);
     }
 
     /** Record the length of a late/early callback and the time it occurred. Used by Java Thread. */
     public void recordCallbackTime(int timeStamp, short callbackLength) {
-        if (!mExceededCapacity && callbackLength != mExpectedBufferPeriod
-                && callbackLength != mExpectedBufferPeriod + 1) {
+        if (!mExceededCapacity && isLateOrEarly(callbackLength)) {
             //only marked as exceeded if attempting to record a late callback after arrays full
-            if (mIndex == mTimeStamps.length) {
+            if (mIndex == mCapacity) {
                 mExceededCapacity = true;
                 return;
             }
-            mTimeStamps[mIndex] = timeStamp;
-            mCallbackDurations[mIndex] = callbackLength;
+            int chunk = mIndex >> CHUNK_BITS;
+            mTimeStamps[chunk][mIndex & CHUNK_MASK] = timeStamp;
+            mCallbackDurations[chunk][mIndex & CHUNK_MASK] = callbackLength;
             mIndex++;
+            // half a chunk ahead of need, a burst of late callbacks never waits for an allocation
+            if ((mIndex & CHUNK_MASK) == CHUNK_SIZE / 2) {
+                allocateChunk(chunk + 1);
+            }
+        }
+    }
+
+    private boolean isLateOrEarly(short callbackLength) {
+        return callbackLength != mExpectedBufferPeriod
+                && callbackLength != mExpectedBufferPeriod + 1;
+    }
+
+    /** Return the time stamp of late or early callback "index", in ms since the test started. */
+    public int getTimeStamp(int index) {
+        return mTimeStamps[index >> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /** Return the length in ms of late or early callback "index". */
+    public short getCallbackDuration(int index) {
+        return mCallbackDurations[index >> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /**
+     * Write one "timestamp,length" line per late or early callback. The lines are formatted in a
+     * reused buffer, so "writer" should be buffered.
+     */
+    public void write(Writer writer) throws IOException {
+        char[] line = new char[2 * (Integer.toString(Integer.MIN_VALUE).length() + 1)];
+        for (int i = 0; i < mIndex; i++) {
+            int length = formatInt(getTimeStamp(i), line, 0);
+            line[length++] = ',';
+            length = formatInt(getCallbackDuration(i), line, length);
+            line[length++] = '\n';
+            writer.write(line, 0, length);
+        }
+    }
+
+    /** Write the decimal digits of "value" to "buffer" at "offset", return the new offset. */
+    private static int formatInt(int value, char[] buffer, int offset) {
+        long remaining = value;
+        if (remaining < 0) {
+            buffer[offset++] = '-';
+            remaining = -remaining;
+        }
+        int start = offset;
+        do {
+            buffer[offset++] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        // the digits were written from the least significant one
+        for (int i = start, j = offset - 1; i < j; i++, j--) {
+            char digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
         }
+        return offset;
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (BufferCallback callback : this) {
-            sb.append(callback.timeStamp);
-            sb.append(",");
-            sb.append(callback.callbackDuration);
-            sb.append("\n");
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
         }
-        return sb.toString();
+        return writer.toString();
     }
 
     // True only if arrays are full and recording more late or early callbacks is attempted.
@@ -98,27 +207,9 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
         return mExpectedBufferPeriod;
     }
 
-    @Override
-    public Iterator<BufferCallback> iterator() {
-        return new Iterator<BufferCallback>() {
-            int mIteratorIndex = 0;
-
-            @Override
-            public boolean hasNext() {
-                return mIteratorIndex < mIndex;
-            }
-
-            @Override
-            public BufferCallback next() {
-                return new BufferCallback(mTimeStamps[mIteratorIndex],
-                        mCallbackDurations[mIteratorIndex++]);
-            }
-
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException("Buffer Time Stamps are Immutable");
-            }
-        };
+    /** Return the summaries of all the callbacks per window, or null if not available. */
+    public CallbackWindowStats getWindowStats() {
+        return mWindowStats;
     }
 
     @Override
@@ -126,30 +217,39 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
         return 0;
     }
 
+    // Only the recorded callbacks are saved, the capacity left is not restored.
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        int[] timeStamps = new int[mIndex];
+        short[] callbackDurations = new short[mIndex];
+        for (int i = 0; i < mIndex; i += CHUNK_SIZE) {
+            int length = Math.min(mIndex - i, CHUNK_SIZE);
+            System.arraycopy(mTimeStamps[i >> CHUNK_BITS], 0, timeStamps, i, length);
+            System.arraycopy(mCallbackDurations[i >> CHUNK_BITS], 0, callbackDurations, i,
+                             length);
+        }
+
         Bundle out = new Bundle();
-        out.putIntArray("mTimeStamps", mTimeStamps);
-        out.putShortArray("mCallbackDurations", mCallbackDurations);
+        out.putIntArray("mTimeStamps", timeStamps);
+        out.putShortArray("mCallbackDurations", callbackDurations);
         out.putShort("mExpectedBufferPeriod", mExpectedBufferPeriod);
         out.putBoolean("mExceededCapacity", mExceededCapacity);
-        out.putInt("mIndex", mIndex);
+        out.putParcelable("mWindowStats", mWindowStats);
         dest.writeBundle(out);
     }
 
-    private BufferCallbackTimes(Parcel source) {
-        Bundle in = source.readBundle(getClass().getClassLoader());
-        mTimeStamps = in.getIntArray("mTimeStamps");
-        mCallbackDurations = in.getShortArray("mCallbackDurations");
-        mExpectedBufferPeriod = in.getShort("mExpectedBufferPeriod");
-        mExceededCapacity = in.getBoolean("mExceededCapacity");
-        mIndex = in.getInt("mIndex");
+    private static BufferCallbackTimes readFromParcel(Parcel source) {
+        Bundle in = source.readBundle(BufferCallbackTimes.class.getClassLoader());
+        return new BufferCallbackTimes(in.getIntArray("mTimeStamps"),
+                in.getShortArray("mCallbackDurations"), in.getBoolean("mExceededCapacity"),
+                in.getShort("mExpectedBufferPeriod"),
+                (CallbackWindowStats) in.getParcelable("mWindowStats"));
     }
 
     public static final Parcelable.Creator<BufferCallbackTimes> CREATOR
              = new Parcelable.Creator<BufferCallbackTimes>() {
          public BufferCallbackTimes createFromParcel(Parcel in) {
-             return new BufferCallbackTimes(in);
+             return readFromParcel(in);
          }
 
          public BufferCallbackTimes[] newArray(int size) {
@@ -157,15 +257,4 @@ public class BufferCallbackTimes implements Iterable<BufferCallbackTimes.BufferC
          }
      };
 
-    /** Wrapper for iteration over timestamp and length pairs */
-    public class BufferCallback {
-        public final int timeStamp;
-        public final short callbackDuration;
-
-        BufferCallback(final int ts, final short cd) {
-            timeStamp = ts;
-            callbackDuration = cd;
-        }
-    }
-
 }
@@ -21,15 +21,17 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * This class records the buffer period of the audio player or recorder when in Java mode.
- * Currently the accuracy is in 1ms.
+ * The histogram of buffer periods is in microseconds, see LogLinearHistogram.
+ * While the test is running, the audio thread publishes a copy of the statistics every
+ * Constant.LIVE_STATS_INTERVAL_MS through a triple buffer, so getSnapshot() can be polled from
+ * another thread without locking the audio thread or allocating on it.
  */
 
-//TODO for native mode, should use a scale more accurate than the current 1ms
 public class BufferPeriod implements Parcelable {
     private static final String TAG = "BufferPeriod";
 
@@ -37,20 +39,33 @@ public class BufferPeriod implements Parcelable {
     private long mPreviousTimeNs = 0;
     private long mCurrentTimeNs = 0;
 
-    private int       mMeasurements = 0;
-    private long      mVar;     // variance in nanoseconds^2
-    private long      mSDM = 0; // sum of squares of deviations from the expected mean
-    private int       mMaxBufferPeriod = 0;
+    private RunningStats mStats = new RunningStats(); // of the buffer periods in ms
 
     private int       mCount = 0;
-    // Must match constant 'RANGE' in jni/loopback.h
-    private final int range = 1002; // store counts for 0ms to 1000ms, and for > 1000ms
     private int       mExpectedBufferPeriod = 0;
 
-    private int[] mBufferPeriod = new int[range];
+    private LogLinearHistogram mBufferPeriod = new LogLinearHistogram();
+    private StreamingQuantiles mQuantiles = new StreamingQuantiles(); // in ms
+    private double[]  mRestoredQuantiles; // estimates saved before a restore
     private BufferCallbackTimes mCallbackTimes;
     private CaptureHolder mCaptureHolder;
 
+    // Triple buffer of published statistics. The audio thread fills the back slot then swaps it
+    // with the middle one, flagged as fresh. getSnapshot() swaps the front slot with the middle
+    // one if it is fresh. Each side only ever touches the slot it holds.
+    private static final int FRESH = 4; // flag on mMiddleSlot, above the slot indices
+    private final Slot[]        mSlots = {new Slot(), new Slot(), new Slot()};
+    private int                 mBackSlot = 0;
+    private final AtomicInteger mMiddleSlot = new AtomicInteger(1);
+    private int                 mFrontSlot = 2;
+    private long                mPublishTimeNs; // last time the statistics were published
+
+    private static class Slot {
+        final int[]        mBufferPeriod = new int[LogLinearHistogram.BUCKETS];
+        final RunningStats mStats = new RunningStats();
+        boolean            mIsPublished = false;
+    }
+
     public BufferPeriod() {
         // Default constructor for when no data will be restored
     }
@@ -69,37 +84,25 @@ public class BufferPeriod implements Parcelable {
         }
 
         if (mPreviousTimeNs != 0 && mCount > Constant.BUFFER_PERIOD_DISCARD) {
-            mMeasurements++;
-
             long diffInNano = mCurrentTimeNs - mPreviousTimeNs;
-            // diffInMilli is rounded up
-            int diffInMilli = (int) ((diffInNano + Constant.NANOS_PER_MILLI - 1) /
-                                      Constant.NANOS_PER_MILLI);
-
             long timeStampInNano = mCurrentTimeNs - mStartTimeNs;
-            int timeStampInMilli = (int) ((timeStampInNano + Constant.NANOS_PER_MILLI - 1) /
-                                           Constant.NANOS_PER_MILLI);
 
-            if (diffInMilli > mMaxBufferPeriod) {
-                mMaxBufferPeriod = diffInMilli;
-            }
-
-            // from 0 ms to 1000 ms, plus a sum of all occurrences > 1000ms
-            if (diffInMilli >= (range - 1)) {
-                mBufferPeriod[range - 1]++;
-            } else if (diffInMilli >= 0) {
-                mBufferPeriod[diffInMilli]++;
-            } else { // for diffInMilli < 0
+            if (diffInNano >= 0) {
+                double diffInMilli = (double) diffInNano / Constant.NANOS_PER_MILLI;
+                mBufferPeriod.record(diffInNano);
+                mQuantiles.add(diffInMilli);
+                mStats.add(diffInMilli);
+            } else {
                 log("Having negative BufferPeriod.");
             }
 
-            long delta = diffInNano - (long) mExpectedBufferPeriod * Constant.NANOS_PER_MILLI;
-            mSDM += delta * delta;
-            if (mCount > 1) {
-                mVar = mSDM / mMeasurements;
-            }
+            mCallbackTimes.recordCallback(timeStampInNano, diffInNano);
 
-            mCallbackTimes.recordCallbackTime(timeStampInMilli, (short) diffInMilli);
+            if (mCurrentTimeNs - mPublishTimeNs >=
+                    (long) Constant.LIVE_STATS_INTERVAL_MS * Constant.NANOS_PER_MILLI) {
+                publish();
+                mPublishTimeNs = mCurrentTimeNs;
+            }
 
             // If diagnosing specific Java thread callback behavior set a conditional here and use
             // mCaptureHolder.captureState(rank); to capture systraces and bugreport and/or wav file
@@ -109,35 +112,91 @@ public class BufferPeriod implements Parcelable {
     }
 
 
+    /** Copy the statistics into the back slot and make it the fresh middle one. */
+    private void publish() {
+        Slot slot = mSlots[mBackSlot];
+        System.arraycopy(mBufferPeriod.getCounts(), 0, slot.mBufferPeriod, 0,
+                         LogLinearHistogram.BUCKETS);
+        slot.mStats.set(mStats);
+        slot.mIsPublished = true;
+        mBackSlot = mMiddleSlot.getAndSet(mBackSlot | FRESH) & ~FRESH;
+    }
+
+
+    /**
+     * Return the statistics last published by the audio thread, at most
+     * Constant.LIVE_STATS_INTERVAL_MS old while the test is running, or null if none was
+     * published yet. Must not be called from the audio thread.
+     */
+    public synchronized BufferPeriodSnapshot getSnapshot() {
+        if ((mMiddleSlot.get() & FRESH) != 0) {
+            mFrontSlot = mMiddleSlot.getAndSet(mFrontSlot) & ~FRESH;
+        }
+        Slot slot = mSlots[mFrontSlot];
+        if (!slot.mIsPublished) {
+            return null;
+        }
+        return new BufferPeriodSnapshot(slot.mBufferPeriod.clone(), slot.mStats.getCount(),
+                slot.mStats.getMean(), slot.mStats.getRmsDeviation(mExpectedBufferPeriod),
+                slot.mStats.getSkewness(), slot.mStats.getMax());
+    }
+
+
     /** Reset all variables, called if wants to start a new buffer period's record. */
     public void resetRecord() {
         mPreviousTimeNs = 0;
         mCurrentTimeNs = 0;
-        Arrays.fill(mBufferPeriod, 0);
-        mMaxBufferPeriod = 0;
-        mMeasurements = 0;
+        mBufferPeriod.reset();
+        mQuantiles.reset();
+        mRestoredQuantiles = null;
+        mStats.reset();
+        synchronized (this) {
+            for (Slot slot : mSlots) {
+                slot.mIsPublished = false;
+            }
+            mBackSlot = 0;
+            mMiddleSlot.set(1);
+            mFrontSlot = 2;
+        }
+        mPublishTimeNs = 0;
         mExpectedBufferPeriod = 0;
         mCount = 0;
         mCallbackTimes = null;
     }
 
-    public void prepareMemberObjects(int maxRecords, int expectedBufferPeriod,
+    public void prepareMemberObjects(int maxRecords, int expectedBufferPeriod, int maxWindows,
                                      CaptureHolder captureHolder) {
-        mCallbackTimes = new BufferCallbackTimes(maxRecords, expectedBufferPeriod);
+        mCallbackTimes = new BufferCallbackTimes(maxRecords, expectedBufferPeriod, maxWindows);
         mCaptureHolder = captureHolder;
         mExpectedBufferPeriod = expectedBufferPeriod;
     }
 
+    /** Return the counts of the buffer period histogram, see LogLinearHistogram. */
     public int[] getBufferPeriodArray() {
-        return mBufferPeriod;
+        return mBufferPeriod.getCounts();
+    }
+
+    /** Return the estimates of StreamingQuantiles.QUANTILES of the buffer period in ms. */
+    public double[] getBufferPeriodQuantiles() {
+        if (mRestoredQuantiles != null) {
+            return mRestoredQuantiles;
+        }
+        return mQuantiles.getQuantiles();
+    }
+
+    /** Return the statistics of the buffer periods in ms. */
+    public RunningStats getBufferPeriodStats() {
+        return mStats;
     }
 
+    /** Return the root mean square of the deviations from the expected buffer period in ms. */
     public double getStdDevBufferPeriod() {
-        return Math.sqrt(mVar) / (double) Constant.NANOS_PER_MILLI;
+        return mStats.getRmsDeviation(mExpectedBufferPeriod);
     }
 
+    /** Return the longest buffer period in ms, rounded up. */
     public int getMaxBufferPeriod() {
-        return mMaxBufferPeriod;
+        return (int) Math.ceil(mStats.getMax());
     }
 
     public BufferCallbackTimes getCallbackTimes() {
@@ -154,8 +213,9 @@ public class BufferPeriod implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         Bundle out = new Bundle();
-        out.putInt("mMaxBufferPeriod", mMaxBufferPeriod);
-        out.putIntArray("mBufferPeriod", mBufferPeriod);
+        out.putParcelable("mStats", mStats);
+        out.putIntArray("mBufferPeriod", mBufferPeriod.getCounts());
+        out.putDoubleArray("mQuantiles", getBufferPeriodQuantiles());
         out.putInt("mExpectedBufferPeriod", mExpectedBufferPeriod);
         out.putParcelable("mCallbackTimes", mCallbackTimes);
         dest.writeBundle(out);
@@ -163,8 +223,9 @@ public class BufferPeriod implements Parcelable {
 
     private BufferPeriod(Parcel source) {
         Bundle in = source.readBundle(getClass().getClassLoader());
-        mMaxBufferPeriod = in.getInt("mMaxBufferPeriod");
-        mBufferPeriod = in.getIntArray("mBufferPeriod");
+        mStats = in.getParcelable("mStats");
+        mBufferPeriod = new LogLinearHistogram(in.getIntArray("mBufferPeriod"));
+        mRestoredQuantiles = in.getDoubleArray("mQuantiles");
         mExpectedBufferPeriod = in.getInt("mExpectedBufferPeriod");
         mCallbackTimes = in.getParcelable("mCallbackTimes");
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.util.Locale;
+
+
+/**
+ * A consistent copy of the buffer period statistics taken while a test is running, see
+ * BufferPeriod.getSnapshot() and NativeAudioThread.getRecorderBufferPeriodSnapshot().
+ * It is never modified once created, so it can be passed between threads.
+ */
+
+public class BufferPeriodSnapshot {
+    private final int[]  mBufferPeriod; // counts of a LogLinearHistogram
+    private final long   mCount;
+    private final double mMeanMs;
+    private final double mStdDevMs;  // from the expected buffer period
+    private final double mSkewness;
+    private final double mMaxMs;
+
+
+    /** Also called from native code, see jni_native.c. */
+    public BufferPeriodSnapshot(int[] bufferPeriod, long count, double meanMs, double stdDevMs,
+                                double skewness, double maxMs) {
+        mBufferPeriod = bufferPeriod;
+        mCount = count;
+        mMeanMs = meanMs;
+        mStdDevMs = stdDevMs;
+        mSkewness = skewness;
+        mMaxMs = maxMs;
+    }
+
+
+    /** Return the counts of the buffer period histogram, see LogLinearHistogram. */
+    public int[] getBufferPeriodArray() {
+        return mBufferPeriod.clone();
+    }
+
+
+    public long getCount() {
+        return mCount;
+    }
+
+
+    public double getMeanMs() {
+        return mMeanMs;
+    }
+
+
+    /** Return the root mean square of the deviations from the expected buffer period in ms. */
+    public double getStdDevMs() {
+        return mStdDevMs;
+    }
+
+
+    public double getSkewness() {
+        return mSkewness;
+    }
+
+
+    public double getMaxMs() {
+        return mMaxMs;
+    }
+
+
+    /** Return the "fraction" quantile in ms (0.99 for p99), at the resolution of the histogram. */
+    public double getPercentileMs(double fraction) {
+        return new LogLinearHistogram(mBufferPeriod).getPercentileUs(fraction) /
+               Constant.MICROS_PER_MILLI;
+    }
+
+
+    /** Return a one line summary, such as "Recorder: 1000 periods, mean 10.01 ms, ...". */
+    public String getSummary(String name) {
+        return String.format(Locale.US, "%s: %d periods, mean %.2f ms, std dev %.2f ms, " +
+                "p99 %.2f ms, max %.2f ms", name, mCount, mMeanMs, mStdDevMs,
+                getPercentileMs(0.99), mMaxMs);
+    }
+}
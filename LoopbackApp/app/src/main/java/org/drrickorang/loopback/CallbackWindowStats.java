@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * Summaries of the callbacks of the player or recorder per window of Constant.CALLBACK_WINDOW_MS:
+ * number of callbacks, number of late or early callbacks, minimum, maximum and p99 duration.
+ * Unlike BufferCallbackTimes, which stops recording once its arrays are full, every callback is
+ * counted. The windows are preallocated for the duration of the test, up to
+ * Constant.MAX_CALLBACK_WINDOWS. A test outlasting them merges pairs of windows into windows
+ * twice as long, so the whole test stays covered and the memory stays bounded. The p99 of a
+ * merged window is the largest of the two, an upper bound.
+ * Native code fills the same layout, see callbackWindows in loopback.h.
+ */
+
+public class CallbackWindowStats implements Parcelable {
+    private int           mWindowMs;
+    private final short[] mCounts;
+    private final short[] mLateCounts;
+    private final int[]   mMinUs;
+    private final int[]   mMaxUs;
+    private final int[]   mP99Us;
+    private int           mWindowCount; // windows started so far
+
+    // callbacks of the window in progress, its p99 is only stored once the window is over
+    private LogLinearHistogram mCurrentWindow;
+
+
+    public CallbackWindowStats(int maxWindows, int windowMs) {
+        mWindowMs = windowMs;
+        mCounts = new short[maxWindows];
+        mLateCounts = new short[maxWindows];
+        mMinUs = new int[maxWindows];
+        mMaxUs = new int[maxWindows];
+        mP99Us = new int[maxWindows];
+        mCurrentWindow = new LogLinearHistogram();
+    }
+
+
+    /** Wrap windows recorded by native code, the p99 of the last window is already stored. */
+    public CallbackWindowStats(int windowMs, int windowCount, short[] counts, short[] lateCounts,
+                               int[] minUs, int[] maxUs, int[] p99Us) {
+        mWindowMs = windowMs;
+        mWindowCount = windowCount;
+        mCounts = counts;
+        mLateCounts = lateCounts;
+        mMinUs = minUs;
+        mMaxUs = maxUs;
+        mP99Us = p99Us;
+    }
+
+
+    /**
+     * Count a callback lasting "durationNs" which happened "timeStampNs" after the start of the
+     * test. Time stamps must not decrease.
+     */
+    public void record(long timeStampNs, long durationNs, boolean isLateOrEarly) {
+        long window = timeStampNs / ((long) mWindowMs * Constant.NANOS_PER_MILLI);
+        while (window >= mCounts.length) {
+            fold();
+            window = timeStampNs / ((long) mWindowMs * Constant.NANOS_PER_MILLI);
+        }
+        if (window >= mWindowCount) {
+            startWindow((int) window);
+        }
+
+        int slot = (int) window;
+        int durationUs = (int) Math.min(durationNs / Constant.NANOS_PER_MICRO, Integer.MAX_VALUE);
+        if (mCounts[slot] == 0 || durationUs < mMinUs[slot]) {
+            mMinUs[slot] = durationUs;
+        }
+        if (durationUs > mMaxUs[slot]) {
+            mMaxUs[slot] = durationUs;
+        }
+        if (mCounts[slot] < Short.MAX_VALUE) {
+            mCounts[slot]++;
+        }
+        if (isLateOrEarly && mLateCounts[slot] < Short.MAX_VALUE) {
+            mLateCounts[slot]++;
+        }
+        mCurrentWindow.record(durationNs);
+    }
+
+
+    /** Close the window in progress and clear the slots up to "window", skipped ones stay 0. */
+    private void startWindow(int window) {
+        storeCurrentPercentile();
+        mCurrentWindow.reset();
+
+        for (int slot = mWindowCount; slot <= window; slot++) {
+            mCounts[slot] = 0;
+            mLateCounts[slot] = 0;
+            mMinUs[slot] = 0;
+            mMaxUs[slot] = 0;
+            mP99Us[slot] = 0;
+        }
+        mWindowCount = window + 1;
+    }
+
+
+    /**
+     * Merge every pair of windows into one twice as long. The window in progress keeps its
+     * histogram, its merged p99 is combined with it once the window is over.
+     */
+    private void fold() {
+        storeCurrentPercentile();
+        int windowCount = (mWindowCount + 1) / 2;
+        for (int slot = 0; slot < windowCount; slot++) {
+            int first = 2 * slot;
+            int second = first + 1;
+            short count = mCounts[first];
+            short lateCount = mLateCounts[first];
+            int minUs = mMinUs[first];
+            int maxUs = mMaxUs[first];
+            int p99Us = mP99Us[first];
+            if (second < mWindowCount) {
+                if (count == 0 || (mCounts[second] != 0 && mMinUs[second] < minUs)) {
+                    minUs = mMinUs[second];
+                }
+                count = (short) Math.min(count + mCounts[second], Short.MAX_VALUE);
+                lateCount = (short) Math.min(lateCount + mLateCounts[second], Short.MAX_VALUE);
+                maxUs = Math.max(maxUs, mMaxUs[second]);
+                p99Us = Math.max(p99Us, mP99Us[second]);
+            }
+            mCounts[slot] = count;
+            mLateCounts[slot] = lateCount;
+            mMinUs[slot] = minUs;
+            mMaxUs[slot] = maxUs;
+            mP99Us[slot] = p99Us;
+        }
+        mWindowCount = windowCount;
+        mWindowMs *= 2;
+    }
+
+
+    private void storeCurrentPercentile() {
+        if (mCurrentWindow != null && mWindowCount > 0) {
+            mP99Us[mWindowCount - 1] = getCurrentPercentile();
+        }
+    }
+
+
+    /** Return the p99 of the window in progress, which may already hold a merged window's. */
+    private int getCurrentPercentile() {
+        return Math.max(mP99Us[mWindowCount - 1], (int) mCurrentWindow.getPercentileUs(0.99));
+    }
+
+
+    /** Return the length of the windows, longer than Constant.CALLBACK_WINDOW_MS once merged. */
+    public int getWindowMs() {
+        return mWindowMs;
+    }
+
+
+    /** Return the number of windows since the start of the test, the last one may be partial. */
+    public int getWindowCount() {
+        return mWindowCount;
+    }
+
+
+    // The following getters take a window between 0 and getWindowCount() - 1.
+
+    public int getCount(int window) {
+        return mCounts[window];
+    }
+
+
+    public int getLateCount(int window) {
+        return mLateCounts[window];
+    }
+
+
+    public int getMinUs(int window) {
+        return mMinUs[window];
+    }
+
+
+    public int getMaxUs(int window) {
+        return mMaxUs[window];
+    }
+
+
+    public int getP99Us(int window) {
+        if (window == mWindowCount - 1 && mCurrentWindow != null) {
+            return getCurrentPercentile();
+        }
+        return mP99Us[window];
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        storeCurrentPercentile();
+        Bundle out = new Bundle();
+        out.putInt("mWindowMs", mWindowMs);
+        out.putInt("mWindowCount", mWindowCount);
+        out.putShortArray("mCounts", mCounts);
+        out.putShortArray("mLateCounts", mLateCounts);
+        out.putIntArray("mMinUs", mMinUs);
+        out.putIntArray("mMaxUs", mMaxUs);
+        out.putIntArray("mP99Us", mP99Us);
+        dest.writeBundle(out);
+    }
+
+
+    private CallbackWindowStats(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mWindowMs = in.getInt("mWindowMs");
+        mWindowCount = in.getInt("mWindowCount");
+        mCounts = in.getShortArray("mCounts");
+        mLateCounts = in.getShortArray("mLateCounts");
+        mMinUs = in.getIntArray("mMinUs");
+        mMaxUs = in.getIntArray("mMaxUs");
+        mP99Us = in.getIntArray("mP99Us");
+    }
+
+
+    public static final Parcelable.Creator<CallbackWindowStats> CREATOR
+             = new Parcelable.Creator<CallbackWindowStats>() {
+         public CallbackWindowStats createFromParcel(Parcel in) {
+             return new CallbackWindowStats(in);
+         }
+
+         public CallbackWindowStats[] newArray(int size) {
+             return new CallbackWindowStats[size];
+         }
+     };
+
+}
@@ -24,6 +24,8 @@ package org.drrickorang.loopback;
 public class Constant {
     public static final double TWO_PI = 2.0 * Math.PI;
     public static final long   NANOS_PER_MILLI = 1000000;
+    public static final long   NANOS_PER_MICRO = 1000;
+    public static final int    MICROS_PER_MILLI = 1000;
     public static final int    MILLIS_PER_SECOND = 1000;
     public static final int    SECONDS_PER_HOUR = 3600;
 
@@ -42,7 +44,10 @@ public class Constant {
 
     public static final int BYTES_PER_SHORT = 2;
     public static final int SHORTS_PER_INT = 2;
+    public static final int SHORTS_PER_LONG = 4;
     // FIXME Assumes 16-bit and mono, will not work for other bit depths or multi-channel.
+    // Buffer sizes are always expressed in 16-bit frames, the buffer test converts them with
+    // Utilities.getBytesPerSample() when it records another sample format.
     public static final int BYTES_PER_FRAME = 2;    // bytes per sample
 
     // prime numbers that don't overlap with FFT frequencies
@@ -55,6 +60,8 @@ public class Constant {
 
     // the number used to configured PipeShort/PipeByteBuffer
     public static final int MAX_SHORTS = 65536;
+    // how many overrun timestamps a PipeHealth keeps
+    public static final int PIPE_HEALTH_MAX_OVERRUN_EVENTS = 32;
 
     // used to identify a variable is currently unknown
     public static final int UNKNOWN = -1;
@@ -62,15 +69,42 @@ public class Constant {
     // used when joining a thread
     public static final int JOIN_WAIT_TIME_MS = 1000;
 
+    // Detectors GlitchDetectionThread can use
+    public static final int GLITCH_DETECTOR_FFT = 0;
+    public static final int GLITCH_DETECTOR_GOERTZEL = 1;
+    public static final int GLITCH_DETECTOR_RESIDUAL = 2;
+
+    // Methods Correlation can use to estimate the round trip latency
+    public static final int CORRELATION_METHOD_AUTOCORRELATION = 0;
+    public static final int CORRELATION_METHOD_MATCHED_FILTER = 1;
+    public static final int CORRELATION_METHOD_HIERARCHICAL = 2;
+    // matched filter fed while recording, the latency test stops once the echo is found
+    public static final int CORRELATION_METHOD_STREAMING = 3;
+    // divide by the stimulus spectrum, meant for the sweep and MLS stimuli
+    public static final int CORRELATION_METHOD_DECONVOLUTION = 4;
+    public static final double STREAMING_CORRELATION_MIN_CONFIDENCE = 0.9;
+
     // Loopback on Java thread test audio tone constants
     public static final int LOOPBACK_SAMPLE_FRAMES = 300;
     public static final double LOOPBACK_AMPLITUDE = 0.95;
     public static final int LOOPBACK_FREQUENCY = 4000;
+    // stimulus injected in the latency test
+    public static final int LATENCY_STIMULUS_TONE = 0;
+    public static final int LATENCY_STIMULUS_LOG_SWEEP = 1;
+    public static final int LATENCY_STIMULUS_MLS = 2;
+    // sweeps and MLS trade a longer stimulus for processing gain in the deconvolution
+    public static final int LATENCY_STIMULUS_FRAMES = 4096;
+    public static final double LATENCY_SWEEP_START_FREQUENCY = 100;
+    public static final double LATENCY_SWEEP_END_FREQUENCY = 16000;
+    public static final int LATENCY_MLS_ORDER = 12;
+    // distance between impulses of a multi-impulse latency test, long enough for echoes to fade
+    public static final int LATENCY_TEST_IMPULSE_SPACING_MS = 500;
 
     // Settings Activity and ADB constants
     public static final int SAMPLING_RATE_MAX = 48000;
     public static final int SAMPLING_RATE_MIN = 8000;
-    public static final int CORRELATION_BLOCK_SIZE_MAX = 8192;
+    // correlation is computed through FFT, so the block may cover a full-rate 2 second capture
+    public static final int CORRELATION_BLOCK_SIZE_MAX = 131072;
     public static final int CORRELATION_BLOCK_SIZE_MIN = 2048;
     public static final int DEFAULT_CORRELATION_BLOCK_SIZE = 4096;
     public static final int PLAYER_BUFFER_FRAMES_MAX = 8000;
@@ -86,13 +120,60 @@ public class Constant {
     public static final int MIN_NUM_CAPTURES = 1;
     public static final int MAX_NUM_CAPTURES = 100;
     public static final int DEFAULT_NUM_CAPTURES = 5;
+    public static final int MIN_LATENCY_TEST_IMPULSES = 1;
+    public static final int MAX_LATENCY_TEST_IMPULSES = 100;
+    public static final int DEFAULT_LATENCY_TEST_IMPULSES = 1;
     public static final int MIN_IGNORE_FIRST_FRAMES = 0;
     // impulse happens after 300 ms and shouldn't be ignored
     public static final int MAX_IGNORE_FIRST_FRAMES = SAMPLING_RATE_MAX * 3 / 10;
     public static final int DEFAULT_IGNORE_FIRST_FRAMES = 0;
 
-    // Controls size of pre allocated timestamp arrays
+    // Controls size of pre allocated timestamp arrays, in Java this is only an upper bound and
+    // they grow by CALLBACK_TIMES_CHUNK_SIZE records as needed
     public static final int MAX_RECORDED_LATE_CALLBACKS_PER_SECOND = 2;
+    public static final int CALLBACK_TIMES_CHUNK_BITS = 10;
+    public static final int CALLBACK_TIMES_CHUNK_SIZE = 1 << CALLBACK_TIMES_CHUNK_BITS;
+    // Memory budget of the late callback arrays of each of the recorder and the player, whatever
+    // the test duration. A record is an int time stamp and a short length.
+    public static final int CALLBACK_TIMES_MAX_BYTES = 256 * 1024;
+    public static final int MAX_RECORDED_LATE_CALLBACKS = CALLBACK_TIMES_MAX_BYTES /
+            (Integer.SIZE / Byte.SIZE + Short.SIZE / Byte.SIZE);
+    // Callback summaries are kept per window for the whole test, see CallbackWindowStats. Past
+    // MAX_CALLBACK_WINDOWS (16 bytes each, 128 KB for each of the recorder and the player) pairs
+    // of windows are merged, a 10 hour test ends with 8 second windows.
+    // Must match CALLBACK_WINDOW_MS, CALLBACK_WINDOWS_EXTRA and MAX_CALLBACK_WINDOWS in
+    // jni/loopback.h
+    public static final int CALLBACK_WINDOW_MS = 1000;
+    public static final int CALLBACK_WINDOWS_EXTRA = 60; // in case the test runs a bit longer
+    public static final int MAX_CALLBACK_WINDOWS = 8192;
     // Ignore first few buffer callback periods
     public static final int BUFFER_PERIOD_DISCARD = 10;
+
+    // Periodic late callbacks, see JitterSpectrum
+    public static final int    JITTER_GRID_MS = 50;
+    public static final int    JITTER_FFT_SIZE_MAX = 1 << 16;
+    public static final int    JITTER_MIN_CELLS = 64;
+    public static final int    JITTER_MIN_REPETITIONS = 3;
+    public static final double JITTER_PEAK_MIN_RATIO = 10; // 20 dB over the median
+    public static final double JITTER_FUNDAMENTAL_MIN_RATIO = 4;
+    public static final double JITTER_FUNDAMENTAL_MIN_HARMONIC_RATIO = 0.5;
+    public static final int    JITTER_HARMONICS = 8;
+    public static final double JITTER_HARMONIC_MIN_RATIO = 4; // a median of bins varies less
+    public static final int    JITTER_ENVELOPE_HARMONICS = 2; // on each side of a multiple
+    public static final double JITTER_ENVELOPE_MIN_RATIO = 2;
+    public static final double JITTER_DYNAMIC_RANGE = 1e-3; // 60 dB
+    public static final int    JITTER_PEAK_HALF_WIDTH = 8; // in bins
+    public static final double JITTER_BIN_ERROR = 0.5; // on the frequency of a peak, in bins
+    public static final int    JITTER_MAX_COMPONENTS = 3;
+
+    // Coupling of recorder stalls, player stalls and glitches, see StallCoupling
+    public static final int    STALL_COINCIDENCE_MARGIN_MS = 20;
+    public static final int    STALL_MAX_LAG_MS = 200;
+    public static final int    STALL_LAG_BIN_MS = 5;
+    public static final int    STALL_LAG_MIN_PAIRS = 5;
+    public static final double STALL_LAG_MIN_RATIO = 4; // over the pairs expected by chance
+
+    // Statistics published while a buffer test is running, see BufferPeriodSnapshot
+    public static final int    LIVE_STATS_INTERVAL_MS = 1000;
+    public static final int    LIVE_STATS_MAX_RETRIES = 100; // of a native snapshot
 }
@@ -21,6 +21,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 
 /**
  * This class is used to automatically estimate latency and its confidence.
@@ -29,6 +32,14 @@ import android.util.Log;
 public class Correlation implements Parcelable {
     private static final String TAG = "Correlation";
 
+    // lags on each side of the previous estimate evaluated per level of the hierarchical search
+    private static final int HIERARCHICAL_SEARCH_RADIUS = 3;
+
+    // fraction of the peak stimulus power added to the denominator of the deconvolution
+    private static final double DECONVOLUTION_REGULARIZATION = 0.001;
+    private static final double FREQUENCY_RESPONSE_WINDOW_MS = 20;
+    private static final double FREQUENCY_RESPONSE_LOWEST_BAND_HZ = 125;
+
     private int       mBlockSize = Constant.DEFAULT_CORRELATION_BLOCK_SIZE;
     private int       mSamplingRate;
     private double [] mDataDownsampled;
@@ -39,9 +50,20 @@ public class Correlation implements Parcelable {
     public double mEstimatedLatencyConfidence = 0.0;
     public double mAverage = 0.0;
     public double mRms = 0.0;
+    // latency measured for each impulse of a multi-impulse test, sorted, null otherwise
+    public double [] mImpulseLatenciesMs;
+    // round trip frequency response in octave bands, only computed by the deconvolution
+    public double [] mFrequencyResponseHz;
+    public double [] mFrequencyResponseDb;
 
     private double mAmplitudeThreshold = 0.001;  // 0.001 = -60 dB noise
 
+    private int       mMethod = Constant.CORRELATION_METHOD_AUTOCORRELATION;
+    private double [] mTemplate; // the injected tone, used by the matched filter
+    private StreamingCorrelation mStreamingCorrelation; // estimate made while recording
+    private int       mImpulseCount = 1;
+    private int       mImpulseSpacingSamples;
+
     private boolean mDataIsValid = false; // Used to mark computed latency information is available
 
     public Correlation() {
@@ -55,42 +77,175 @@ public class Correlation implements Parcelable {
     }
 
     public void computeCorrelation(double [] data, int samplingRate) {
+        mFrequencyResponseHz = null;
+        mFrequencyResponseDb = null;
+        if (mImpulseCount > 1 && mImpulseSpacingSamples > 0) {
+            computeMultiImpulseCorrelation(data, samplingRate);
+        } else if (mMethod == Constant.CORRELATION_METHOD_STREAMING &&
+                mStreamingCorrelation != null && mStreamingCorrelation.isConverged()) {
+            mImpulseLatenciesMs = null;
+            useStreamingCorrelation(mStreamingCorrelation);
+        } else {
+            mImpulseLatenciesMs = null;
+            computeSingleCorrelation(data, samplingRate);
+        }
+    }
+
+    /**
+     * Estimate the latency of every impulse of a multi-impulse test separately. Impulse k is
+     * injected mImpulseSpacingSamples * k samples after the first one, so each segment of the
+     * recording only holds one impulse and its echoes. The reported latency is the median.
+     */
+    private void computeMultiImpulseCorrelation(double [] data, int samplingRate) {
+        log("Started Multi Impulse Correlation for " + mImpulseCount + " impulses");
+        double[] latencies = new double[mImpulseCount];
+        double[] confidences = new double[mImpulseCount];
+        double average = 0;
+        double rms = 0;
+        int valid = 0;
+
+        for (int k = 0; k < mImpulseCount; k++) {
+            int start = k * mImpulseSpacingSamples;
+            int end = (k == mImpulseCount - 1) ? data.length : start + mImpulseSpacingSamples;
+            if (start >= data.length) {
+                break;
+            }
+
+            computeSingleCorrelation(Arrays.copyOfRange(data, start, end), samplingRate);
+            if (mDataIsValid) {
+                latencies[valid] = mEstimatedLatencyMs;
+                confidences[valid] = mEstimatedLatencyConfidence;
+                average += mAverage;
+                rms += mRms;
+                valid++;
+            }
+            log(String.format(" impulse %d: %.2f ms", k, mEstimatedLatencyMs));
+        }
+
+        mImpulseLatenciesMs = Arrays.copyOf(latencies, valid);
+        Arrays.sort(mImpulseLatenciesMs);
+        mDataIsValid = valid > 0;
+        if (mDataIsValid) {
+            double[] sortedConfidences = Arrays.copyOf(confidences, valid);
+            Arrays.sort(sortedConfidences);
+            mEstimatedLatencyMs = getLatencyPercentileMs(50);
+            mEstimatedLatencySamples = mEstimatedLatencyMs * mSamplingRate / 1000;
+            mEstimatedLatencyConfidence = percentile(sortedConfidences, 50);
+            mAverage = average / valid;
+            mRms = rms / valid;
+        } else {
+            mEstimatedLatencyMs = 0;
+            mEstimatedLatencySamples = 0;
+            mEstimatedLatencyConfidence = 0;
+        }
+        log(String.format(" %d/%d impulses valid, median latency %.2f ms", valid, mImpulseCount,
+                          mEstimatedLatencyMs));
+    }
+
+    /**
+     * Return the given percentile (0 - 100) of the per-impulse latencies of a multi-impulse
+     * test, or 0 if there are none.
+     */
+    public double getLatencyPercentileMs(double percentile) {
+        if (mImpulseLatenciesMs == null) {
+            return 0;
+        }
+        return percentile(mImpulseLatenciesMs, percentile);
+    }
+
+    /** Return the percentile of sorted values, interpolating linearly between ranks. */
+    private static double percentile(double [] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        double rank = Math.max(Math.min(percentile, 100), 0) / 100 * (sorted.length - 1);
+        int lower = (int) rank;
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        return sorted[lower] + (rank - lower) * (sorted[upper] - sorted[lower]);
+    }
+
+    /** Take the estimate of a streaming correlation which stopped the test early. */
+    private void useStreamingCorrelation(StreamingCorrelation streaming) {
+        log("Using streaming correlation estimate");
+        mSamplingRate = streaming.getSamplingRate();
+        mEstimatedLatencySamples = streaming.getLatencySamples();
+        mEstimatedLatencyMs = mEstimatedLatencySamples * 1000 / mSamplingRate;
+        mEstimatedLatencyConfidence = streaming.getConfidence();
+        mAverage = streaming.getAverage();
+        mRms = streaming.getRms();
+        log(String.format(" latencySamples: %.2f  %.2f ms", mEstimatedLatencySamples,
+                          mEstimatedLatencyMs));
+
+        mDataIsValid = mEstimatedLatencyMs > 0.0001;
+    }
+
+    private void computeSingleCorrelation(double [] data, int samplingRate) {
+        // a streaming test that didn't converge falls back to the full matched filter
+        if ((mMethod == Constant.CORRELATION_METHOD_MATCHED_FILTER ||
+                mMethod == Constant.CORRELATION_METHOD_STREAMING) && mTemplate != null) {
+            computeMatchedFilterCorrelation(data, samplingRate);
+            return;
+        } else if (mMethod == Constant.CORRELATION_METHOD_DECONVOLUTION && mTemplate != null) {
+            computeDeconvolutionCorrelation(data, samplingRate);
+            return;
+        } else if (mMethod == Constant.CORRELATION_METHOD_HIERARCHICAL) {
+            computeHierarchicalCorrelation(data, samplingRate);
+            return;
+        }
+
         log("Started Auto Correlation for data with " + data.length + " points");
         mSamplingRate = samplingRate;
-        mDataDownsampled = new double [mBlockSize];
-        mDataAutocorrelated = new double[mBlockSize];
+        int N = data.length; //all samples available
+        // a block larger than the data would only add empty bins, use full-rate samples instead
+        int blockSize = Math.min(mBlockSize, N);
+        mDataDownsampled = new double [blockSize];
+        mDataAutocorrelated = new double[blockSize];
         downsampleData(data, mDataDownsampled, mAmplitudeThreshold);
 
         //correlation vector
         autocorrelation(mDataDownsampled, mDataAutocorrelated);
 
 
-        int N = data.length; //all samples available
-        double groupSize =  (double) N / mBlockSize;  //samples per downsample point.
-
-        double maxValue = 0;
-        int maxIndex = -1;
+        double groupSize =  (double) N / blockSize;  //samples per downsample point.
 
         double minLatencyMs = 8; //min latency expected. This algorithm should be improved.
         int minIndex = (int) (0.5 + minLatencyMs * mSamplingRate / (groupSize * 1000));
 
+        int maxIndex = findAutocorrelationPeak(mDataAutocorrelated, minIndex);
+
+        mEstimatedLatencySamples = maxIndex * groupSize;
+        mEstimatedLatencyMs = mEstimatedLatencySamples * 1000 / mSamplingRate;
+        log(String.format(" latencySamples: %.2f  %.2f ms", mEstimatedLatencySamples,
+                          mEstimatedLatencyMs));
+
+        mDataIsValid = mEstimatedLatencyMs > 0.0001;
+    }
+
+    /**
+     * Return the index of the autocorrelation peak at or after minIndex, and update the average,
+     * rms and confidence from the autocorrelation values.
+     */
+    private int findAutocorrelationPeak(double [] autocorrelated, int minIndex) {
+        double maxValue = 0;
+        int maxIndex = -1;
+
         double average = 0;
         double rms = 0;
 
         //find max
-        for (int i = minIndex; i < mDataAutocorrelated.length; i++) {
-            average += mDataAutocorrelated[i];
-            rms += mDataAutocorrelated[i] * mDataAutocorrelated[i];
-           if (mDataAutocorrelated[i] > maxValue) {
-               maxValue = mDataAutocorrelated[i];
+        for (int i = minIndex; i < autocorrelated.length; i++) {
+            average += autocorrelated[i];
+            rms += autocorrelated[i] * autocorrelated[i];
+           if (autocorrelated[i] > maxValue) {
+               maxValue = autocorrelated[i];
                maxIndex = i;
            }
         }
 
-        rms = Math.sqrt(rms / mDataAutocorrelated.length);
-        average = average / mDataAutocorrelated.length;
-        log(String.format(" Maxvalue %f, max Index : %d/%d (%d)  minIndex = %d", maxValue, maxIndex,
-                          mDataAutocorrelated.length, data.length, minIndex));
+        rms = Math.sqrt(rms / autocorrelated.length);
+        average = average / autocorrelated.length;
+        log(String.format(" Maxvalue %f, max Index : %d/%d  minIndex = %d", maxValue, maxIndex,
+                          autocorrelated.length, minIndex));
         log(String.format("  average : %.3f  rms: %.3f", average, rms));
 
         mAverage = average;
@@ -106,14 +261,442 @@ public class Correlation implements Parcelable {
         }
         log(String.format(" ****Confidence: %.2f", mEstimatedLatencyConfidence));
 
-        mEstimatedLatencySamples = maxIndex * groupSize;
+        return maxIndex;
+    }
+
+
+    /**
+     * Estimate latency with a coarse-to-fine search. The abs envelope of the data is decimated
+     * by two repeatedly until it fits in the correlation block, and the full autocorrelation is
+     * only computed at that coarsest level. Every finer level then evaluates the few lags around
+     * the previous estimate, so the final result is sample accurate at full rate. The lags are
+     * only correlated around the pair of lobes that contributes most to the coarse peak, so the
+     * finer levels don't read the whole envelope.
+     */
+    private void computeHierarchicalCorrelation(double [] data, int samplingRate) {
+        log("Started Hierarchical Correlation for data with " + data.length + " points");
+        mSamplingRate = samplingRate;
+        int N = data.length;
+
+        // level 0 is the full-rate envelope, each following level halves the resolution
+        ArrayList<double[]> pyramid = new ArrayList<double[]>();
+        double[] level = new double[N];
+        for (int i = 0; i < N; i++) {
+            double value = Math.abs(data[i]);
+            if (value >= mAmplitudeThreshold) {
+                level[i] = value;
+            }
+        }
+        pyramid.add(level);
+        while (level.length > mBlockSize) {
+            double[] next = new double[(level.length + 1) / 2];
+            for (int i = 0; i < level.length; i++) {
+                next[i / 2] += level[i];
+            }
+            pyramid.add(next);
+            level = next;
+        }
+
+        int top = pyramid.size() - 1;
+        double[] coarse = pyramid.get(top);
+        mDataAutocorrelated = new double[coarse.length];
+        autocorrelation(coarse, mDataAutocorrelated);
+
+        double minLatencyMs = 8; //min latency expected.
+        int minIndex = (int) (0.5 + minLatencyMs * mSamplingRate / ((1 << top) * 1000.0));
+        int lag = findAutocorrelationPeak(mDataAutocorrelated, minIndex);
+
+        mEstimatedLatencySamples = 0;
+        if (lag > 0) {
+            double[] window = new double[2 * HIERARCHICAL_SEARCH_RADIUS + 1];
+            int windowStart = 0;
+            int position = Math.max(findLagProductPeak(coarse, lag, 0, coarse.length), 0);
+            int toneLength = mTemplate != null ? mTemplate.length :
+                    lagProductLobeWidth(coarse, lag, position) << top;
+            for (int l = top - 1; l >= 0; l--) {
+                double[] envelope = pyramid.get(l);
+                windowStart = Math.max(2 * lag - HIERARCHICAL_SEARCH_RADIUS, 1);
+                // the tone at this level plus the uncertainty of the position from the level above
+                int halfWidth = (toneLength >> l) + 2 * HIERARCHICAL_SEARCH_RADIUS;
+                int from = Math.max(2 * position - halfWidth, 0);
+                int to = Math.min(2 * position + halfWidth, envelope.length);
+                int best = -1;
+                for (int i = 0; i < window.length; i++) {
+                    window[i] = lagProduct(envelope, windowStart + i, from, to);
+                    if (best < 0 || window[i] > window[best]) {
+                        best = i;
+                    }
+                }
+                lag = windowStart + best;
+                int peak = findLagProductPeak(envelope, lag, from, to);
+                position = peak >= 0 ? peak : 2 * position;
+                log(String.format(" level %d: lag %d at %d", l, lag, position));
+            }
+
+            if (top > 0) {
+                mEstimatedLatencySamples = windowStart + interpolatePeak(window, lag - windowStart);
+            } else {
+                mEstimatedLatencySamples = interpolatePeak(mDataAutocorrelated, lag);
+            }
+        }
+
+        mEstimatedLatencyMs = mEstimatedLatencySamples * 1000 / mSamplingRate;
+        log(String.format(" latencySamples: %.2f  %.2f ms", mEstimatedLatencySamples,
+                          mEstimatedLatencyMs));
+
+        mDataIsValid = mEstimatedLatencyMs > 0.0001;
+    }
+
+
+    /**
+     * Return the (not circular) correlation of "data" with itself delayed by "lag" samples,
+     * summed over the undelayed samples in [start, end).
+     */
+    private static double lagProduct(double [] data, int lag, int start, int end) {
+        double sum = 0;
+        for (int j = start; j < Math.min(end, data.length - lag); j++) {
+            sum += data[j] * data[j + lag];
+        }
+        return sum;
+    }
+
+
+    /**
+     * Return the index in [start, end) where data[j] * data[j + lag] is the largest, or -1 if
+     * the range holds no such pair.
+     */
+    private static int findLagProductPeak(double [] data, int lag, int start, int end) {
+        int peak = -1;
+        double peakValue = 0;
+        for (int j = start; j < Math.min(end, data.length - lag); j++) {
+            double value = data[j] * data[j + lag];
+            if (peak < 0 || value > peakValue) {
+                peak = j;
+                peakValue = value;
+            }
+        }
+        return peak;
+    }
+
+
+    /**
+     * Return the number of values around "index" where data[j] * data[j + lag] stays above a
+     * tenth of its value at "index", an estimate of the tone length when no template is set.
+     */
+    private static int lagProductLobeWidth(double [] data, int lag, int index) {
+        double threshold = 0.1 * data[index] * data[index + lag];
+        int start = index;
+        int end = index + 1;
+        while (start > 0 && data[start - 1] * data[start - 1 + lag] > threshold) {
+            start--;
+        }
+        while (end < data.length - lag && data[end] * data[end + lag] > threshold) {
+            end++;
+        }
+        return end - start;
+    }
+
+
+    /**
+     * Estimate latency by cross-correlating the full-rate recording with the injected tone.
+     * The tone shows up once per round trip, so the latency is the distance between the two
+     * strongest peaks of the correlation envelope, refined with parabolic interpolation.
+     */
+    private void computeMatchedFilterCorrelation(double [] data, int samplingRate) {
+        log("Started Matched Filter Correlation for data with " + data.length + " points");
+        mSamplingRate = samplingRate;
+
+        double[] envelope = new double[data.length];
+        matchedFilterEnvelope(data, mTemplate, envelope);
+        // peaks closer than this belong to the same main lobe or are not physically possible
+        double minLatencyMs = 8;
+        estimateFromEnvelope(envelope,
+                Math.max((int) (minLatencyMs * mSamplingRate / 1000), mTemplate.length));
+    }
+
+
+    /**
+     * Estimate latency by deconvolving the recording with the injected stimulus (log sweep or
+     * MLS), which recovers the impulse response of the loop. As with the matched filter the
+     * latency is the distance between its two strongest peaks, and the ratio of their spectra
+     * is the frequency response of one round trip.
+     */
+    private void computeDeconvolutionCorrelation(double [] data, int samplingRate) {
+        log("Started Deconvolution for data with " + data.length + " points");
+        mSamplingRate = samplingRate;
+        int N = data.length;
+
+        double[] response = new double[N];
+        double[] envelope = new double[N];
+        deconvolve(data, mTemplate, response, envelope);
+        // the impulse response is much narrower than the stimulus, only physical limits apply
+        double minLatencyMs = 8;
+        int[] peaks = estimateFromEnvelope(envelope, (int) (minLatencyMs * mSamplingRate / 1000));
+
+        if (mDataIsValid) {
+            computeFrequencyResponse(response, Math.min(peaks[0], peaks[1]),
+                                     Math.max(peaks[0], peaks[1]));
+        }
+    }
+
+
+    /**
+     * Find the two strongest peaks of the correlation "envelope", which are the injected
+     * stimulus and its first echo at least "minLag" samples apart, and update the latency and
+     * confidence from them. Return the indices of the strongest and the second peak, the latter
+     * is -1 if not found.
+     */
+    private int[] estimateFromEnvelope(double [] envelope, int minLag) {
+        int N = envelope.length;
+
+        int firstPeak = findMax(envelope, 0, N);
+        int secondPeak = -1;
+        if (firstPeak >= 0) {
+            // the strongest peak may be either the injected tone or its first echo
+            int after = findMax(envelope, firstPeak + minLag, N);
+            int before = findMax(envelope, 0, firstPeak - minLag + 1);
+            if (after < 0 || (before >= 0 && envelope[before] > envelope[after])) {
+                secondPeak = before;
+            } else {
+                secondPeak = after;
+            }
+        }
+
+        double average = 0;
+        double rms = 0;
+        for (int i = 0; i < N; i++) {
+            average += envelope[i];
+            rms += envelope[i] * envelope[i];
+        }
+        average = average / N;
+        rms = Math.sqrt(rms / N);
+        mAverage = average;
+        mRms = rms;
+
+        mEstimatedLatencyConfidence = 0.0;
+        mEstimatedLatencySamples = 0;
+        if (secondPeak >= 0 && rms > 0) {
+            // full confidence once the echo peak stands 20 dB above the envelope rms
+            double factor = 9.0;
+            double raw = (envelope[secondPeak] / rms - 1) / factor;
+            log(String.format("Raw: %.3f", raw));
+            mEstimatedLatencyConfidence = Math.max(Math.min(raw, 1.0), 0.0);
+
+            mEstimatedLatencySamples = Math.abs(interpolatePeak(envelope, secondPeak) -
+                                                interpolatePeak(envelope, firstPeak));
+        }
+        log(String.format(" peaks at %d and %d, average : %.3f  rms: %.3f", firstPeak,
+                          secondPeak, average, rms));
+        log(String.format(" ****Confidence: %.2f", mEstimatedLatencyConfidence));
+
         mEstimatedLatencyMs = mEstimatedLatencySamples * 1000 / mSamplingRate;
         log(String.format(" latencySamples: %.2f  %.2f ms", mEstimatedLatencySamples,
                           mEstimatedLatencyMs));
 
         mDataIsValid = mEstimatedLatencyMs > 0.0001;
+        return new int[] {firstPeak, secondPeak};
     }
 
+
+    /**
+     * Store the impulse response recovered from "data" and "stimulus" in "response" and the
+     * magnitude of its analytic signal in "envelope". The division by the stimulus spectrum is
+     * regularized, so bins where the stimulus has no energy don't amplify noise.
+     */
+    private static void deconvolve(double [] data, double [] stimulus, double [] response,
+                                   double [] envelope) {
+        int N = data.length;
+        int fftSize = Utilities.roundup(N + stimulus.length);
+        double[] dataReal = new double[fftSize];
+        double[] dataImag = new double[fftSize];
+        double[] stimulusReal = new double[fftSize];
+        double[] stimulusImag = new double[fftSize];
+        System.arraycopy(data, 0, dataReal, 0, N);
+        System.arraycopy(stimulus, 0, stimulusReal, 0, stimulus.length);
+
+        FFT fft = new FFT(fftSize);
+        fft.fft(dataReal, dataImag, 1);
+        fft.fft(stimulusReal, stimulusImag, 1);
+
+        double maxPower = 0;
+        for (int i = 0; i < fftSize; i++) {
+            double power = stimulusReal[i] * stimulusReal[i] + stimulusImag[i] * stimulusImag[i];
+            maxPower = Math.max(maxPower, power);
+        }
+        double regularization = DECONVOLUTION_REGULARIZATION * maxPower;
+
+        // response = data * conj(stimulus) / (|stimulus|^2 + regularization)
+        for (int i = 0; i < fftSize; i++) {
+            double power = stimulusReal[i] * stimulusReal[i] + stimulusImag[i] * stimulusImag[i];
+            double re = dataReal[i] * stimulusReal[i] + dataImag[i] * stimulusImag[i];
+            double im = dataImag[i] * stimulusReal[i] - dataReal[i] * stimulusImag[i];
+            dataReal[i] = re / (power + regularization);
+            dataImag[i] = im / (power + regularization);
+        }
+
+        double[] analyticReal = new double[fftSize];
+        double[] analyticImag = new double[fftSize];
+        int half = fftSize / 2;
+        for (int i = 0; i < fftSize; i++) {
+            double weight = (i == 0 || i == half) ? 1 : (i < half ? 2 : 0);
+            analyticReal[i] = dataReal[i] * weight;
+            analyticImag[i] = dataImag[i] * weight;
+        }
+
+        fft.fft(dataReal, dataImag, -1);
+        fft.fft(analyticReal, analyticImag, -1);
+        for (int i = 0; i < N; i++) {
+            response[i] = dataReal[i] / fftSize;
+            envelope[i] = Math.sqrt(analyticReal[i] * analyticReal[i] +
+                                    analyticImag[i] * analyticImag[i]) / fftSize;
+        }
+    }
+
+
+    /**
+     * Compare the spectra of the impulse response around the "earlier" and "later" peaks, the
+     * later one went through the loop once more. The result is averaged in octave bands.
+     */
+    private void computeFrequencyResponse(double [] response, int earlier, int later) {
+        int windowSize = Utilities.roundup((int) (FREQUENCY_RESPONSE_WINDOW_MS * mSamplingRate /
+                                                  1000));
+        windowSize = Math.min(windowSize, Utilities.roundup(later - earlier + 1) / 2);
+        if (windowSize < 2) {
+            return;
+        }
+
+        double[] earlierPower = windowedPowerSpectrum(response, earlier, windowSize);
+        double[] laterPower = windowedPowerSpectrum(response, later, windowSize);
+        double binHz = (double) mSamplingRate / windowSize;
+
+        ArrayList<Double> bandsHz = new ArrayList<Double>();
+        ArrayList<Double> bandsDb = new ArrayList<Double>();
+        for (double center = FREQUENCY_RESPONSE_LOWEST_BAND_HZ;
+                center * Math.sqrt(2) < mSamplingRate / 2.0; center *= 2) {
+            int low = (int) Math.ceil(center / Math.sqrt(2) / binHz);
+            int high = (int) Math.floor(center * Math.sqrt(2) / binHz);
+            double earlierSum = 0;
+            double laterSum = 0;
+            for (int i = Math.max(low, 1); i <= high; i++) {
+                earlierSum += earlierPower[i];
+                laterSum += laterPower[i];
+            }
+            if (earlierSum > 0 && laterSum > 0) {
+                bandsHz.add(center);
+                bandsDb.add(10 * Math.log10(laterSum / earlierSum));
+            }
+        }
+
+        mFrequencyResponseHz = new double[bandsHz.size()];
+        mFrequencyResponseDb = new double[bandsDb.size()];
+        for (int i = 0; i < bandsHz.size(); i++) {
+            mFrequencyResponseHz[i] = bandsHz.get(i);
+            mFrequencyResponseDb[i] = bandsDb.get(i);
+        }
+    }
+
+
+    /**
+     * Return the power spectrum (first half) of "windowSize" samples of "data" starting a quarter
+     * window before "peak", with a hanning window applied.
+     */
+    private static double[] windowedPowerSpectrum(double [] data, int peak, int windowSize) {
+        double[] real = new double[windowSize];
+        double[] imag = new double[windowSize];
+        int start = peak - windowSize / 4;
+        for (int i = 0; i < windowSize; i++) {
+            if (start + i >= 0 && start + i < data.length) {
+                real[i] = data[start + i];
+            }
+        }
+        Utilities.hanningWindow(real);
+
+        new FFT(windowSize).fft(real, imag, 1);
+        double[] power = new double[windowSize / 2 + 1];
+        for (int i = 0; i < power.length; i++) {
+            power[i] = real[i] * real[i] + imag[i] * imag[i];
+        }
+        return power;
+    }
+
+
+    /**
+     * Cross-correlate "data" with "template" and store the magnitude of the analytic result in
+     * "envelope", where envelope[k] corresponds to the template starting at data[k]. Using the
+     * analytic signal removes the carrier of the tone, so peaks don't snap to a single cycle.
+     */
+    private static void matchedFilterEnvelope(double [] data, double [] template,
+                                              double [] envelope) {
+        int N = data.length;
+        int fftSize = Utilities.roundup(N + template.length);
+        double[] dataReal = new double[fftSize];
+        double[] dataImag = new double[fftSize];
+        double[] templateReal = new double[fftSize];
+        double[] templateImag = new double[fftSize];
+        System.arraycopy(data, 0, dataReal, 0, N);
+        System.arraycopy(template, 0, templateReal, 0, template.length);
+
+        FFT fft = new FFT(fftSize);
+        fft.fft(dataReal, dataImag, 1);
+        fft.fft(templateReal, templateImag, 1);
+
+        // multiply by the conjugate of the template spectrum, keeping only positive frequencies
+        int half = fftSize / 2;
+        for (int i = 0; i < fftSize; i++) {
+            double weight;
+            if (i == 0 || i == half) {
+                weight = 1;
+            } else if (i < half) {
+                weight = 2;
+            } else {
+                weight = 0;
+            }
+            double re = dataReal[i] * templateReal[i] + dataImag[i] * templateImag[i];
+            double im = dataImag[i] * templateReal[i] - dataReal[i] * templateImag[i];
+            dataReal[i] = re * weight;
+            dataImag[i] = im * weight;
+        }
+        fft.fft(dataReal, dataImag, -1);
+
+        for (int i = 0; i < N; i++) {
+            envelope[i] = Math.sqrt(dataReal[i] * dataReal[i] + dataImag[i] * dataImag[i]) /
+                          fftSize;
+        }
+    }
+
+
+    /** Return the index of the largest value in data[start, end), or -1 if the range is empty. */
+    private static int findMax(double [] data, int start, int end) {
+        int maxIndex = -1;
+        double maxValue = 0;
+        for (int i = Math.max(start, 0); i < Math.min(end, data.length); i++) {
+            if (maxIndex < 0 || data[i] > maxValue) {
+                maxValue = data[i];
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+
+    /** Return the sub-sample position of the peak at "index" by fitting a parabola. */
+    private static double interpolatePeak(double [] data, int index) {
+        if (index <= 0 || index >= data.length - 1) {
+            return index;
+        }
+
+        double left = data[index - 1];
+        double center = data[index];
+        double right = data[index + 1];
+        double denominator = left - 2 * center + right;
+        if (denominator == 0) {
+            return index;
+        }
+
+        return index + 0.5 * (left - right) / denominator;
+    }
+
+
     // Called by LoopbackActivity before displaying latency test results
     public boolean isValid() {
         return mDataIsValid;
@@ -124,34 +707,69 @@ public class Correlation implements Parcelable {
         mDataIsValid = false;
     }
 
+    /** Select one of Constant.CORRELATION_METHOD_*. */
+    public void setMethod(int method) {
+        mMethod = method;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Set the estimator that was fed while recording, used by the streaming method when it
+     * converged before the end of the test.
+     */
+    public void setStreamingCorrelation(StreamingCorrelation streamingCorrelation) {
+        mStreamingCorrelation = streamingCorrelation;
+    }
+
+    /**
+     * Set the tone that was injected in the latency test, required by the matched filter method.
+     * If it's not set, autocorrelation is used instead.
+     */
+    public void setTemplate(double [] template) {
+        mTemplate = template;
+    }
+
+    /**
+     * Set the number of impulses injected in the latency test and the distance between them,
+     * a count of 1 is the regular single impulse test.
+     */
+    public void setImpulses(int impulseCount, int impulseSpacingSamples) {
+        mImpulseCount = impulseCount;
+        mImpulseSpacingSamples = impulseSpacingSamples;
+    }
+
     public void setBlockSize(int blockSize) {
         mBlockSize = clamp(blockSize, Constant.CORRELATION_BLOCK_SIZE_MIN,
                 Constant.CORRELATION_BLOCK_SIZE_MAX);
     }
 
     private boolean downsampleData(double [] data, double [] dataDownsampled, double threshold) {
-        log("Correlation block size used in down sample: " + mBlockSize);
+        int blockSize = dataDownsampled.length;
+        log("Correlation block size used in down sample: " + blockSize);
 
         boolean status;
-        for (int i = 0; i < mBlockSize; i++) {
+        for (int i = 0; i < blockSize; i++) {
             dataDownsampled[i] = 0;
         }
 
         int N = data.length; //all samples available
-        double groupSize =  (double) N / mBlockSize;
+        double groupSize =  (double) N / blockSize;
 
         int ignored = 0;
 
         int currentIndex = 0;
         double nextGroup = groupSize;
-        for (int i = 0; i < N && currentIndex < mBlockSize; i++) {
+        for (int i = 0; i < N && currentIndex < blockSize; i++) {
 
             if (i > nextGroup) { //advanced to next group.
                 currentIndex++;
                 nextGroup += groupSize;
             }
 
-            if (currentIndex >= mBlockSize) {
+            if (currentIndex >= blockSize) {
                 break;
             }
 
@@ -171,6 +789,11 @@ public class Correlation implements Parcelable {
     }
 
 
+    /**
+     * Compute the linear (not circular) autocorrelation of "data" normalized by its energy.
+     * The data is zero padded to at least twice its length so the circular correlation obtained
+     * through the FFT equals the linear one, which makes this O(N log N) instead of O(N^2).
+     */
     private boolean autocorrelation(double [] data, double [] dataOut) {
         boolean status = false;
 
@@ -182,14 +805,25 @@ public class Correlation implements Parcelable {
         }
 
         if (sumsquared > 0) {
-            //correlate (not circular correlation)
-            for (int i = 0; i < N; i++) {
-                dataOut[i] = 0;
-                for (int j = 0; j < N - i; j++) {
+            int fftSize = Utilities.roundup(2 * N);
+            double[] real = new double[fftSize];
+            double[] imag = new double[fftSize];
+            System.arraycopy(data, 0, real, 0, N);
+
+            FFT fft = new FFT(fftSize);
+            fft.fft(real, imag, 1);
+
+            // power spectrum, whose inverse transform is the autocorrelation
+            for (int i = 0; i < fftSize; i++) {
+                real[i] = real[i] * real[i] + imag[i] * imag[i];
+                imag[i] = 0;
+            }
+            fft.fft(real, imag, -1);
 
-                    dataOut[i] += data[j] * data[i + j];
-                }
-                dataOut[i] = dataOut[i] / sumsquared;
+            // inverse transform is not scaled by FFT, so fold 1 / fftSize into the normalization
+            double scale = 1.0 / (fftSize * sumsquared);
+            for (int i = 0; i < N; i++) {
+                dataOut[i] = real[i] * scale;
             }
             status = true;
         }
@@ -227,6 +861,9 @@ public class Correlation implements Parcelable {
             bundle.putDouble("mEstimatedLatencyConfidence", mEstimatedLatencyConfidence);
             bundle.putDouble("mAverage", mAverage);
             bundle.putDouble("mRms", mRms);
+            bundle.putDoubleArray("mImpulseLatenciesMs", mImpulseLatenciesMs);
+            bundle.putDoubleArray("mFrequencyResponseHz", mFrequencyResponseHz);
+            bundle.putDoubleArray("mFrequencyResponseDb", mFrequencyResponseDb);
         }
         dest.writeBundle(bundle);
     }
@@ -241,6 +878,9 @@ public class Correlation implements Parcelable {
             mEstimatedLatencyConfidence = bundle.getDouble("mEstimatedLatencyConfidence");
             mAverage                    = bundle.getDouble("mAverage");
             mRms                        = bundle.getDouble("mRms");
+            mImpulseLatenciesMs         = bundle.getDoubleArray("mImpulseLatenciesMs");
+            mFrequencyResponseHz        = bundle.getDoubleArray("mFrequencyResponseHz");
+            mFrequencyResponseDb        = bundle.getDoubleArray("mFrequencyResponseDb");
         }
     }
 
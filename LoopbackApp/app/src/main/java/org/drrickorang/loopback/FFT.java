@@ -25,85 +25,170 @@ package org.drrickorang.loopback;
  */
 
 public class FFT {
-    private int       m;
-    private double[]  cos;   // precomputed cosine tables for FFT
-    private double[]  sin;   // precomputed sine tables for FFT
-    private final int mFFTSamplingSize;
+    private final FFTPlan mPlan; // shared tables, see FFTPlan
+    private final int     mFFTSamplingSize;
+
+    // used by the real input transform, which runs a complex FFT of half the size
+    private FFT       mHalfFFT;
+    private double[]  mHalfReal;
+    private double[]  mHalfImag;
+    private double[]  mBinsReal; // output of realFFT() used by magnitude()
+    private double[]  mBinsImag;
 
 
     FFT(int FFTSamplingSize) {
         mFFTSamplingSize = FFTSamplingSize;
-
-        // set up variables needed for computing FFT
-        m = (int) (Math.log(mFFTSamplingSize) / Math.log(2));
-
-        // Make sure n is a power of 2
-        if (mFFTSamplingSize != (1 << m))
-            throw new RuntimeException("FFT sampling size must be power of 2");
-
-        // precomputed tables
-        cos = new double[mFFTSamplingSize / 2];
-        sin = new double[mFFTSamplingSize / 2];
-
-        for (int i = 0; i < mFFTSamplingSize / 2; i++) {
-            cos[i] = Math.cos(-2 * Math.PI * i / mFFTSamplingSize);
-            sin[i] = Math.sin(-2 * Math.PI * i / mFFTSamplingSize);
-        }
+        mPlan = FFTPlan.get(mFFTSamplingSize);
     }
 
 
     /**
      * Do FFT, and store the result's real part to "x", imaginary part to "y".
+     * The input is permuted with the precomputed bit-reversal table, then pairs of radix-2 stages
+     * are merged into radix-4 butterflies, which saves a quarter of the twiddle multiplications
+     * and half of the passes over the data. A single radix-2 stage is left when log2(N) is odd.
      */
     public void fft(double[] x, double[] y, int sign) {
-        int i, j, k, n1, n2, a;
-        double c, s, t1, t2;
+        final int n = mFFTSamplingSize;
+        final double[] cos = mPlan.mCos;
+        final double[] sin = mPlan.mSin;
+        double t;
 
         // Bit-reverse
-        j = 0;
-        n2 = mFFTSamplingSize / 2;
-        for (i = 1; i < mFFTSamplingSize - 1; i++) {
-            n1 = n2;
-            while (j >= n1) {
-                j = j - n1;
-                n1 = n1 / 2;
-            }
-            j = j + n1;
-
-            if (i < j) {
-                t1 = x[i];
-                x[i] = x[j];
-                x[j] = t1;
-                t1 = y[i];
-                y[i] = y[j];
-                y[j] = t1;
+        final int[] swaps = mPlan.mSwaps;
+        for (int p = 0; p < swaps.length; p += 2) {
+            int i = swaps[p];
+            int j = swaps[p + 1];
+            t = x[i];
+            x[i] = x[j];
+            x[j] = t;
+            t = y[i];
+            y[i] = y[j];
+            y[j] = t;
+        }
+
+        int h = 1; // size of the sub-transforms combined by the next stage
+        if ((mPlan.mLog2Size & 1) == 1) {
+            // radix-2 stage, all twiddles are 1
+            for (int k = 0; k < n; k += 2) {
+                double xr = x[k + 1];
+                double yi = y[k + 1];
+                x[k + 1] = x[k] - xr;
+                y[k + 1] = y[k] - yi;
+                x[k] += xr;
+                y[k] += yi;
             }
+            h = 2;
         }
 
-        // FFT
-        n1 = 0;
-        n2 = 1;
-
-        for (i = 0; i < m; i++) {
-            n1 = n2;
-            n2 = n2 + n2;
-            a = 0;
-
-            for (j = 0; j < n1; j++) {
-                c = cos[a];
-                s = sign * sin[a];
-                a += 1 << (m - i - 1);
-
-                for (k = j; k < mFFTSamplingSize; k = k + n2) {
-                    t1 = c * x[k + n1] - s * y[k + n1];
-                    t2 = s * x[k + n1] + c * y[k + n1];
-                    x[k + n1] = x[k] - t1;
-                    y[k + n1] = y[k] - t2;
-                    x[k] = x[k] + t1;
-                    y[k] = y[k] + t2;
+        // radix-4 stages. In bit-reversed order the four quarters of a block of 4h values hold the
+        // transforms of the samples with index 0, 2, 1 and 3 modulo 4 respectively.
+        for (; h < n; h *= 4) {
+            int stride = n / (4 * h);
+            for (int j = 0; j < h; j++) {
+                int a1 = j * stride;
+                int a2 = 2 * a1;
+                int a3 = 3 * a1;
+                double c1 = cos[a1];
+                double s1 = sign * sin[a1];
+                double c2 = cos[a2];
+                double s2 = sign * sin[a2];
+                double c3 = cos[a3];
+                double s3 = sign * sin[a3];
+
+                for (int k = j; k < n; k += 4 * h) {
+                    int k1 = k + h;
+                    int k2 = k1 + h;
+                    int k3 = k2 + h;
+
+                    // t1 = W^j * F1, t2 = W^2j * F2, t3 = W^3j * F3
+                    double t1r = c1 * x[k2] - s1 * y[k2];
+                    double t1i = s1 * x[k2] + c1 * y[k2];
+                    double t2r = c2 * x[k1] - s2 * y[k1];
+                    double t2i = s2 * x[k1] + c2 * y[k1];
+                    double t3r = c3 * x[k3] - s3 * y[k3];
+                    double t3i = s3 * x[k3] + c3 * y[k3];
+
+                    double u0r = x[k] + t2r;
+                    double u0i = y[k] + t2i;
+                    double u1r = x[k] - t2r;
+                    double u1i = y[k] - t2i;
+                    double u2r = t1r + t3r;
+                    double u2i = t1i + t3i;
+                    // (t1 - t3) multiplied by -j (forward) or j (inverse)
+                    double u3r = sign * (t1i - t3i);
+                    double u3i = -sign * (t1r - t3r);
+
+                    x[k] = u0r + u2r;
+                    y[k] = u0i + u2i;
+                    x[k1] = u1r + u3r;
+                    y[k1] = u1i + u3i;
+                    x[k2] = u0r - u2r;
+                    y[k2] = u0i - u2i;
+                    x[k3] = u1r - u3r;
+                    y[k3] = u1i - u3i;
                 }
             }
         }
     }
 
+
+    /**
+     * Do FFT of the real array "samples" (not modified), and store bins 0 through N/2 of the
+     * result (N / 2 + 1 values) to "real" and "imag". The samples are packed as N/2 complex values
+     * (even samples in the real part, odd ones in the imaginary part) so the transform costs
+     * about half of fft(), and the two interleaved spectra are separated by a post-twiddle.
+     */
+    public void realFFT(double[] samples, double[] real, double[] imag) {
+        int half = mFFTSamplingSize / 2;
+        if (half == 0) {
+            real[0] = samples[0];
+            imag[0] = 0;
+            return;
+        }
+        if (mHalfFFT == null) {
+            mHalfFFT = new FFT(half);
+            mHalfReal = new double[half];
+            mHalfImag = new double[half];
+        }
+
+        for (int i = 0; i < half; i++) {
+            mHalfReal[i] = samples[2 * i];
+            mHalfImag[i] = samples[2 * i + 1];
+        }
+        mHalfFFT.fft(mHalfReal, mHalfImag, 1);
+
+        // X[k] = (Z[k] + conj(Z[N/2-k])) / 2 - j * W^k * (Z[k] - conj(Z[N/2-k])) / 2
+        for (int k = 0; k <= half; k++) {
+            int k1 = k % half;
+            int k2 = (half - k) % half;
+            double evenReal = (mHalfReal[k1] + mHalfReal[k2]) / 2;
+            double evenImag = (mHalfImag[k1] - mHalfImag[k2]) / 2;
+            double oddReal = (mHalfImag[k1] + mHalfImag[k2]) / 2;
+            double oddImag = (mHalfReal[k2] - mHalfReal[k1]) / 2;
+
+            // twiddle W^k = cos[k] + j sin[k]
+            double c = mPlan.mCos[k];
+            double s = mPlan.mSin[k];
+            real[k] = evenReal + c * oddReal - s * oddImag;
+            imag[k] = evenImag + c * oddImag + s * oddReal;
+        }
+    }
+
+
+    /**
+     * Store the magnitude of bins 0 through N/2 - 1 of the FFT of the real array "samples"
+     * (not modified) to "magnitude" (N / 2 values).
+     */
+    public void magnitude(double[] samples, double[] magnitude) {
+        if (mBinsReal == null) {
+            mBinsReal = new double[mFFTSamplingSize / 2 + 1];
+            mBinsImag = new double[mFFTSamplingSize / 2 + 1];
+        }
+        realFFT(samples, mBinsReal, mBinsImag);
+        for (int i = 0; i < mFFTSamplingSize / 2; i++) {
+            magnitude[i] = Math.sqrt(mBinsReal[i] * mBinsReal[i] + mBinsImag[i] * mBinsImag[i]);
+        }
+    }
+
 }
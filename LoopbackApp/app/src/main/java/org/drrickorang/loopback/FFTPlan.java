@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+
+/**
+ * This class holds the tables FFT needs for a given size: the pairs of indices swapped by the
+ * bit-reversal permutation and the twiddle factors. A plan never changes once built, so plans
+ * are cached per size and shared by every FFT instance, across threads and tests.
+ */
+
+public class FFTPlan {
+    // one plan per power of 2, indexed by log2 of the size
+    private static final FFTPlan[] sPlans = new FFTPlan[31];
+
+    final int      mSize;
+    final int      mLog2Size;
+    final int[]    mSwaps; // pairs (i, j) with i < j exchanged by the bit-reversal permutation
+    final double[] mCos;   // cos(-2 * pi * i / size) for i in [0, size)
+    final double[] mSin;   // sin(-2 * pi * i / size) for i in [0, size)
+
+
+    /** Return the plan for "size", which must be a power of 2, building it on first use. */
+    public static FFTPlan get(int size) {
+        int log2Size = Integer.numberOfTrailingZeros(size);
+        if (size <= 0 || size != (1 << log2Size)) {
+            throw new RuntimeException("FFT sampling size must be power of 2");
+        }
+
+        synchronized (sPlans) {
+            if (sPlans[log2Size] == null) {
+                sPlans[log2Size] = new FFTPlan(size, log2Size);
+            }
+            return sPlans[log2Size];
+        }
+    }
+
+
+    private FFTPlan(int size, int log2Size) {
+        mSize = size;
+        mLog2Size = log2Size;
+
+        int swapCount = 0;
+        int[] swaps = new int[size];
+        for (int i = 0; i < size; i++) {
+            int j = log2Size == 0 ? 0 : Integer.reverse(i) >>> (32 - log2Size);
+            if (i < j) {
+                swaps[swapCount++] = i;
+                swaps[swapCount++] = j;
+            }
+        }
+        mSwaps = new int[swapCount];
+        System.arraycopy(swaps, 0, mSwaps, 0, swapCount);
+
+        // the radix-4 butterflies use twiddles up to 3 / 4 of the circle
+        mCos = new double[size];
+        mSin = new double[size];
+        for (int i = 0; i < size; i++) {
+            mCos[i] = Math.cos(-2 * Math.PI * i / size);
+            mSin[i] = Math.sin(-2 * Math.PI * i / size);
+        }
+    }
+
+}
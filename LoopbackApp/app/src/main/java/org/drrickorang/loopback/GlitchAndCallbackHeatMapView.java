@@ -186,11 +186,11 @@ public class GlitchAndCallbackHeatMapView extends View {
         int maxCallbackValue = Math.max(recorderData.getMax(), playerData.getMax());
 
         drawHeatMap(canvas, recorderData.getBucketedCallbacks(), maxCallbackValue, colorInter,
-                recorderCallbackTimes.isCapacityExceeded(), recorderData.getLastFilledIndex(),
+                recorderData.isCapacityExceeded(), recorderData.getLastFilledIndex(),
                 new Rect(graphArea.left + LINE_WIDTH, graphArea.top,
                         graphArea.right - LINE_WIDTH, graphArea.centerY()));
         drawHeatMap(canvas, playerData.getBucketedCallbacks(), maxCallbackValue, colorInter,
-                playerCallbackTimes.isCapacityExceeded(), playerData.getLastFilledIndex(),
+                playerData.isCapacityExceeded(), playerData.getLastFilledIndex(),
                 new Rect(graphArea.left + LINE_WIDTH, graphArea.centerY(),
                         graphArea.right - LINE_WIDTH, graphArea.bottom));
 
@@ -246,7 +246,7 @@ public class GlitchAndCallbackHeatMapView extends View {
         }
 
         // Draw legend for exceeded capacity
-        if (playerCallbackTimes.isCapacityExceeded() || recorderCallbackTimes.isCapacityExceeded()
+        if (playerData.isCapacityExceeded() || recorderData.isCapacityExceeded()
                 || glitchesExceededCapacity) {
             RectF exceededArea = new RectF(graphArea.left, bottomLegendArea.top,
                     graphArea.left + EXCEEDED_LEGEND_WIDTH, bottomLegendArea.bottom);
@@ -413,6 +413,7 @@ public class GlitchAndCallbackHeatMapView extends View {
 
         private int[] mBucketedCallbacks;
         private int mLastFilledIndex;
+        private boolean mCapacityExceeded;
 
         /**
          * Fills buckets with maximum callback duration per minute or second
@@ -422,24 +423,56 @@ public class GlitchAndCallbackHeatMapView extends View {
             mBucketedCallbacks =
                     new int[(testDurationSeconds + bucketSizeSeconds - 1) / bucketSizeSeconds];
             int bucketSizeMS = bucketSizeSeconds * MILLIS_PER_SECOND;
+
+            // The window summaries cover every callback, only fall back to the late callbacks
+            // when the native engine doesn't provide them
+            CallbackWindowStats windowStats = callbackTimes.getWindowStats();
+            if (windowStats != null) {
+                fillFromWindows(windowStats, bucketSizeMS);
+                return;
+            }
+
+            mCapacityExceeded = callbackTimes.isCapacityExceeded();
             int bucketIndex = 0;
-            for (BufferCallbackTimes.BufferCallback callback : callbackTimes) {
+            for (int i = 0; i < callbackTimes.getNumLateOrEarlyCallbacks(); i++) {
+                short callbackDuration = callbackTimes.getCallbackDuration(i);
 
-                bucketIndex = callback.timeStamp / bucketSizeMS;
-                if (callback.callbackDuration > mBucketedCallbacks[bucketIndex]) {
-                    mBucketedCallbacks[bucketIndex] = callback.callbackDuration;
+                bucketIndex = callbackTimes.getTimeStamp(i) / bucketSizeMS;
+                if (callbackDuration > mBucketedCallbacks[bucketIndex]) {
+                    mBucketedCallbacks[bucketIndex] = callbackDuration;
                 }
 
                 // Original callback bucketing strategy, callbacks within a second/minute were added
                 // together in attempt to capture total amount of lateness within a time period.
                 // May become useful for debugging specific problems at some later date
-                /*if (callback.callbackDuration > callbackTimes.getExpectedBufferPeriod()) {
-                    bucketedCallbacks[bucketIndex] += callback.callbackDuration;
+                /*if (callbackDuration > callbackTimes.getExpectedBufferPeriod()) {
+                    bucketedCallbacks[bucketIndex] += callbackDuration;
                 }*/
             }
             mLastFilledIndex = bucketIndex;
         }
 
+        private void fillFromWindows(CallbackWindowStats windowStats, int bucketSizeMS) {
+            // the windows cover the whole test, merged into longer ones if it ran long
+            int bucketIndex = 0;
+            for (int window = 0; window < windowStats.getWindowCount(); window++) {
+                bucketIndex = (int) Math.min((long) window * windowStats.getWindowMs() /
+                                             bucketSizeMS, mBucketedCallbacks.length - 1);
+                // like the late callbacks, windows where every callback was on time are left
+                // empty rather than showing the normal buffer period
+                if (windowStats.getLateCount(window) == 0) {
+                    continue;
+                }
+                // rounded up to the millisecond like the late callbacks
+                int maxMs = (windowStats.getMaxUs(window) + Constant.MICROS_PER_MILLI - 1) /
+                            Constant.MICROS_PER_MILLI;
+                if (maxMs > mBucketedCallbacks[bucketIndex]) {
+                    mBucketedCallbacks[bucketIndex] = maxMs;
+                }
+            }
+            mLastFilledIndex = bucketIndex;
+        }
+
         public int getMax() {
             int maxCallbackValue = 0;
             for (int bucketValue : mBucketedCallbacks) {
@@ -455,6 +488,11 @@ public class GlitchAndCallbackHeatMapView extends View {
         public int getLastFilledIndex() {
             return mLastFilledIndex;
         }
+
+        /** True if late callbacks were dropped because their arrays were full. */
+        public boolean isCapacityExceeded() {
+            return mCapacityExceeded;
+        }
     }
 
     private static class ColorInterpolator {
@@ -30,15 +30,23 @@ public class GlitchDetectionThread extends Thread {
     // the acceptable difference between the expected center of mass and what we actually get
     private static final double mAcceptablePercentDifference = 0.02; // change this if necessary
 
+    // Goertzel detector: guard frequencies relative to the tone, far enough above it to be out of
+    // the window leakage and halfway between the harmonics a loud loopback produces
+    private static final double[] GOERTZEL_GUARD_RATIOS = {2.5, 3.5};
+    // the acceptable drop of tone energy over total energy, relative to a clean tone
+    private static final double GOERTZEL_ACCEPTABLE_TONALITY_DROP = 0.02;
+    // the acceptable energy in any guard filter relative to the tone
+    private static final double GOERTZEL_ACCEPTABLE_GUARD_RATIO = 0.001;
+
+    // how long to block on the pipe before checking whether the thread was stopped
+    private static final int PIPE_READ_TIMEOUT_MS = 100;
+
     // Measured in FFT samples
     private static final int GLITCH_CONCENTRATION_WINDOW_SIZE = 1500; // approx 30 seconds at 48kHz
     private static final int COOLDOWN_WINDOW = 4500; // approx 90 seconds at 48kHz
 
     private boolean mIsRunning; // condition must be true for the thread to run
-    private short   mShortBuffer[]; // keep the data read from Pipe
-    private int     mShortBufferIndex = 0;
     private Pipe    mPipe;
-    private static int mThreadSleepDurationMs;
 
     private double  mDoubleBuffer[]; // keep the data used for FFT calculation
     private boolean mIsFirstFFT = true; // whether or not it's the first FFT calculation
@@ -54,7 +62,7 @@ public class GlitchDetectionThread extends Thread {
     private double  mCenterOfMass;  // expected center of mass of samples
 
     private final int[]   mGlitches;  // for every value = n, n is nth FFT where a glitch is found
-    private int     mGlitchesIndex;
+    private volatile int mGlitchesIndex; // written after mGlitches, see getGlitchCount()
     private int     mFFTCount; // store the current number of FFT performed
     private FFT     mFFT;
     private boolean mGlitchingIntervalTooLong = false; // true if mGlitches is full
@@ -62,7 +70,15 @@ public class GlitchDetectionThread extends Thread {
     // Pre-Allocated buffers for glitch detection process
     private final double[] mFFTResult;
     private final double[] mCurrentSamples;
-    private final double[] mImagArray;
+
+    private int mDetector = Constant.GLITCH_DETECTOR_FFT;
+    private final double[] mWindow;             // precomputed hanning window
+    // Goertzel detector, see isGoertzelGlitch()
+    private final double   mToneCoefficient;    // 2 * cos(2 * pi * f / fs) for the tone
+    private final double[] mGuardCoefficients;  // same for each guard frequency
+    private final double   mToneGain;           // tone power over energy for a clean tone
+    // residual detector, see isResidualGlitch()
+    private ToneTracker    mToneTracker;
 
     // Used for captured SysTrace dumps
     private CaptureHolder mCaptureHolder;
@@ -80,7 +96,6 @@ public class GlitchDetectionThread extends Thread {
         mSamplingRate = samplingRate;
         mIsRunning = true;
 
-        mShortBuffer = new short[mFFTSamplingSize];
         mDoubleBuffer = new double[mFFTSamplingSize];
         mWaveDataRing = new WaveDataRingBuffer(mSamplingRate * bufferTestWavePlotDurationInSeconds);
 
@@ -91,79 +106,78 @@ public class GlitchDetectionThread extends Thread {
 
         mFFTResult = new double[mFFTSamplingSize/2];
         mCurrentSamples = new double[mFFTSamplingSize];
-        mImagArray = new double[mFFTSamplingSize];
 
         mFFT = new FFT(mFFTSamplingSize);
         computeExpectedCenterOfMass();
 
+        mWindow = new double[mFFTSamplingSize];
+        Arrays.fill(mWindow, 1.0);
+        Utilities.hanningWindow(mWindow);
+        double windowSum = 0;
+        double windowSquaredSum = 0;
+        for (double w : mWindow) {
+            windowSum += w;
+            windowSquaredSum += w * w;
+        }
+        // a sine of amplitude A has power (A * windowSum / 2)^2 and energy A^2 * windowSquaredSum / 2
+        mToneGain = windowSum * windowSum / (2 * windowSquaredSum);
+        mToneCoefficient = 2 * Math.cos(Constant.TWO_PI * mFrequency1 / mSamplingRate);
+        mGuardCoefficients = new double[GOERTZEL_GUARD_RATIOS.length];
+        for (int i = 0; i < GOERTZEL_GUARD_RATIOS.length; i++) {
+            double frequency = Math.min(GOERTZEL_GUARD_RATIOS[i] * mFrequency1, mSamplingRate / 2);
+            mGuardCoefficients[i] = 2 * Math.cos(Constant.TWO_PI * frequency / mSamplingRate);
+        }
+
         setName("Loopback_GlitchDetection");
 
         mCaptureHolder = captureHolder;
         mCaptureHolder.setWaveDataBuffer(mWaveDataRing);
-
-        mThreadSleepDurationMs = FFTOverlapSamples * Constant.MILLIS_PER_SECOND / mSamplingRate;
-        if (mThreadSleepDurationMs < 1) {
-            mThreadSleepDurationMs = 1; // sleeps at least 1ms
-        }
     }
 
 
     public void run() {
         while (mIsRunning) {
-            int requiredRead;
+            // The first FFT needs a full frame, the next ones only the samples that are new. Note
+            // that between two FFTs, part of the samples (of size mFFTOverlapSamples) are used in
+            // both FFTs.
+            int requiredRead = mIsFirstFFT ? mFFTSamplingSize : mNewSamplesPerFFT;
             int actualRead;
-
-            requiredRead = mFFTSamplingSize - mShortBufferIndex;
-            actualRead = mPipe.read(mShortBuffer, mShortBufferIndex, requiredRead);
-
-            if (actualRead > 0) {
-                mShortBufferIndex += actualRead;
+            try {
+                // wakes up as soon as the next frame is complete
+                actualRead = mPipe.waitForAvailable(requiredRead, PIPE_READ_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                continue; // requestStop() was called
             }
 
             if (actualRead == Pipe.OVERRUN) {
                 log("There's an overrun");
             }
+            if (actualRead < requiredRead) {
+                continue;
+            }
 
-            // Once we have enough data, we can do a FFT on it. Note that between two FFTs, part of
-            // the samples (of size mFFTOverlapSamples) are used in both FFTs .
-            if (mShortBufferIndex == mFFTSamplingSize) {
-                bufferShortToDouble(mShortBuffer, mDoubleBuffer);
-
-                // copy data in mDoubleBuffer to mWaveData
-                if (mIsFirstFFT) {
-                    // if it's the first FFT, copy the whole "mNativeBuffer" to mWaveData
-                    mWaveDataRing.writeWaveData(mDoubleBuffer, 0, mFFTSamplingSize);
-                    mIsFirstFFT = false;
-                } else {
-                    mWaveDataRing.writeWaveData(mDoubleBuffer, mFFTOverlapSamples,
-                            mNewSamplesPerFFT);
-                }
-
-                detectGlitches();
-                // move new samples to the beginning of the array as they will be reused in next fft
-                System.arraycopy(mShortBuffer, mNewSamplesPerFFT, mShortBuffer,
-                                 0, mFFTOverlapSamples);
-                mShortBufferIndex = mFFTOverlapSamples;
+            // keep the overlapped samples, and convert the new ones right out of the pipe,
+            // whatever its sample format
+            System.arraycopy(mDoubleBuffer, mNewSamplesPerFFT, mDoubleBuffer, 0,
+                             mFFTOverlapSamples);
+            mPipe.read(mDoubleBuffer, mFFTSamplingSize - requiredRead, requiredRead);
+
+            // copy data in mDoubleBuffer to mWaveData
+            if (mIsFirstFFT) {
+                // if it's the first FFT, copy the whole "mNativeBuffer" to mWaveData
+                mWaveDataRing.writeWaveData(mDoubleBuffer, 0, mFFTSamplingSize);
+                mIsFirstFFT = false;
             } else {
-                try {
-                    sleep(mThreadSleepDurationMs);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                mWaveDataRing.writeWaveData(mDoubleBuffer, mFFTOverlapSamples,
+                        mNewSamplesPerFFT);
             }
-        }
-
-    }
 
+            detectGlitches();
+        }
 
-    /** convert samples in shortBuffer to double, then copy into doubleBuffer. */
-    // TODO move to audio_utils
-    private void bufferShortToDouble(short[] shortBuffer, double[] doubleBuffer) {
-        double temp;
-        for (int i = 0; i < shortBuffer.length; i++) {
-            temp = (double) shortBuffer[i];
-            temp *= (1.0 / Short.MAX_VALUE);
-            doubleBuffer[i] = temp;
+        // a glitch still going on when the test ends is reported with the samples seen so far
+        if (mToneTracker != null) {
+            mToneTracker.flush();
         }
     }
 
@@ -180,12 +194,43 @@ public class GlitchDetectionThread extends Thread {
      * data we are expecting.
      */
     private void detectGlitches() {
-        double centerOfMass;
+        boolean isGlitch;
+        if (mDetector == Constant.GLITCH_DETECTOR_GOERTZEL) {
+            isGlitch = isGoertzelGlitch();
+        } else if (mDetector == Constant.GLITCH_DETECTOR_RESIDUAL) {
+            isGlitch = isResidualGlitch();
+        } else {
+            isGlitch = isFFTGlitch();
+        }
+
+        if (mGlitchesIndex >= mGlitches.length) {
+            // we just want to show this log once and set the flag once.
+            if (!mGlitchingIntervalTooLong) {
+                log("Not enough room to store glitches!");
+                mGlitchingIntervalTooLong = true;
+            }
+        } else {
+            if (isGlitch) {
+                // Glitch Detected
+                mGlitches[mGlitchesIndex] = mFFTCount;
+                mGlitchesIndex++;
+                if (mCaptureHolder.isCapturing()) {
+                    checkGlitchConcentration();
+                }
+            }
+        }
+        mFFTCount++;
+    }
 
-        // retrieve a copy of recorded wave data for manipulating and analyzing
-        System.arraycopy(mDoubleBuffer, 0, mCurrentSamples, 0, mDoubleBuffer.length);
 
-        Utilities.hanningWindow(mCurrentSamples);
+    /** Compare the center of mass of the spectrum of mDoubleBuffer with the expected one. */
+    private boolean isFFTGlitch() {
+        double centerOfMass;
+
+        // window the recorded wave data into a copy for manipulating and analyzing
+        for (int i = 0; i < mFFTSamplingSize; i++) {
+            mCurrentSamples[i] = mDoubleBuffer[i] * mWindow[i];
+        }
 
         double width = (double) mSamplingRate / mCurrentSamples.length;
         computeFFT(mCurrentSamples, mFFTResult);     // gives an array of sampleSize / 2
@@ -202,26 +247,88 @@ public class GlitchDetectionThread extends Thread {
         // calculate the center of mass of sample's FFT
         centerOfMass = computeCenterOfMass(mFFTResult, width);
         double difference = (Math.abs(centerOfMass - mCenterOfMass) / mCenterOfMass);
-        if (mGlitchesIndex >= mGlitches.length) {
-            // we just want to show this log once and set the flag once.
-            if (!mGlitchingIntervalTooLong) {
-                log("Not enough room to store glitches!");
-                mGlitchingIntervalTooLong = true;
-            }
-        } else {
-            // centerOfMass == -1 if the wave we get is silence.
-            if (difference > mAcceptablePercentDifference || centerOfMass == -1) {
-                // Glitch Detected
-                mGlitches[mGlitchesIndex] = mFFTCount;
-                mGlitchesIndex++;
-                if (mCaptureHolder.isCapturing()) {
-                    checkGlitchConcentration();
-                }
+
+        // centerOfMass == -1 if the wave we get is silence.
+        return difference > mAcceptablePercentDifference || centerOfMass == -1;
+    }
+
+
+    /**
+     * Run Goertzel filters at the tone frequency and at guard frequencies around it over the
+     * windowed mDoubleBuffer, which is O(N) per filter. A glitch spreads energy out of the tone,
+     * so either the tone holds less of the frame energy than a clean tone does, or energy above
+     * the noise level shows up in a guard filter. A tone that is too weak is silence, as in the
+     * FFT detector.
+     */
+    private boolean isGoertzelGlitch() {
+        for (int i = 0; i < mFFTSamplingSize; i++) {
+            mCurrentSamples[i] = mDoubleBuffer[i] * mWindow[i];
+        }
+
+        double energy = 0;
+        for (int i = 0; i < mFFTSamplingSize; i++) {
+            energy += mCurrentSamples[i] * mCurrentSamples[i];
+        }
+        double tonePower = goertzelPower(mCurrentSamples, mToneCoefficient);
+
+        final double threshold = 0.1; // same noise level as the FFT detector bins
+        if (tonePower < threshold * threshold) {
+            return true;
+        }
+
+        double tonality = tonePower / (energy * mToneGain);
+        if (tonality < 1 - GOERTZEL_ACCEPTABLE_TONALITY_DROP) {
+            return true;
+        }
+
+        // guard energy above the noise level, or too large a share of the tone, is a glitch
+        double guardLimit = Math.min(threshold * threshold,
+                                     GOERTZEL_ACCEPTABLE_GUARD_RATIO * tonePower);
+        for (double coefficient : mGuardCoefficients) {
+            if (goertzelPower(mCurrentSamples, coefficient) > guardLimit) {
+                return true;
             }
         }
-        mFFTCount++;
+        return false;
     }
 
+
+    /**
+     * Feed the samples that are new in mDoubleBuffer to mToneTracker, which subtracts a sine model
+     * of the tone from each of them. The frame is a glitch if any of those samples is part of a
+     * residual burst, the exact positions and durations are in getGlitchPositions() and
+     * getGlitchDurations().
+     */
+    private boolean isResidualGlitch() {
+        if (mFFTCount == 0) {
+            return mToneTracker.process(mDoubleBuffer, 0, mFFTSamplingSize);
+        }
+        return mToneTracker.process(mDoubleBuffer, mFFTOverlapSamples, mNewSamplesPerFFT);
+    }
+
+
+    /** Return the power of "samples" at the frequency of the Goertzel filter "coefficient". */
+    private static double goertzelPower(double[] samples, double coefficient) {
+        double s1 = 0;
+        double s2 = 0;
+        for (double sample : samples) {
+            double s0 = sample + coefficient * s1 - s2;
+            s2 = s1;
+            s1 = s0;
+        }
+        return s1 * s1 + s2 * s2 - coefficient * s1 * s2;
+    }
+
+
+    /** Select one of Constant.GLITCH_DETECTOR_*, must be called before start(). */
+    public void setDetector(int detector) {
+        mDetector = detector;
+        if (mDetector == Constant.GLITCH_DETECTOR_RESIDUAL) {
+            mToneTracker = new ToneTracker(mFrequency1, mSamplingRate, mGlitches.length);
+        }
+    }
+
+
     private void checkGlitchConcentration() {
 
         final int recordedGlitch = mGlitches[mGlitchesIndex-1];
@@ -263,16 +370,9 @@ public class GlitchDetectionThread extends Thread {
     }
 
 
-    /** Compute FFT of a set of data "samples". */
+    /** Compute the FFT magnitude of a set of real data "samples". */
     private void computeFFT(double[] src, double[] dst) {
-        Arrays.fill(mImagArray, 0);
-        mFFT.fft(src, mImagArray, 1);    // here src array and imagArray get set
-
-
-        for (int i = 0; i < (src.length / 2); i++) {
-            dst[i] = Math.sqrt(src[i] * src[i] + mImagArray[i] * mImagArray[i]);
-        }
-
+        mFFT.magnitude(src, dst);
     }
 
 
@@ -304,14 +404,52 @@ public class GlitchDetectionThread extends Thread {
     }
 
 
+    /**
+     * Return the number of glitching intervals detected so far. It can be polled while the test
+     * is running, the intervals before it are already in mGlitches.
+     */
+    public int getGlitchCount() {
+        return mGlitchesIndex;
+    }
+
+
     public int[] getGlitches() {
         //return a copy of recorded glitches in an array sized to hold only recorded glitches
-        int[] output = new int[mGlitchesIndex];
-        System.arraycopy(mGlitches, 0, output, 0, mGlitchesIndex);
+        int count = mGlitchesIndex;
+        int[] output = new int[count];
+        System.arraycopy(mGlitches, 0, output, 0, count);
         return output;
     }
 
 
+    /**
+     * Return the sample position where each glitch starts, counted from the first sample read from
+     * the pipe, or null if the detector doesn't locate glitches within a frame. Only call this
+     * once the thread has been stopped and joined, it's not safe while the thread is running.
+     */
+    public long[] getGlitchPositions() {
+        if (mToneTracker == null) {
+            return null;
+        }
+        return mToneTracker.getBurstPositions();
+    }
+
+
+    /** Return the duration in samples of each glitch in getGlitchPositions(). */
+    public int[] getGlitchDurations() {
+        if (mToneTracker == null) {
+            return null;
+        }
+        return mToneTracker.getBurstDurations();
+    }
+
+
+    /** Return how close this thread came to falling behind the writer of the pipe. */
+    public PipeHealth getPipeHealth() {
+        return mPipe.getHealth();
+    }
+
+
     private static void log(String msg) {
         Log.v(TAG, msg);
     }
@@ -87,6 +87,25 @@ public class GlitchesStringBuilder {
         return listOfGlitches.toString();
     }
 
+    /**
+     * Generate String of Glitch start times and durations in ms, one glitch per line, from glitch
+     * positions and durations in samples.
+     */
+    public static String getGlitchPositionStringForFile(long[] glitchPositions,
+                                                        int[] glitchDurations, int samplingRate) {
+        StringBuilder listOfGlitches = new StringBuilder();
+
+        for (int i = 0; i < glitchPositions.length; i++) {
+            double startInMs = (double) glitchPositions[i] * Constant.MILLIS_PER_SECOND /
+                               samplingRate;
+            double durationInMs = (double) glitchDurations[i] * Constant.MILLIS_PER_SECOND /
+                                  samplingRate;
+            listOfGlitches.append(String.format("%.3f %.3f\n", startInMs, durationInMs));
+        }
+
+        return listOfGlitches.toString();
+    }
+
     /** Generate array of Glitch Times in ms */
     public static int[] getGlitchMilliseconds(int fftSamplingSize, int FFTOverlapSamples,
                                                 int[] glitchesData, int samplingRate) {
@@ -104,6 +123,12 @@ public class GlitchesStringBuilder {
         return glitchMilliseconds;
     }
 
+    /** Return the time span in ms of the FFT interval a glitch was detected in. */
+    public static int getGlitchSpanMilliseconds(int fftSamplingSize, int samplingRate) {
+        return (int) Math.ceil((double) fftSamplingSize * Constant.MILLIS_PER_SECOND /
+                               samplingRate);
+    }
+
     private static void log(String msg) {
         Log.v(TAG, msg);
     }
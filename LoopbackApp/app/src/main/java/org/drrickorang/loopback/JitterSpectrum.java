@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * This class looks for late callbacks that recur with a fixed period, such as a governor tick or
+ * a sensor hub waking up every few seconds. The lateness of the late callbacks is resampled onto
+ * a uniform grid of Constant.JITTER_GRID_MS or more, so that the FFT is at most
+ * Constant.JITTER_FFT_SIZE_MAX long, and the strongest peaks of its spectrum are reported.
+ * A train of late callbacks has a peak at every multiple of its frequency, so a peak is scored
+ * with its harmonics as well and only the fundamental is kept.
+ */
+
+public class JitterSpectrum {
+    private static final String TAG = "JitterSpectrum";
+
+    // each late callback is spread over the grid with a gaussian of this width in cells, which
+    // keeps the harmonics above the Nyquist frequency from aliasing into false peaks
+    private static final double SIGMA_CELLS = 1.0;
+    private static final int    KERNEL_HALF_WIDTH = 3;
+
+    private final List<Component> mComponents = new ArrayList<Component>();
+    private int mGridMs;
+
+    private static class Component {
+        final double mPeriodMs;
+        final double mAmplitudeMs;
+        final double mSnrDb;     // over the median of the spectrum
+
+        Component(double periodMs, double amplitudeMs, double snrDb) {
+            mPeriodMs = periodMs;
+            mAmplitudeMs = amplitudeMs;
+            mSnrDb = snrDb;
+        }
+    }
+
+
+    /**
+     * Analyze the late callbacks of "callbackTimes" over the first "durationMs" of the test. Only
+     * the part of the test covered by the recorded callbacks is used if their capacity was
+     * exceeded.
+     */
+    public JitterSpectrum(BufferCallbackTimes callbackTimes, int durationMs) {
+        int count = callbackTimes.getNumLateOrEarlyCallbacks();
+        if (callbackTimes.isCapacityExceeded() && count > 0) {
+            durationMs = Math.min(durationMs, callbackTimes.getTimeStamp(count - 1) + 1);
+        }
+        mGridMs = Math.max(Constant.JITTER_GRID_MS,
+                (int) ((durationMs + (long) Constant.JITTER_FFT_SIZE_MAX - 1) /
+                       Constant.JITTER_FFT_SIZE_MAX));
+        int cells = durationMs / mGridMs;
+        if (count == 0 || cells < Constant.JITTER_MIN_CELLS) {
+            return;
+        }
+
+        // lateness in ms, on time and early callbacks count as 0
+        int fftSize = Utilities.roundup(cells);
+        double[] real = new double[fftSize];
+        double[] imag = new double[fftSize];
+        int expected = callbackTimes.getExpectedBufferPeriod();
+        for (int i = 0; i < count; i++) {
+            int lateness = callbackTimes.getCallbackDuration(i) - expected;
+            if (lateness > 0) {
+                addToGrid(real, cells, (double) callbackTimes.getTimeStamp(i) / mGridMs,
+                          lateness);
+            }
+        }
+
+        // remove the mean and apply a Hann window, the rest of the FFT is zero padding
+        double mean = 0;
+        for (int i = 0; i < cells; i++) {
+            mean += real[i];
+        }
+        mean /= cells;
+        for (int i = 0; i < cells; i++) {
+            real[i] = (real[i] - mean) * 0.5 * (1 - Math.cos(2 * Math.PI * i / (cells - 1)));
+        }
+
+        new FFT(fftSize).fft(real, imag, 1);
+        int bins = fftSize / 2;
+        double[] magnitude = new double[bins + 1];
+        for (int k = 0; k <= bins; k++) {
+            magnitude[k] = Math.sqrt(real[k] * real[k] + imag[k] * imag[k]);
+        }
+
+        // need at least JITTER_MIN_REPETITIONS periods in the test, and 4 cells per period as
+        // the smoothing attenuates higher frequencies
+        int minBin = Math.max((int) Math.ceil(
+                (double) Constant.JITTER_MIN_REPETITIONS * fftSize / cells), 1);
+        int maxBin = bins / 2;
+        if (maxBin - minBin < Constant.JITTER_MIN_CELLS / 2) {
+            return;
+        }
+
+        // only the bins below maxBin / 2 have harmonics to score them with
+        double[] harmonicLevel = new double[maxBin / 2];
+        for (int k = minBin; k < maxBin / 2; k++) {
+            harmonicLevel[k] = getHarmonicLevel(magnitude, k, maxBin);
+        }
+        double floor = getFloor(magnitude, minBin, maxBin);
+        double harmonicFloor = getFloor(harmonicLevel, minBin, maxBin / 2);
+        if (floor <= 0 || harmonicFloor <= 0) {
+            return;
+        }
+
+        findComponents(magnitude, minBin, maxBin, floor, harmonicFloor, fftSize, cells);
+    }
+
+
+    /** Add "value" around the fractional cell "position" with a gaussian kernel. */
+    private static void addToGrid(double[] grid, int cells, double position, double value) {
+        int center = (int) Math.round(position);
+        int first = Math.max(center - KERNEL_HALF_WIDTH, 0);
+        int last = Math.min(center + KERNEL_HALF_WIDTH, cells - 1);
+        double total = 0;
+        for (int i = center - KERNEL_HALF_WIDTH; i <= center + KERNEL_HALF_WIDTH; i++) {
+            double distance = (i - position) / SIGMA_CELLS;
+            total += Math.exp(-0.5 * distance * distance);
+        }
+        for (int i = first; i <= last; i++) {
+            double distance = (i - position) / SIGMA_CELLS;
+            grid[i] += value * Math.exp(-0.5 * distance * distance) / total;
+        }
+    }
+
+
+    /**
+     * Return the median magnitude of the multiples of "bin" below "maxBin", up to
+     * Constant.JITTER_HARMONICS of them, or 0 if there aren't at least 2. Each is taken as the
+     * highest bin around the multiple, as the error on "bin" grows with the multiple. A median
+     * isn't raised by a single strong peak on one of the multiples, such as the harmonic of a
+     * train at another period, nor by half of them as for a subharmonic.
+     */
+    private static double getHarmonicLevel(double[] magnitude, double bin, int maxBin) {
+        double[] peaks = new double[Constant.JITTER_HARMONICS];
+        int harmonics = 0;
+        for (int m = 1; m <= Constant.JITTER_HARMONICS; m++) {
+            if (Math.round(m * bin) >= maxBin) {
+                break;
+            }
+            peaks[harmonics++] = getPeak(magnitude, m * bin,
+                                         1 + (int) (m * Constant.JITTER_BIN_ERROR));
+        }
+        if (harmonics < 2) {
+            return 0;
+        }
+        // the lower median
+        Arrays.sort(peaks, 0, harmonics);
+        return peaks[(harmonics - 1) / 2];
+    }
+
+
+    /**
+     * Return the median of "values", but no less than Constant.JITTER_DYNAMIC_RANGE below their
+     * maximum. Without other jitter the median is only the leakage of the window, and the far
+     * sidelobes of the peaks would stand out of it.
+     */
+    private static double getFloor(double[] values, int from, int to) {
+        double[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        return Math.max(sorted[sorted.length / 2],
+                        sorted[sorted.length - 1] * Constant.JITTER_DYNAMIC_RANGE);
+    }
+
+
+    /** The close sidelobes of a peak are local maxima, only the highest one is a candidate. */
+    private static boolean isHighestAround(double[] magnitude, int k) {
+        int first = Math.max(k - Constant.JITTER_PEAK_HALF_WIDTH, 0);
+        int last = Math.min(k + Constant.JITTER_PEAK_HALF_WIDTH, magnitude.length - 1);
+        for (int i = first; i <= last; i++) {
+            if (magnitude[i] > magnitude[k] || (magnitude[i] == magnitude[k] && i < k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Keep the local maxima which stand out of the spectrum on their own or with their
+     * harmonics, from the lowest frequency up, skipping multiples of those already kept.
+     */
+    private void findComponents(double[] magnitude, int minBin, int maxBin, double floor,
+                                double harmonicFloor, int fftSize, int cells) {
+        List<Double> fundamentalBins = new ArrayList<Double>();
+        for (int k = minBin; k < maxBin; k++) {
+            if (magnitude[k] < floor * Constant.JITTER_FUNDAMENTAL_MIN_RATIO ||
+                    !isHighestAround(magnitude, k)) {
+                continue;
+            }
+            double bin = k + interpolatePeak(magnitude[k - 1], magnitude[k], magnitude[k + 1]);
+            // the fundamental of a train has a peak as high as its harmonics, which rules out
+            // the subharmonics and the frequencies whose multiples only meet some of the peaks
+            double harmonicLevel = getHarmonicLevel(magnitude, bin, maxBin);
+            if (magnitude[k] < harmonicLevel * Constant.JITTER_FUNDAMENTAL_MIN_HARMONIC_RATIO) {
+                continue;
+            }
+            double ratio = Math.max(magnitude[k] / floor, harmonicLevel / harmonicFloor);
+            if ((magnitude[k] < floor * Constant.JITTER_PEAK_MIN_RATIO &&
+                    harmonicLevel < harmonicFloor * Constant.JITTER_HARMONIC_MIN_RATIO) ||
+                    isHarmonic(magnitude, bin, magnitude[k], fundamentalBins)) {
+                continue;
+            }
+            fundamentalBins.add(bin);
+
+            double periodMs = (double) fftSize * mGridMs / bin;
+            // a sine of amplitude A gives A * cells / 4 with a Hann window
+            double amplitudeMs = 4 * magnitude[k] / cells;
+            mComponents.add(new Component(periodMs, amplitudeMs, 20 * Math.log10(ratio)));
+        }
+
+        Collections.sort(mComponents, new Comparator<Component>() {
+            @Override
+            public int compare(Component a, Component b) {
+                return Double.compare(b.mSnrDb, a.mSnrDb);
+            }
+        });
+        while (mComponents.size() > Constant.JITTER_MAX_COMPONENTS) {
+            mComponents.remove(mComponents.size() - 1);
+        }
+        log("found " + mComponents.size() + " periodic components, grid " + mGridMs + " ms");
+    }
+
+
+    /** Return the offset of the top of the parabola through three magnitudes, in bins. */
+    private static double interpolatePeak(double left, double center, double right) {
+        double denominator = left - 2 * center + right;
+        if (denominator == 0) {
+            return 0;
+        }
+        return 0.5 * (left - right) / denominator;
+    }
+
+
+    /**
+     * Return true if the peak at "bin" is a multiple of one of the fundamentals. The error on the
+     * fundamental grows with the multiple, so does the tolerance. A peak which clearly stands out
+     * of the envelope of the harmonics around it is another train which happens to fall on a
+     * multiple.
+     */
+    private static boolean isHarmonic(double[] magnitude, double bin, double peak,
+                                      List<Double> fundamentalBins) {
+        for (double fundamental : fundamentalBins) {
+            long multiple = Math.round(bin / fundamental);
+            if (multiple < 2 || Math.abs(bin - multiple * fundamental) >
+                    1 + Constant.JITTER_BIN_ERROR * multiple) {
+                continue;
+            }
+            // the peak itself gives a better estimate of the fundamental to find the harmonics
+            // around it
+            double spacing = bin / multiple;
+            double envelope = 0;
+            for (long m = Math.max(multiple - Constant.JITTER_ENVELOPE_HARMONICS, 1);
+                    m <= multiple + Constant.JITTER_ENVELOPE_HARMONICS; m++) {
+                if (m != multiple) {
+                    envelope = Math.max(envelope, getPeak(magnitude, m * spacing, 1));
+                }
+            }
+            if (peak <= Constant.JITTER_ENVELOPE_MIN_RATIO * envelope) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Return the highest bin within "halfWidth" of "bin", or 0 past the end of the spectrum. */
+    private static double getPeak(double[] magnitude, double bin, int halfWidth) {
+        int k = (int) Math.round(bin);
+        if (k < 1 || k + 1 >= magnitude.length) {
+            return 0;
+        }
+        double peak = 0;
+        int last = Math.min(k + halfWidth, magnitude.length - 1);
+        for (int i = Math.max(k - halfWidth, 0); i <= last; i++) {
+            peak = Math.max(peak, magnitude[i]);
+        }
+        return peak;
+    }
+
+
+    public int getComponentCount() {
+        return mComponents.size();
+    }
+
+
+    public double getPeriodMs(int index) {
+        return mComponents.get(index).mPeriodMs;
+    }
+
+
+    /** Return the amplitude of the sine at this period, in ms of lateness per grid cell. */
+    public double getAmplitudeMs(int index) {
+        return mComponents.get(index).mAmplitudeMs;
+    }
+
+
+    public double getSnrDb(int index) {
+        return mComponents.get(index).mSnrDb;
+    }
+
+
+    public int getGridMs() {
+        return mGridMs;
+    }
+
+
+    /** Return one line per component, strongest first, or a single line if none was found. */
+    public String getReport(String name, String endline) {
+        StringBuilder sb = new StringBuilder();
+        if (mComponents.isEmpty()) {
+            sb.append(name + " Periodic Jitter = None" + endline);
+        }
+        for (Component component : mComponents) {
+            sb.append(name + " Periodic Jitter = " + String.format(Locale.US,
+                    "every %.2f s, amplitude %.2f ms, %.1f dB", component.mPeriodMs /
+                    Constant.MILLIS_PER_SECOND, component.mAmplitudeMs, component.mSnrDb) +
+                    endline);
+        }
+        return sb.toString();
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+}
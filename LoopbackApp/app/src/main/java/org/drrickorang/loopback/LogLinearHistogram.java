@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.util.Arrays;
+
+
+/**
+ * This class is a histogram of durations in microseconds with log-linear buckets, like an HDR
+ * histogram. Durations below 2 * SUB_BUCKETS us have 1 us buckets, after that every power of two
+ * is split into SUB_BUCKETS linear buckets, so each bucket is at most 1 / SUB_BUCKETS of its
+ * value wide: 32 us around 1 ms, 256 us around 10 ms. The last bucket counts everything from
+ * MAX_VALUE_US, so the memory used doesn't depend on the duration of the test.
+ * Native code fills the same layout, see histogram.h.
+ */
+
+public class LogLinearHistogram {
+    // Must match constants in cpp/histogram.h
+    public static final int  SUB_BUCKET_BITS = 5;
+    public static final int  SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int  MAX_SHIFT = 15;
+    public static final long MAX_VALUE_US = (long) (2 * SUB_BUCKETS) << MAX_SHIFT; // about 2.1 s
+    public static final int  BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS + 1; // last one for overflow
+
+    private final int[] mCounts;
+
+
+    public LogLinearHistogram() {
+        mCounts = new int[BUCKETS];
+    }
+
+
+    /** Wrap "counts", as returned by getCounts(), which must have BUCKETS elements. */
+    public LogLinearHistogram(int[] counts) {
+        if (counts.length != BUCKETS) {
+            throw new IllegalArgumentException("expected " + BUCKETS + " buckets, got " +
+                                               counts.length);
+        }
+        mCounts = counts;
+    }
+
+
+    /** Return the bucket counting "valueUs", which must be >= 0. */
+    public static int getBucket(long valueUs) {
+        if (valueUs >= MAX_VALUE_US) {
+            return BUCKETS - 1;
+        }
+        int shift = Math.max(63 - Long.numberOfLeadingZeros(valueUs) - SUB_BUCKET_BITS, 0);
+        return (shift << SUB_BUCKET_BITS) + (int) (valueUs >> shift);
+    }
+
+
+    /** Return the smallest value in us counted by "bucket". */
+    public static long getBucketLowUs(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return MAX_VALUE_US;
+        }
+        int shift = Math.max((bucket >> SUB_BUCKET_BITS) - 1, 0);
+        return (long) (bucket - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+
+
+    /** Return the middle of "bucket" in us, used as the value of everything it counts. */
+    public static double getBucketMidUs(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return MAX_VALUE_US;
+        }
+        int shift = Math.max((bucket >> SUB_BUCKET_BITS) - 1, 0);
+        return getBucketLowUs(bucket) + (1 << shift) / 2.0;
+    }
+
+
+    /** Count one duration, negative durations are ignored. */
+    public void record(long durationNs) {
+        if (durationNs >= 0) {
+            mCounts[getBucket(durationNs / Constant.NANOS_PER_MICRO)]++;
+        }
+    }
+
+
+    /** Return the counts, the array is shared and not a copy. */
+    public int[] getCounts() {
+        return mCounts;
+    }
+
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int count : mCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+
+    /**
+     * Return the middle of the bucket holding the "fraction" quantile in us (0.99 for p99),
+     * or 0 if the histogram is empty.
+     */
+    public double getPercentileUs(double fraction) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(fraction * total), 1);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            cumulative += mCounts[i];
+            if (cumulative >= rank) {
+                return getBucketMidUs(i);
+            }
+        }
+        return getBucketMidUs(BUCKETS - 1);
+    }
+
+
+    /** Return the highest bucket with a count, or -1 if the histogram is empty. */
+    public int getLastBucket() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (mCounts[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+    }
+
+}
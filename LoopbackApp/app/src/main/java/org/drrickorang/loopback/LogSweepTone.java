@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+/**
+ * Creates an exponential (log) sine sweep that can be injected in the Latency test instead of
+ * RampedSineTone. The sweep covers startFrequency to endFrequency over the generated size, so its
+ * energy is spread over the whole band, and the ends are faded to avoid clicks.
+ */
+public class LogSweepTone extends ToneGeneration {
+    private static final double FADE_FRACTION = 0.05; // of the size, at each end of the sweep
+
+    private final double mStartFrequency;
+    private final double mEndFrequency;
+
+
+    public LogSweepTone(int samplingRate, double startFrequency, double endFrequency) {
+        super(samplingRate);
+        mStartFrequency = startFrequency;
+        // stay below nyquist whatever the sampling rate
+        mEndFrequency = Math.min(endFrequency, 0.45 * samplingRate);
+        mAmplitude = Constant.LOOPBACK_AMPLITUDE;
+    }
+
+
+    @Override
+    public void generateTone(short[] tone, int size) {
+        for (int i = 0; i < size; i++) {
+            tone[i] = (short) (sample(i, size) * Short.MAX_VALUE);
+        }
+    }
+
+
+    @Override
+    public void generateTone(double[] tone, int size) {
+        for (int i = 0; i < size; i++) {
+            tone[i] = sample(i, size);
+        }
+    }
+
+
+    /** Return sample "i" of a sweep that is "size" samples long. */
+    private double sample(int i, int size) {
+        double duration = (double) size / mSamplingRate;
+        double rate = Math.log(mEndFrequency / mStartFrequency);
+        double t = (double) i / mSamplingRate;
+        double phase = Constant.TWO_PI * mStartFrequency * duration / rate *
+                       (Math.exp(t * rate / duration) - 1);
+
+        double fade = 1.0;
+        int fadeSize = (int) (FADE_FRACTION * size);
+        if (i < fadeSize) {
+            fade = 0.5 - 0.5 * Math.cos(Math.PI * i / fadeSize);
+        } else if (i >= size - fadeSize) {
+            fade = 0.5 - 0.5 * Math.cos(Math.PI * (size - 1 - i) / fadeSize);
+        }
+
+        return mAmplitude * fade * Math.sin(phase);
+    }
+
+
+    @Override
+    public void resetPhases() {
+        // every call generates the full sweep from its start
+    }
+
+}
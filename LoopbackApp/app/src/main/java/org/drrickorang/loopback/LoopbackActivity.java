@@ -59,10 +59,12 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
-import java.util.Arrays;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -137,15 +139,18 @@ public class LoopbackActivity extends Activity
     private int[]  mNativeRecorderBufferPeriodArray;
     private int    mNativeRecorderMaxBufferPeriod;
     private double mNativeRecorderStdDevBufferPeriod;
+    private double[] mNativeRecorderBufferPeriodQuantiles;
     private int[]  mNativePlayerBufferPeriodArray;
     private int    mNativePlayerMaxBufferPeriod;
     private double mNativePlayerStdDevBufferPeriod;
+    private double[] mNativePlayerBufferPeriodQuantiles;
     private BufferCallbackTimes mRecorderCallbackTimes;
     private BufferCallbackTimes mPlayerCallbackTimes;
 
     private static final String INTENT_SAMPLING_FREQUENCY = "SF";
     private static final String INTENT_CHANNEL_INDEX = "CI";
     private static final String INTENT_CORRELATION_BLOCK_SIZE = "BS";
+    private static final String INTENT_CORRELATION_METHOD = "CorrelationMethod";
     private static final String INTENT_FILENAME = "FileName";
     private static final String INTENT_RECORDER_BUFFER = "RecorderBuffer";
     private static final String INTENT_PLAYER_BUFFER = "PlayerBuffer";
@@ -154,6 +159,10 @@ public class LoopbackActivity extends Activity
     private static final String INTENT_PERFORMANCE_MODE = "PerformanceMode";
     private static final String INTENT_AUDIO_LEVEL = "AudioLevel";
     private static final String INTENT_IGNORE_FIRST_FRAMES = "IgnoreFirstFrames";
+    private static final String INTENT_LATENCY_TEST_IMPULSES = "NumImpulses";
+    private static final String INTENT_LATENCY_STIMULUS = "Stimulus";
+    private static final String INTENT_GLITCH_DETECTOR = "GlitchDetector";
+    private static final String INTENT_SAMPLE_FORMAT = "SampleFormat";
     private static final String INTENT_TEST_TYPE = "TestType";
     private static final String INTENT_BUFFER_TEST_DURATION = "BufferTestDuration";
     private static final String INTENT_NUMBER_LOAD_THREADS = "NumLoadThreads";
@@ -177,11 +186,18 @@ public class LoopbackActivity extends Activity
     private int   mPlayerBufferSizeInBytes;
     private int   mRecorderBufferSizeInBytes;
     private int   mIgnoreFirstFrames; // TODO: this only applies to native mode
+    private int   mLatencyTestImpulses; // only applies to java mode
+    private int   mLatencyStimulus;
+    private int   mGlitchDetector;
+    private int   mSampleFormat; // buffer test only
     private CaptureHolder mCaptureHolder;
 
     // for buffer test
     private int[]   mGlitchesData;
     private boolean mGlitchingIntervalTooLong;
+    private long[]  mGlitchPositions; // in samples, only for the residual glitch detector
+    private int[]   mGlitchDurations;
+    private PipeHealth mPipeHealth; // of the pipe feeding the glitch detection
     private int     mFFTSamplingSize;
     private int     mFFTOverlapSamples;
     private long    mBufferTestStartTime;
@@ -239,6 +255,10 @@ public class LoopbackActivity extends Activity
                     mRetainedFragment.setWaveData(mAudioThread.getWaveData());
                     mRecorderCallbackTimes = mRecorderBufferPeriod.getCallbackTimes();
                     mPlayerCallbackTimes = mPlayerBufferPeriod.getCallbackTimes();
+                    mCorrelation.setTemplate(mAudioThread.getLoopbackTone());
+                    mCorrelation.setStreamingCorrelation(mAudioThread.getStreamingCorrelation());
+                    mCorrelation.setImpulses(mLatencyTestImpulses, mSamplingRate *
+                            Constant.LATENCY_TEST_IMPULSE_SPACING_MS / Constant.MILLIS_PER_SECOND);
                     mCorrelation.computeCorrelation(mRetainedFragment.getWaveData(), mSamplingRate);
                     log("got message java latency rec complete!!");
                     refreshPlots();
@@ -269,6 +289,8 @@ public class LoopbackActivity extends Activity
                 refreshState();
                 refreshPlots();
                 mBufferTestStartTime = System.currentTimeMillis();
+                mMessageHandler.removeCallbacks(mLiveStatsRunnable);
+                mMessageHandler.postDelayed(mLiveStatsRunnable, Constant.LIVE_STATS_INTERVAL_MS);
                 break;
 
             case LoopbackAudioThread.LOOPBACK_AUDIO_THREAD_MESSAGE_BUFFER_REC_ERROR:
@@ -282,10 +304,14 @@ public class LoopbackActivity extends Activity
 
             case LoopbackAudioThread.LOOPBACK_AUDIO_THREAD_MESSAGE_BUFFER_REC_STOP:
             case LoopbackAudioThread.LOOPBACK_AUDIO_THREAD_MESSAGE_BUFFER_REC_COMPLETE:
+                mMessageHandler.removeCallbacks(mLiveStatsRunnable);
                 if (mAudioThread != null) {
                     mRetainedFragment.setWaveData(mAudioThread.getWaveData());
                     mGlitchesData = mAudioThread.getAllGlitches();
                     mGlitchingIntervalTooLong = mAudioThread.getGlitchingIntervalTooLong();
+                    mGlitchPositions = mAudioThread.getGlitchPositions();
+                    mGlitchDurations = mAudioThread.getGlitchDurations();
+                    mPipeHealth = mAudioThread.getPipeHealth();
                     mFFTSamplingSize = mAudioThread.getFFTSamplingSize();
                     mFFTOverlapSamples = mAudioThread.getFFTOverlapSamples();
                     mRecorderCallbackTimes = mRecorderBufferPeriod.getCallbackTimes();
@@ -331,6 +357,8 @@ public class LoopbackActivity extends Activity
                 refreshState();
                 refreshPlots();
                 mBufferTestStartTime = System.currentTimeMillis();
+                mMessageHandler.removeCallbacks(mLiveStatsRunnable);
+                mMessageHandler.postDelayed(mLiveStatsRunnable, Constant.LIVE_STATS_INTERVAL_MS);
                 break;
 
             case NativeAudioThread.LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_ERROR:
@@ -355,9 +383,13 @@ public class LoopbackActivity extends Activity
             case NativeAudioThread.LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_COMPLETE:
             case NativeAudioThread.LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_BUFFER_REC_COMPLETE_ERRORS:
             case NativeAudioThread.LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_LATENCY_REC_COMPLETE_ERRORS:
+                mMessageHandler.removeCallbacks(mLiveStatsRunnable);
                     if (mNativeAudioThread != null) {
                     mGlitchesData = mNativeAudioThread.getNativeAllGlitches();
                     mGlitchingIntervalTooLong = mNativeAudioThread.getGlitchingIntervalTooLong();
+                    mGlitchPositions = mNativeAudioThread.getGlitchPositions();
+                    mGlitchDurations = mNativeAudioThread.getGlitchDurations();
+                    mPipeHealth = mNativeAudioThread.getPipeHealth();
                     mFFTSamplingSize = mNativeAudioThread.getNativeFFTSamplingSize();
                     mFFTOverlapSamples = mNativeAudioThread.getNativeFFTOverlapSamples();
                     mRetainedFragment.setWaveData(mNativeAudioThread.getWaveData());
@@ -366,15 +398,25 @@ public class LoopbackActivity extends Activity
                             mNativeAudioThread.getRecorderMaxBufferPeriod();
                     mNativeRecorderStdDevBufferPeriod =
                             mNativeAudioThread.getRecorderStdDevBufferPeriod();
+                    mNativeRecorderBufferPeriodQuantiles =
+                            mNativeAudioThread.getRecorderBufferPeriodQuantiles();
                     mNativePlayerBufferPeriodArray = mNativeAudioThread.getPlayerBufferPeriod();
                     mNativePlayerMaxBufferPeriod = mNativeAudioThread.getPlayerMaxBufferPeriod();
                     mNativePlayerStdDevBufferPeriod =
                             mNativeAudioThread.getPlayerStdDevBufferPeriod();
+                    mNativePlayerBufferPeriodQuantiles =
+                            mNativeAudioThread.getPlayerBufferPeriodQuantiles();
                     mRecorderCallbackTimes = mNativeAudioThread.getRecorderCallbackTimes();
                     mPlayerCallbackTimes = mNativeAudioThread.getPlayerCallbackTimes();
 
                     if (msg.what != NativeAudioThread.
                             LOOPBACK_NATIVE_AUDIO_THREAD_MESSAGE_BUFFER_REC_COMPLETE) {
+                        mCorrelation.setTemplate(mNativeAudioThread.getLoopbackTone());
+                        mCorrelation.setStreamingCorrelation(
+                                mNativeAudioThread.getStreamingCorrelation());
+                        mCorrelation.setImpulses(mLatencyTestImpulses, mSamplingRate *
+                                Constant.LATENCY_TEST_IMPULSE_SPACING_MS /
+                                Constant.MILLIS_PER_SECOND);
                         mCorrelation.computeCorrelation(mRetainedFragment.getWaveData(),
                                 mSamplingRate);
                     }
@@ -631,7 +673,8 @@ public class LoopbackActivity extends Activity
             // --ei AudioThread 1 --ei MicSource 3 --ei AudioLevel 12
             // --ei TestType 223 --ei BufferTestDuration 60 --ei NumLoadThreads 4
             // --ei CI -1 --ez CaptureSysTrace true --ez CaptureWavs false --ei NumCaptures 5
-            // --ei WavDuration 15
+            // --ei WavDuration 15 --ei CorrelationMethod 1 --ei NumImpulses 10 --ei Stimulus 1
+            // --ei GlitchDetector 1 --ei SampleFormat 4
 
             // Note: for native mode, player and recorder buffer sizes are the same, and can only be
             // set through player buffer size
@@ -683,6 +726,11 @@ public class LoopbackActivity extends Activity
                 mIntentRunning = true;
             }
 
+            if (b.containsKey(INTENT_CORRELATION_METHOD)) {
+                mCorrelation.setMethod(b.getInt(INTENT_CORRELATION_METHOD));
+                mIntentRunning = true;
+            }
+
             if (b.containsKey(INTENT_CHANNEL_INDEX)) {
                 getApp().setChannelIndex(b.getInt(INTENT_CHANNEL_INDEX));
                 mChannelIndex = b.getInt(INTENT_CHANNEL_INDEX);
@@ -716,6 +764,31 @@ public class LoopbackActivity extends Activity
                 mIntentRunning = true;
             }
 
+            if (b.containsKey(INTENT_LATENCY_STIMULUS)) {
+                getApp().setLatencyStimulus(b.getInt(INTENT_LATENCY_STIMULUS));
+                // sweeps and MLS are meant to be deconvolved, unless asked otherwise
+                if (!b.containsKey(INTENT_CORRELATION_METHOD) &&
+                        getApp().getLatencyStimulus() != Constant.LATENCY_STIMULUS_TONE) {
+                    mCorrelation.setMethod(Constant.CORRELATION_METHOD_DECONVOLUTION);
+                }
+                mIntentRunning = true;
+            }
+
+            if (b.containsKey(INTENT_LATENCY_TEST_IMPULSES)) {
+                getApp().setLatencyTestImpulses(b.getInt(INTENT_LATENCY_TEST_IMPULSES));
+                mIntentRunning = true;
+            }
+
+            if (b.containsKey(INTENT_GLITCH_DETECTOR)) {
+                getApp().setGlitchDetector(b.getInt(INTENT_GLITCH_DETECTOR));
+                mIntentRunning = true;
+            }
+
+            if (b.containsKey(INTENT_SAMPLE_FORMAT)) {
+                getApp().setSampleFormat(b.getInt(INTENT_SAMPLE_FORMAT));
+                mIntentRunning = true;
+            }
+
             if (b.containsKey(INTENT_AUDIO_LEVEL)) {
                 int audioLevel = b.getInt(INTENT_AUDIO_LEVEL);
                 if (audioLevel >= 0) {
@@ -919,6 +992,10 @@ public class LoopbackActivity extends Activity
         mMicSource = getApp().getMicSource();
         mPerformanceMode = getApp().getPerformanceMode();
         mIgnoreFirstFrames = getApp().getIgnoreFirstFrames();
+        mLatencyTestImpulses = getApp().getLatencyTestImpulses();
+        mLatencyStimulus = getApp().getLatencyStimulus();
+        mGlitchDetector = getApp().getGlitchDetector();
+        mSampleFormat = getApp().getSampleFormat();
         AudioManager am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         mSoundLevel = am.getStreamVolume(AudioManager.STREAM_MUSIC);
         mBufferTestDurationInSeconds = getApp().getBufferTestDuration();
@@ -945,14 +1022,14 @@ public class LoopbackActivity extends Activity
                             / (Constant.BYTES_PER_FRAME * mSamplingRate));
             mRecorderBufferPeriod.prepareMemberObjects(
                     Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND * mBufferTestDurationInSeconds,
-                    expectedRecorderBufferPeriod, mCaptureHolder);
+                    expectedRecorderBufferPeriod, getMaxCallbackWindows(), mCaptureHolder);
 
             int expectedPlayerBufferPeriod = Math.round(
                     (float) (mPlayerBufferSizeInBytes * Constant.MILLIS_PER_SECOND)
                             / (Constant.BYTES_PER_FRAME * mSamplingRate));
             mPlayerBufferPeriod.prepareMemberObjects(
                     Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND * mBufferTestDurationInSeconds,
-                    expectedPlayerBufferPeriod, mCaptureHolder);
+                    expectedPlayerBufferPeriod, getMaxCallbackWindows(), mCaptureHolder);
 
             mAudioThread = new LoopbackAudioThread(mSamplingRate, mPlayerBufferSizeInBytes,
                           mRecorderBufferSizeInBytes, micSourceMapped,
@@ -962,6 +1039,14 @@ public class LoopbackActivity extends Activity
                           mChannelIndex, mCaptureHolder);
             mAudioThread.setMessageHandler(mMessageHandler);
             mAudioThread.mSessionId = sessionId;
+            mAudioThread.setLatencyTestImpulses(mLatencyTestImpulses);
+            mAudioThread.setLatencyStimulus(mLatencyStimulus);
+            mAudioThread.setGlitchDetector(mGlitchDetector);
+            mAudioThread.setSampleFormat(mSampleFormat);
+            // each impulse of a multi-impulse test needs the full recording
+            mAudioThread.setStreamingCorrelationEnabled(
+                    mCorrelation.getMethod() == Constant.CORRELATION_METHOD_STREAMING &&
+                    mLatencyTestImpulses == 1);
             mAudioThread.start();
             break;
         case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
@@ -978,6 +1063,14 @@ public class LoopbackActivity extends Activity
                                 mIgnoreFirstFrames, mCaptureHolder);
             mNativeAudioThread.setMessageHandler(mMessageHandler);
             mNativeAudioThread.mSessionId = sessionId;
+            mNativeAudioThread.setLatencyTestImpulses(mLatencyTestImpulses);
+            mNativeAudioThread.setLatencyStimulus(mLatencyStimulus);
+            mNativeAudioThread.setGlitchDetector(mGlitchDetector);
+            mNativeAudioThread.setSampleFormat(mSampleFormat);
+            // each impulse of a multi-impulse test needs the full recording
+            mNativeAudioThread.setStreamingCorrelationEnabled(
+                    mCorrelation.getMethod() == Constant.CORRELATION_METHOD_STREAMING &&
+                    mLatencyTestImpulses == 1);
             mNativeAudioThread.start();
             break;
         }
@@ -1204,6 +1297,46 @@ public class LoopbackActivity extends Activity
         doCalibrationIfEnabled(latencyTestRunnable);
     }
 
+    /**
+     * Show the statistics published by the audio threads every Constant.LIVE_STATS_INTERVAL_MS
+     * while a buffer test is running. They are also logged, so a long test can be followed with
+     * adb logcat -s LoopbackActivity
+     */
+    private Runnable mLiveStatsRunnable = new Runnable() {
+        public void run() {
+            BufferPeriodSnapshot recorder;
+            BufferPeriodSnapshot player;
+            int glitches;
+            if (mAudioThread != null && mAudioThread.mIsRunning) {
+                recorder = mAudioThread.getRecorderBufferPeriodSnapshot();
+                player = mAudioThread.getPlayerBufferPeriodSnapshot();
+                glitches = mAudioThread.getGlitchCount();
+            } else if (mNativeAudioThread != null && mNativeAudioThread.mIsRunning) {
+                recorder = mNativeAudioThread.getRecorderBufferPeriodSnapshot();
+                player = mNativeAudioThread.getPlayerBufferPeriodSnapshot();
+                glitches = mNativeAudioThread.getGlitchCount();
+            } else {
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%d s, glitching intervals: %d",
+                    (System.currentTimeMillis() - mBufferTestStartTime) /
+                    Constant.MILLIS_PER_SECOND, glitches));
+            if (recorder != null) {
+                sb.append("\n").append(recorder.getSummary("Recorder"));
+            }
+            if (player != null) {
+                sb.append("\n").append(player.getSummary("Player"));
+            }
+            mTextViewResultSummary.setText(sb.toString());
+            log("live stats: " + sb.toString().replace('\n', ' '));
+
+            mMessageHandler.postDelayed(this, Constant.LIVE_STATS_INTERVAL_MS);
+        }
+    };
+
+
     private Runnable latencyTestRunnable = new Runnable() {
         @Override
         public void run() {
@@ -1450,8 +1583,8 @@ public class LoopbackActivity extends Activity
                 bufferPeriodArray, maxBufferPeriod);
         saveHistogram(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderBufferPeriod.png"),
                 bufferPeriodArray, maxBufferPeriod);
-        saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderBufferPeriodTimes.txt"),
-                mRecorderCallbackTimes.toString());
+        saveCallbackTimes(Uri.parse(FILE_SAVE_PATH + fileName + "_recorderBufferPeriodTimes.txt"),
+                mRecorderCallbackTimes);
 
         bufferPeriodArray = null;
         maxBufferPeriod = Constant.UNKNOWN;
@@ -1472,8 +1605,8 @@ public class LoopbackActivity extends Activity
                 , bufferPeriodArray, maxBufferPeriod);
         saveHistogram(Uri.parse(FILE_SAVE_PATH + fileName + "_playerBufferPeriod.png"),
                 bufferPeriodArray, maxBufferPeriod);
-        saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_playerBufferPeriodTimes.txt"),
-                mPlayerCallbackTimes.toString());
+        saveCallbackTimes(Uri.parse(FILE_SAVE_PATH + fileName + "_playerBufferPeriodTimes.txt"),
+                mPlayerCallbackTimes);
 
         if (mGlitchesData != null) {
             saveGlitchOccurrences(Uri.parse(FILE_SAVE_PATH + fileName + "_glitchMillis.txt"),
@@ -1485,6 +1618,12 @@ public class LoopbackActivity extends Activity
                     mGlitchingIntervalTooLong, mBufferTestElapsedSeconds, fileName);
         }
 
+        if (mGlitchPositions != null) {
+            saveTextToFile(Uri.parse(FILE_SAVE_PATH + fileName + "_glitchPositions.txt"),
+                    GlitchesStringBuilder.getGlitchPositionStringForFile(mGlitchPositions,
+                            mGlitchDurations, mSamplingRate));
+        }
+
     }
 
 
@@ -1593,15 +1732,13 @@ public class LoopbackActivity extends Activity
 
             case SAVE_PLAYER_BUFFER_PERIOD_TIMES_TO_TXT_REQUEST:
                 if (resultData != null) {
-                    saveTextToFile(resultData.getData(),
-                            mPlayerCallbackTimes.toString());
+                    saveCallbackTimes(resultData.getData(), mPlayerCallbackTimes);
                 }
                 break;
 
             case SAVE_RECORDER_BUFFER_PERIOD_TIMES_TO_TXT_REQUEST:
                 if (resultData != null) {
-                    saveTextToFile(resultData.getData(),
-                            mRecorderCallbackTimes.toString());
+                    saveCallbackTimes(resultData.getData(), mRecorderCallbackTimes);
                 }
                 break;
 
@@ -1648,14 +1785,27 @@ public class LoopbackActivity extends Activity
     }
 
 
+    /** Return the number of callback summaries to allocate for the buffer test. */
+    private int getMaxCallbackWindows() {
+        return (int) Math.min((long) mBufferTestDurationInSeconds * Constant.MILLIS_PER_SECOND /
+                              Constant.CALLBACK_WINDOW_MS + Constant.CALLBACK_WINDOWS_EXTRA,
+                              Constant.MAX_CALLBACK_WINDOWS);
+    }
+
+
     /** Reset all results gathered from previous round of test (if any). */
     private void resetResults() {
         mCorrelation.invalidate();
         mNativeRecorderBufferPeriodArray = null;
         mNativePlayerBufferPeriodArray = null;
+        mNativeRecorderBufferPeriodQuantiles = null;
+        mNativePlayerBufferPeriodQuantiles = null;
         mPlayerCallbackTimes = null;
         mRecorderCallbackTimes = null;
         mGlitchesData = null;
+        mGlitchPositions = null;
+        mGlitchDurations = null;
+        mPipeHealth = null;
         mRetainedFragment.setWaveData(null);
     }
 
@@ -2119,14 +2269,19 @@ public class LoopbackActivity extends Activity
                 outputStream = new FileOutputStream(fileDescriptor);
                 log("Done creating output stream for saving buffer period");
 
-                int usefulDataRange = Math.min(maxBufferPeriod + 1, bufferPeriodArray.length);
-                int[] usefulBufferData = Arrays.copyOfRange(bufferPeriodArray, 0, usefulDataRange);
+                // one line per bucket of the histogram, up to the last one with a count. The first
+                // column is the start of the bucket in ms.
+                LogLinearHistogram histogram = new LogLinearHistogram(bufferPeriodArray);
+                int lastBucket = histogram.getLastBucket();
 
                 String endline = "\n";
                 String delimiter = ",";
                 StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < usefulBufferData.length; i++) {
-                    sb.append(i + delimiter + usefulBufferData[i] + endline);
+                for (int i = 0; i <= lastBucket; i++) {
+                    sb.append(String.format(Locale.US, "%.3f",
+                            (double) LogLinearHistogram.getBucketLowUs(i) /
+                            Constant.MICROS_PER_MILLI) + delimiter + bufferPeriodArray[i] +
+                            endline);
                 }
 
                 outputStream.write(sb.toString().getBytes());
@@ -2175,6 +2330,37 @@ public class LoopbackActivity extends Activity
         }
     }
 
+    /**
+     * Save a .txt file of late or early callbacks, one "timestamp,length" line each. The lines
+     * are streamed to the file instead of building the whole text first.
+     */
+    private void saveCallbackTimes(Uri uri, BufferCallbackTimes callbackTimes) {
+        ParcelFileDescriptor parcelFileDescriptor = null;
+        try {
+            parcelFileDescriptor = getApplicationContext().getContentResolver().
+                                   openFileDescriptor(uri, "w");
+
+            FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(fileDescriptor)));
+            log("Done creating output stream for saving callback times");
+
+            callbackTimes.write(writer);
+            writer.flush();
+        } catch (Exception e) {
+            log("Failed to open text file " + e);
+        } finally {
+            try {
+                if (parcelFileDescriptor != null) {
+                    parcelFileDescriptor.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                log("Error closing ParcelFile Descriptor");
+            }
+        }
+    }
+
     private StringBuilder getReport() {
         String endline = "\n";
         final int stringLength = 300;
@@ -2212,6 +2398,30 @@ public class LoopbackActivity extends Activity
 
                 sb.append(String.format("Average = %.4f", mCorrelation.mAverage) + endline);
                 sb.append(String.format("RMS = %.4f", mCorrelation.mRms) + endline);
+
+                sb.append(INTENT_LATENCY_STIMULUS + " = " + mLatencyStimulus + endline);
+                if (mCorrelation.isValid() && mCorrelation.mFrequencyResponseHz != null) {
+                    for (int i = 0; i < mCorrelation.mFrequencyResponseHz.length; i++) {
+                        sb.append(String.format("FrequencyResponse_%dHz = %.1f dB",
+                                (int) mCorrelation.mFrequencyResponseHz[i],
+                                mCorrelation.mFrequencyResponseDb[i]) + endline);
+                    }
+                }
+
+                if (mCorrelation.isValid() && mCorrelation.mImpulseLatenciesMs != null) {
+                    sb.append(INTENT_LATENCY_TEST_IMPULSES + " = " + mLatencyTestImpulses +
+                            endline);
+                    sb.append("LatencyValidImpulses = " +
+                            mCorrelation.mImpulseLatenciesMs.length + endline);
+                    sb.append(String.format("LatencyMsMin = %.2f",
+                            mCorrelation.getLatencyPercentileMs(0)) + endline);
+                    sb.append(String.format("LatencyMsP50 = %.2f",
+                            mCorrelation.getLatencyPercentileMs(50)) + endline);
+                    sb.append(String.format("LatencyMsP90 = %.2f",
+                            mCorrelation.getLatencyPercentileMs(90)) + endline);
+                    sb.append(String.format("LatencyMsMax = %.2f",
+                            mCorrelation.getLatencyPercentileMs(100)) + endline);
+                }
                 break;
 
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD:
@@ -2219,30 +2429,26 @@ public class LoopbackActivity extends Activity
 
                 // report recorder results
                 int[] recorderBufferData = null;
-                int recorderBufferDataMax = 0;
                 double recorderBufferDataStdDev = 0.0;
+                double[] recorderBufferDataQuantiles = null;
                 switch (mAudioThreadType) {
                     case Constant.AUDIO_THREAD_TYPE_JAVA:
                         recorderBufferData = mRecorderBufferPeriod.getBufferPeriodArray();
-                        recorderBufferDataMax = mRecorderBufferPeriod.getMaxBufferPeriod();
                         recorderBufferDataStdDev = mRecorderBufferPeriod.getStdDevBufferPeriod();
+                        recorderBufferDataQuantiles =
+                                mRecorderBufferPeriod.getBufferPeriodQuantiles();
                         break;
                     case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
                     case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
                         recorderBufferData = mNativeRecorderBufferPeriodArray;
-                        recorderBufferDataMax = mNativeRecorderMaxBufferPeriod;
                         recorderBufferDataStdDev = mNativeRecorderStdDevBufferPeriod;
+                        recorderBufferDataQuantiles = mNativeRecorderBufferPeriodQuantiles;
                         break;
                 }
                 // report expected recorder buffer period
                 if (recorderBufferData != null) {
-                    // this is the range of data that actually has values
-                    int usefulDataRange = Math.min(recorderBufferDataMax + 1,
-                            recorderBufferData.length);
-                    int[] usefulBufferData = Arrays.copyOfRange(recorderBufferData, 0,
-                            usefulDataRange);
                     PerformanceMeasurement measurement = new PerformanceMeasurement(
-                            mRecorderCallbackTimes.getExpectedBufferPeriod(), usefulBufferData);
+                            mRecorderCallbackTimes.getExpectedBufferPeriod(), recorderBufferData);
                     double recorderPercentAtExpected =
                             measurement.percentBufferPeriodsAtExpected();
                     double benchmark = measurement.computeWeightedBenchmark();
@@ -2255,6 +2461,7 @@ public class LoopbackActivity extends Activity
                     sb.append("Recorder Buffer Period Std Dev = "
                             + String.format(Locale.US, "%.5f ms", recorderBufferDataStdDev)
                             + endline);
+                    appendQuantiles(sb, "Recorder", recorderBufferDataQuantiles, endline);
 
                     // output thousandths of a percent not at expected buffer period
                     sb.append("kth% Late Recorder Buffer Callbacks = "
@@ -2268,32 +2475,27 @@ public class LoopbackActivity extends Activity
 
                 // report player results
                 int[] playerBufferData = null;
-                int playerBufferDataMax = 0;
                 double playerBufferDataStdDev = 0.0;
+                double[] playerBufferDataQuantiles = null;
                 switch (mAudioThreadType) {
                     case Constant.AUDIO_THREAD_TYPE_JAVA:
                         playerBufferData = mPlayerBufferPeriod.getBufferPeriodArray();
-                        playerBufferDataMax = mPlayerBufferPeriod.getMaxBufferPeriod();
                         playerBufferDataStdDev = mPlayerBufferPeriod.getStdDevBufferPeriod();
+                        playerBufferDataQuantiles = mPlayerBufferPeriod.getBufferPeriodQuantiles();
                         break;
                     case Constant.AUDIO_THREAD_TYPE_NATIVE_SLES:
                     case Constant.AUDIO_THREAD_TYPE_NATIVE_AAUDIO:
                         playerBufferData = mNativePlayerBufferPeriodArray;
-                        playerBufferDataMax = mNativePlayerMaxBufferPeriod;
                         playerBufferDataStdDev = mNativePlayerStdDevBufferPeriod;
+                        playerBufferDataQuantiles = mNativePlayerBufferPeriodQuantiles;
                         break;
                 }
                 // report expected player buffer period
                 sb.append("Expected Player Buffer Period (ms) = " +
                         mPlayerCallbackTimes.getExpectedBufferPeriod() + endline);
                 if (playerBufferData != null) {
-                    // this is the range of data that actually has values
-                    int usefulDataRange = Math.min(playerBufferDataMax + 1,
-                            playerBufferData.length);
-                    int[] usefulBufferData = Arrays.copyOfRange(playerBufferData, 0,
-                            usefulDataRange);
                     PerformanceMeasurement measurement = new PerformanceMeasurement(
-                            mPlayerCallbackTimes.getExpectedBufferPeriod(), usefulBufferData);
+                            mPlayerCallbackTimes.getExpectedBufferPeriod(), playerBufferData);
                     double playerPercentAtExpected = measurement.percentBufferPeriodsAtExpected();
                     double benchmark = measurement.computeWeightedBenchmark();
                     int outliers = measurement.countOutliers();
@@ -2303,6 +2505,7 @@ public class LoopbackActivity extends Activity
                     sb.append("Player Buffer Period Std Dev = "
                             + String.format(Locale.US, "%.5f ms", playerBufferDataStdDev)
                             + endline);
+                    appendQuantiles(sb, "Player", playerBufferDataQuantiles, endline);
 
                     // output thousandths of a percent not at expected buffer period
                     sb.append("kth% Late Player Buffer Callbacks = "
@@ -2325,6 +2528,8 @@ public class LoopbackActivity extends Activity
                     sb.append("Glitches Per Hour = " + glitchesPerHour + endline);
                 }
                 sb.append("Total Number of Glitches = " + numberOfGlitches + endline);
+                sb.append(INTENT_GLITCH_DETECTOR + " = " + mGlitchDetector + endline);
+                sb.append(INTENT_SAMPLE_FORMAT + " = " + mSampleFormat + endline);
 
                 // report if the total glitching interval is too long
                 sb.append("Total glitching interval too long =  " +
@@ -2339,6 +2544,31 @@ public class LoopbackActivity extends Activity
                 sb.append("\nLate Recorder Callbacks Exceeded Capacity = ");
                 sb.append(mRecorderCallbackTimes.isCapacityExceeded());
                 sb.append("\n");
+
+                // a slow periodic disturbance (e.g. a system task waking up) shows as a train
+                // of late callbacks, too sparse to stand out in the heat map
+                int testDurationMs = mBufferTestElapsedSeconds * Constant.MILLIS_PER_SECOND;
+                sb.append(new JitterSpectrum(mPlayerCallbackTimes, testDurationMs)
+                        .getReport("Player", endline));
+                sb.append(new JitterSpectrum(mRecorderCallbackTimes, testDurationMs)
+                        .getReport("Recorder", endline));
+
+                // tells whether glitches come with input, output or shared callback stalls
+                if (mGlitchesData != null) {
+                    int[] glitchMs = GlitchesStringBuilder.getGlitchMilliseconds(
+                            mFFTSamplingSize, mFFTOverlapSamples, mGlitchesData, mSamplingRate);
+                    StallCoupling coupling = new StallCoupling(mRecorderCallbackTimes,
+                            mPlayerCallbackTimes, glitchMs,
+                            GlitchesStringBuilder.getGlitchSpanMilliseconds(mFFTSamplingSize,
+                                    mSamplingRate), testDurationMs);
+                    sb.append(coupling.getReport(endline));
+                }
+
+                // tells whether a glitch came from the device, or from the glitch detection
+                // falling behind the recorder
+                if (mPipeHealth != null) {
+                    sb.append(mPipeHealth.getReport("Analysis Pipe", mSamplingRate, endline));
+                }
         }
 
 
@@ -2377,6 +2607,18 @@ public class LoopbackActivity extends Activity
         }
     }
 
+    /** Append one line per buffer period quantile, see StreamingQuantiles.QUANTILES. */
+    private static void appendQuantiles(StringBuilder sb, String name, double[] quantiles,
+                                        String endline) {
+        if (quantiles == null) {
+            return;
+        }
+        for (int i = 0; i < quantiles.length; i++) {
+            sb.append(name + " Buffer Period " + StreamingQuantiles.getQuantileName(i) + " = "
+                    + String.format(Locale.US, "%.3f ms", quantiles[i]) + endline);
+        }
+    }
+
     /**
      * Estimate the number of glitches. This version of estimation will count two consecutive
      * glitching intervals as one glitch. This is because two time intervals are partly overlapped.
@@ -2555,6 +2797,10 @@ public class LoopbackActivity extends Activity
             mNativePlayerMaxBufferPeriod = in.getInt("mNativePlayerMaxBufferPeriod");
             mNativeRecorderBufferPeriodArray = in.getIntArray("mNativeRecorderBufferPeriodArray");
             mNativeRecorderMaxBufferPeriod = in.getInt("mNativeRecorderMaxBufferPeriod");
+            mNativePlayerBufferPeriodQuantiles =
+                    in.getDoubleArray("mNativePlayerBufferPeriodQuantiles");
+            mNativeRecorderBufferPeriodQuantiles =
+                    in.getDoubleArray("mNativeRecorderBufferPeriodQuantiles");
 
             mWavePlotView.setData(mRetainedFragment.getWaveData(), mSamplingRate);
             refreshState();
@@ -2587,6 +2833,10 @@ public class LoopbackActivity extends Activity
         out.putInt("mNativePlayerMaxBufferPeriod", mNativePlayerMaxBufferPeriod);
         out.putIntArray("mNativeRecorderBufferPeriodArray", mNativeRecorderBufferPeriodArray);
         out.putInt("mNativeRecorderMaxBufferPeriod", mNativeRecorderMaxBufferPeriod);
+        out.putDoubleArray("mNativePlayerBufferPeriodQuantiles",
+                mNativePlayerBufferPeriodQuantiles);
+        out.putDoubleArray("mNativeRecorderBufferPeriodQuantiles",
+                mNativeRecorderBufferPeriodQuantiles);
 
         // buffer test values
         out.putIntArray("mGlitchesData", mGlitchesData);
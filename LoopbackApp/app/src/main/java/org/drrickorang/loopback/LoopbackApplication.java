@@ -20,6 +20,7 @@ import android.app.Application;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.media.AudioFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.util.Log;
@@ -49,6 +50,10 @@ public class LoopbackApplication extends Application {
     private boolean mCaptureWavSnippetsEnabled = false;
     private boolean mSoundLevelCalibrationEnabled = false;
     private int mNumStateCaptures = Constant.DEFAULT_NUM_CAPTURES;
+    private int mLatencyTestImpulses = Constant.DEFAULT_LATENCY_TEST_IMPULSES;
+    private int mLatencyStimulus = Constant.LATENCY_STIMULUS_TONE;
+    private int mGlitchDetector = Constant.GLITCH_DETECTOR_FFT;
+    private int mSampleFormat = AudioFormat.ENCODING_PCM_16BIT; // buffer test only
 
     public void setDefaults() {
         // Prefer SLES until buffer test is implemented for AAudio.
@@ -233,6 +238,46 @@ public class LoopbackApplication extends Application {
         mIgnoreFirstFrames = ignoreFirstFrames;
     }
 
+    int getLatencyTestImpulses() {
+        return mLatencyTestImpulses;
+    }
+
+    void setLatencyTestImpulses(int latencyTestImpulses) {
+        mLatencyTestImpulses = Utilities.clamp(latencyTestImpulses,
+                Constant.MIN_LATENCY_TEST_IMPULSES, Constant.MAX_LATENCY_TEST_IMPULSES);
+    }
+
+    int getLatencyStimulus() {
+        return mLatencyStimulus;
+    }
+
+    void setLatencyStimulus(int latencyStimulus) {
+        mLatencyStimulus = Utilities.clamp(latencyStimulus, Constant.LATENCY_STIMULUS_TONE,
+                Constant.LATENCY_STIMULUS_MLS);
+    }
+
+    int getGlitchDetector() {
+        return mGlitchDetector;
+    }
+
+    void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = Utilities.clamp(glitchDetector, Constant.GLITCH_DETECTOR_FFT,
+                Constant.GLITCH_DETECTOR_RESIDUAL);
+    }
+
+    int getSampleFormat() {
+        return mSampleFormat;
+    }
+
+    /** Only 16 bit and float samples can be recorded, anything else means 16 bit. */
+    void setSampleFormat(int sampleFormat) {
+        if (sampleFormat == AudioFormat.ENCODING_PCM_FLOAT) {
+            mSampleFormat = sampleFormat;
+        } else {
+            mSampleFormat = AudioFormat.ENCODING_PCM_16BIT;
+        }
+    }
+
     int getPlayerBufferSizeInBytes() {
         return mSettings.getPlayerBufferSizeInBytes();
     }
@@ -36,6 +36,7 @@ public class LoopbackAudioThread extends Thread {
     private static final String TAG = "LoopbackAudioThread";
 
     private static final int THREAD_SLEEP_DURATION_MS = 1;
+    private static final int PIPE_WAIT_TIMEOUT_MS = 100; // then check whether the test stopped
 
     // for latency test
     static final int LOOPBACK_AUDIO_THREAD_MESSAGE_LATENCY_REC_STARTED = 991;
@@ -53,7 +54,7 @@ public class LoopbackAudioThread extends Thread {
     public AudioTrack        mAudioTrack;
     public int               mSessionId;
     private Thread           mRecorderThread;
-    private RecorderRunnable mRecorderRunnable;
+    private volatile RecorderRunnable mRecorderRunnable; // created by run()
 
     private final int mSamplingRate;
     private final int mChannelIndex;
@@ -79,6 +80,11 @@ public class LoopbackAudioThread extends Thread {
     private int            mBufferTestWavePlotDurationInSeconds;
     private final CaptureHolder mCaptureHolder;
     private boolean        mIsAdjustingSoundLevel = true; // only used in buffer test
+    private int            mLatencyTestImpulses = 1; // only used in latency test
+    private int            mLatencyStimulus = Constant.LATENCY_STIMULUS_TONE; // latency test only
+    private boolean        mIsStreamingCorrelationEnabled = false; // only used in latency test
+    private int            mGlitchDetector = Constant.GLITCH_DETECTOR_FFT; // buffer test only
+    private int            mSampleFormat = AudioFormat.ENCODING_PCM_16BIT; // buffer test only
 
     public static TestSettings computeDefaultSettings() {
         int samplingRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
@@ -126,7 +132,7 @@ public class LoopbackAudioThread extends Thread {
         }
 
         mMinPlayerBufferSizeSamples = mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME;
-        short[] audioShortArrayOut = new short[mMinPlayerBufferSizeSamples];
+        Pipe.Region pipeRegion = new Pipe.Region(); // recorded samples, played in place
 
         // we may want to adjust this to different multiplication of mMinPlayerBufferSizeSamples
         int audioTrackWriteDataSize = mMinPlayerBufferSizeSamples;
@@ -142,6 +148,11 @@ public class LoopbackAudioThread extends Thread {
                 mRecorderBufferPeriod, mTestType, frequency1, frequency2,
                 mBufferTestWavePlotDurationInSeconds, mContext, mChannelIndex, mCaptureHolder);
         mRecorderRunnable.setBufferTestDurationInSeconds(mBufferTestDurationInSeconds);
+        mRecorderRunnable.setImpulseCount(mLatencyTestImpulses);
+        mRecorderRunnable.setLatencyStimulus(mLatencyStimulus);
+        mRecorderRunnable.setStreamingCorrelationEnabled(mIsStreamingCorrelationEnabled);
+        mRecorderRunnable.setGlitchDetector(mGlitchDetector);
+        mRecorderRunnable.setSampleFormat(mSampleFormat);
         mRecorderThread = new Thread(mRecorderRunnable);
         mRecorderThread.setName("Loopback_RecorderRunnable");
 
@@ -178,15 +189,23 @@ public class LoopbackAudioThread extends Thread {
                 if (mIsPlaying) {
                     switch (mTestType) {
                     case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
-                        // read from the pipe and plays it out
-                        int samplesAvailable = mLatencyTestPipe.availableToRead();
-                        if (samplesAvailable > 0) {
-                            int samplesOfInterest = Math.min(samplesAvailable,
-                                    mMinPlayerBufferSizeSamples);
-
-                            int samplesRead = mLatencyTestPipe.read(audioShortArrayOut, 0,
-                                                                    samplesOfInterest);
-                            mAudioTrack.write(audioShortArrayOut, 0, samplesRead);
+                        // wait for the recorder to write to the pipe, then play it out
+                        try {
+                            mLatencyTestPipe.waitForAvailable(1, PIPE_WAIT_TIMEOUT_MS);
+                        } catch (InterruptedException e) {
+                            break; // the test is being stopped
+                        }
+                        int samplesClaimed = mLatencyTestPipe.claim(mMinPlayerBufferSizeSamples,
+                                                                    pipeRegion);
+                        if (samplesClaimed > 0) {
+                            // write straight from the pipe's array, in two parts if it wraps
+                            short[] pipeArray = (short[]) pipeRegion.buffer.array();
+                            mAudioTrack.write(pipeArray, pipeRegion.firstOffset,
+                                              pipeRegion.firstLength);
+                            if (pipeRegion.secondLength > 0) {
+                                mAudioTrack.write(pipeArray, 0, pipeRegion.secondLength);
+                            }
+                            mLatencyTestPipe.release(samplesClaimed);
                             mPlayerBufferPeriod.collectBufferPeriod();
                         }
                         break;
@@ -247,6 +266,39 @@ public class LoopbackAudioThread extends Thread {
     }
 
 
+    /** Set how many impulses are injected in the latency test, must be called before start(). */
+    public void setLatencyTestImpulses(int latencyTestImpulses) {
+        mLatencyTestImpulses = latencyTestImpulses;
+    }
+
+
+    /** Select the tone injected in the latency test, must be called before start(). */
+    public void setLatencyStimulus(int latencyStimulus) {
+        mLatencyStimulus = latencyStimulus;
+    }
+
+
+    /** Estimate latency while recording, must be called before start(). */
+    public void setStreamingCorrelationEnabled(boolean enabled) {
+        mIsStreamingCorrelationEnabled = enabled;
+    }
+
+
+    /** Select one of Constant.GLITCH_DETECTOR_*, must be called before start(). */
+    public void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = glitchDetector;
+    }
+
+
+    /**
+     * Select the format of the samples recorded in the buffer test, must be called before start().
+     * The player always plays 16 bit samples.
+     */
+    public void setSampleFormat(int sampleFormat) {
+        mSampleFormat = sampleFormat;
+    }
+
+
     public void runTest() {
         if (mIsRunning) {
             // start test
@@ -383,16 +435,59 @@ public class LoopbackAudioThread extends Thread {
     }
 
 
+    public double[] getLoopbackTone() {
+        return mRecorderRunnable.getLoopbackTone();
+    }
+
+
+    public StreamingCorrelation getStreamingCorrelation() {
+        return mRecorderRunnable.getStreamingCorrelation();
+    }
+
+
     public int[] getAllGlitches() {
         return mRecorderRunnable.getAllGlitches();
     }
 
 
+    /** Return the number of glitching intervals so far, can be called during the test. */
+    public int getGlitchCount() {
+        RecorderRunnable recorderRunnable = mRecorderRunnable;
+        return recorderRunnable != null ? recorderRunnable.getGlitchCount() : 0;
+    }
+
+
+    /** Return the recorder statistics published so far, or null, see BufferPeriod. */
+    public BufferPeriodSnapshot getRecorderBufferPeriodSnapshot() {
+        return mRecorderBufferPeriod.getSnapshot();
+    }
+
+
+    public BufferPeriodSnapshot getPlayerBufferPeriodSnapshot() {
+        return mPlayerBufferPeriod.getSnapshot();
+    }
+
+
     public boolean getGlitchingIntervalTooLong() {
         return mRecorderRunnable.getGlitchingIntervalTooLong();
     }
 
 
+    public long[] getGlitchPositions() {
+        return mRecorderRunnable.getGlitchPositions();
+    }
+
+
+    public int[] getGlitchDurations() {
+        return mRecorderRunnable.getGlitchDurations();
+    }
+
+
+    public PipeHealth getPipeHealth() {
+        return mRecorderRunnable.getPipeHealth();
+    }
+
+
     public int getFFTSamplingSize() {
         return mRecorderRunnable.getFFTSamplingSize();
     }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+/**
+ * Creates a maximum length sequence (MLS) that can be injected in the Latency test instead of
+ * RampedSineTone. The sequence is generated by a linear feedback shift register, it is binary
+ * (+/- amplitude) and its spectrum is flat, which makes it easy to deconvolve.
+ */
+public class MaximumLengthSequenceTone extends ToneGeneration {
+    // feedback taps of a maximal length shift register, indexed by the register length
+    private static final int[][] TAPS = {
+        null, null, null, null, null,
+        {5, 3}, {6, 5}, {7, 6}, {8, 6, 5, 4}, {9, 5},
+        {10, 7}, {11, 9}, {12, 11, 10, 4}, {13, 12, 11, 8}, {14, 13, 12, 2}, {15, 14},
+        {16, 15, 13, 4}
+    };
+    public static final int ORDER_MIN = 5;
+    public static final int ORDER_MAX = 16;
+
+    private final int mOrder;
+    private int       mRegister;
+
+
+    /** The sequence repeats every 2^order - 1 samples, order is clamped to ORDER_MIN..ORDER_MAX. */
+    public MaximumLengthSequenceTone(int samplingRate, int order) {
+        super(samplingRate);
+        mOrder = Utilities.clamp(order, ORDER_MIN, ORDER_MAX);
+        mAmplitude = Constant.LOOPBACK_AMPLITUDE;
+        resetPhases();
+    }
+
+
+    /** Return the number of samples after which a sequence of this order repeats. */
+    public static int getPeriod(int order) {
+        return (1 << order) - 1;
+    }
+
+
+    /**
+     * Return the highest order whose whole sequence fits in "frames", or ORDER_MIN if even that
+     * one doesn't fit.
+     */
+    public static int getOrderForFrames(int frames) {
+        int order = ORDER_MIN;
+        while (order < ORDER_MAX && getPeriod(order + 1) <= frames) {
+            order++;
+        }
+        return order;
+    }
+
+
+    @Override
+    public void generateTone(short[] tone, int size) {
+        for (int i = 0; i < size; i++) {
+            tone[i] = (short) (nextBit() * mAmplitude * Short.MAX_VALUE);
+        }
+    }
+
+
+    @Override
+    public void generateTone(double[] tone, int size) {
+        for (int i = 0; i < size; i++) {
+            tone[i] = nextBit() * mAmplitude;
+        }
+    }
+
+
+    /** Advance the shift register and return its output as +1 or -1. */
+    private int nextBit() {
+        int feedback = 0;
+        for (int tap : TAPS[mOrder]) {
+            feedback ^= (mRegister >> (tap - 1)) & 1;
+        }
+        int output = mRegister & 1;
+        mRegister = ((mRegister << 1) | feedback) & ((1 << mOrder) - 1);
+        return output == 1 ? 1 : -1;
+    }
+
+
+    @Override
+    public void resetPhases() {
+        mRegister = 1; // any non zero state
+    }
+
+}
@@ -20,6 +20,7 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import android.content.Context;
+import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.os.Build;
@@ -69,14 +70,19 @@ public class NativeAudioThread extends Thread {
     private boolean hasDestroyingErrors = false;
 
     // for buffer test
-    private int[]   mRecorderBufferPeriod;
+    private int[]   mRecorderBufferPeriod; // counts of a LogLinearHistogram
     private int     mRecorderMaxBufferPeriod;
     private double  mRecorderStdDevBufferPeriod;
-    private int[]   mPlayerBufferPeriod;
+    private double[] mRecorderBufferPeriodQuantiles; // see StreamingQuantiles.QUANTILES, in ms
+    private int[]   mPlayerBufferPeriod; // counts of a LogLinearHistogram
     private int     mPlayerMaxBufferPeriod;
     private double  mPlayerStdDevBufferPeriod;
+    private double[] mPlayerBufferPeriodQuantiles;
     private BufferCallbackTimes mPlayerCallbackTimes;
     private BufferCallbackTimes mRecorderCallbackTimes;
+    // taken every Constant.LIVE_STATS_INTERVAL_MS while the buffer test is running
+    private volatile BufferPeriodSnapshot mRecorderBufferPeriodSnapshot;
+    private volatile BufferPeriodSnapshot mPlayerBufferPeriodSnapshot;
     private int     mBufferTestWavePlotDurationInSeconds;
     private double  mFrequency1 = Constant.PRIME_FREQUENCY_1;
     private double  mFrequency2 = Constant.PRIME_FREQUENCY_2; // not actually used
@@ -85,10 +91,19 @@ public class NativeAudioThread extends Thread {
     private int     mFFTOverlapSamples;
     private int[]   mAllGlitches;
     private boolean mGlitchingIntervalTooLong;
+    private long[]  mGlitchPositions; // in samples, only for the residual detector
+    private int[]   mGlitchDurations;
+    private PipeHealth mPipeHealth; // of mPipeByteBuffer, as read by mGlitchDetectionThread
     private final CaptureHolder mCaptureHolder;
 
+    private short[] mLoopbackTone; // tone injected in latency test
+    private int     mLatencyStimulus = Constant.LATENCY_STIMULUS_TONE;
+    private int     mLatencyTestImpulses = Constant.DEFAULT_LATENCY_TEST_IMPULSES;
+    private boolean mIsStreamingCorrelationEnabled = false;
+    private int     mGlitchDetector = Constant.GLITCH_DETECTOR_FFT;
+    private StreamingCorrelation  mStreamingCorrelation; // ends the latency test once converged
     private PipeByteBuffer        mPipeByteBuffer;
-    private GlitchDetectionThread mGlitchDetectionThread;
+    private volatile GlitchDetectionThread mGlitchDetectionThread; // polled by getGlitchCount()
 
     /** Check if it's safe to use getProperty(). */
     static boolean isSafeToUseGetProperty() {
@@ -144,6 +159,10 @@ public class NativeAudioThread extends Thread {
         mBufferTestDurationInSeconds = old.mBufferTestDurationInSeconds;
         mBufferTestWavePlotDurationInSeconds = old.mBufferTestWavePlotDurationInSeconds;
         mIgnoreFirstFrames = old.mIgnoreFirstFrames;
+        mLatencyStimulus = old.mLatencyStimulus;
+        mLatencyTestImpulses = old.mLatencyTestImpulses;
+        mIsStreamingCorrelationEnabled = old.mIsStreamingCorrelationEnabled;
+        mGlitchDetector = old.mGlitchDetector;
         mCaptureHolder = old.mCaptureHolder;
         setName("Loopback_NativeAudio");
     }
@@ -168,7 +187,8 @@ public class NativeAudioThread extends Thread {
                                  int performanceMode,
                                  int testType, double frequency1, ByteBuffer byteBuffer,
                                  short[] sincTone, int maxRecordedLateCallbacks,
-                                 int ignoreFirstFrames);
+                                 int ignoreFirstFrames, int impulseCount,
+                                 int impulseSpacingFrames);
     public native int   nativeProcessNext(long nativeHandle, double[] samples, long offset);
     public native int   nativeDestroy(long nativeHandle);
 
@@ -176,11 +196,15 @@ public class NativeAudioThread extends Thread {
     public native int[]  nativeGetRecorderBufferPeriod(long nativeHandle);
     public native int    nativeGetRecorderMaxBufferPeriod(long nativeHandle);
     public native double nativeGetRecorderVarianceBufferPeriod(long nativeHandle);
+    public native double[] nativeGetRecorderBufferPeriodQuantiles(long nativeHandle);
     public native int[]  nativeGetPlayerBufferPeriod(long nativeHandle);
     public native int    nativeGetPlayerMaxBufferPeriod(long nativeHandle);
     public native double nativeGetPlayerVarianceBufferPeriod(long nativeHandle);
+    public native double[] nativeGetPlayerBufferPeriodQuantiles(long nativeHandle);
     public native BufferCallbackTimes nativeGetPlayerCallbackTimeStamps(long nativeHandle);
     public native BufferCallbackTimes nativeGetRecorderCallbackTimeStamps(long nativeHandle);
+    public native BufferPeriodSnapshot nativeGetRecorderBufferPeriodSnapshot(long nativeHandle);
+    public native BufferPeriodSnapshot nativeGetPlayerBufferPeriodSnapshot(long nativeHandle);
 
     public native int nativeGetCaptureRank(long nativeHandle);
 
@@ -211,10 +235,13 @@ public class NativeAudioThread extends Thread {
         // generate windowed tone use for loopback test
         short loopbackTone[] = new short[mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME];
         if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY) {
-            ToneGeneration sincToneGen = new RampedSineTone(mSamplingRate,
-                    Constant.LOOPBACK_FREQUENCY);
-            int sincLength = Math.min(Constant.LOOPBACK_SAMPLE_FRAMES, loopbackTone.length);
+            // the native engines inject the tone in a single buffer, which limits its length
+            ToneGeneration sincToneGen = ToneGeneration.createLatencyStimulus(mLatencyStimulus,
+                    mSamplingRate, loopbackTone.length);
+            int sincLength = ToneGeneration.getLatencyStimulusFrames(mLatencyStimulus,
+                    loopbackTone.length);
             sincToneGen.generateTone(loopbackTone, sincLength);
+            mLoopbackTone = Arrays.copyOf(loopbackTone, sincLength);
         }
 
         log(String.format("about to init, sampling rate: %d, buffer:%d", mSamplingRate,
@@ -222,13 +249,17 @@ public class NativeAudioThread extends Thread {
 
         // mPipeByteBuffer is only used in buffer test
         mPipeByteBuffer = new PipeByteBuffer(Constant.MAX_SHORTS);
+        int impulseSpacingFrames = mSamplingRate * Constant.LATENCY_TEST_IMPULSE_SPACING_MS /
+                Constant.MILLIS_PER_SECOND;
         long startTimeMs = System.currentTimeMillis();
         long nativeHandle = nativeInit(mThreadType, mSamplingRate,
                 mMinPlayerBufferSizeInBytes / Constant.BYTES_PER_FRAME, mMicSource,
                 mPerformanceMode, mTestType,
                 mFrequency1, mPipeByteBuffer.getByteBuffer(), loopbackTone,
-                mBufferTestDurationInSeconds * Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND,
-                mIgnoreFirstFrames);
+                Math.min(mBufferTestDurationInSeconds *
+                        Constant.MAX_RECORDED_LATE_CALLBACKS_PER_SECOND,
+                        Constant.MAX_RECORDED_LATE_CALLBACKS),
+                mIgnoreFirstFrames, mLatencyTestImpulses, impulseSpacingFrames);
         log(String.format("nativeHandle = 0x%X", nativeHandle));
 
         if (nativeHandle == 0) {
@@ -259,22 +290,41 @@ public class NativeAudioThread extends Thread {
             int totalSamplesRead = 0;
             switch (mTestType) {
             case Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY:
-                final int latencyTestDurationInSeconds = 2;
-                int nNewSize = (int) (1.1 * mSamplingRate * latencyTestDurationInSeconds);
+                final int samplesDurationInSecond = 2;
+                // 2 seconds for the first impulse, every additional impulse extends the recording
+                int latencyTestSamples = mSamplingRate * samplesDurationInSecond +
+                        (mLatencyTestImpulses - 1) * impulseSpacingFrames;
+                // each nativeProcessNext() call records about one second
+                int latencyTestBlocks = (latencyTestSamples + mSamplingRate - 1) / mSamplingRate;
+                int nNewSize = (int) (1.1 * latencyTestSamples);
                 mSamples = new double[nNewSize];
                 mSamplesIndex = 0; //reset index
                 Arrays.fill(mSamples, 0);
+                if (mIsStreamingCorrelationEnabled) {
+                    mStreamingCorrelation = new StreamingCorrelation(
+                            Utilities.shortToDouble(mLoopbackTone), mSamplingRate, nNewSize);
+                }
 
                 //TODO use a ByteBuffer to retrieve recorded data instead
                 long offset = 0;
                 // retrieve native recorder's recorded data
-                for (int ii = 0; ii < latencyTestDurationInSeconds; ii++) {
+                for (int ii = 0; ii < latencyTestBlocks; ii++) {
                     log(String.format("block %d...", ii));
                     int samplesRead = nativeProcessNext(nativeHandle, mSamples, offset);
                     totalSamplesRead += samplesRead;
                     offset += samplesRead;
                     log(" [" + ii + "] jni samples read:" + samplesRead +
                         "  currentOffset:" + offset);
+
+                    if (mStreamingCorrelation != null && samplesRead > 0) {
+                        mStreamingCorrelation.process(mSamples, (int) (offset - samplesRead),
+                                samplesRead);
+                        if (mStreamingCorrelation.isConverged()) {
+                            // latency is known, no need to record the rest
+                            mSamples = Arrays.copyOf(mSamples, (int) offset);
+                            break;
+                        }
+                    }
                 }
 
                 log(String.format(" samplesRead: %d, sampleOffset:%d", totalSamplesRead, offset));
@@ -284,6 +334,7 @@ public class NativeAudioThread extends Thread {
                 setUpGlitchDetectionThread();
                 long testDurationMs = mBufferTestDurationInSeconds * Constant.MILLIS_PER_SECOND;
                 long elapsedTimeMs = System.currentTimeMillis() - startTimeMs;
+                long snapshotTimeMs = -Constant.LIVE_STATS_INTERVAL_MS;
                 while (elapsedTimeMs < testDurationMs) {
                     if (mIsRequestStop) {
                         break;
@@ -293,6 +344,15 @@ public class NativeAudioThread extends Thread {
                             //log("Late callback detected");
                             mCaptureHolder.captureState(rank);
                         }
+                        // the native engine copies its stats with a seqlock, the callbacks
+                        // never wait for it
+                        if (elapsedTimeMs - snapshotTimeMs >= Constant.LIVE_STATS_INTERVAL_MS) {
+                            mRecorderBufferPeriodSnapshot =
+                                    nativeGetRecorderBufferPeriodSnapshot(nativeHandle);
+                            mPlayerBufferPeriodSnapshot =
+                                    nativeGetPlayerBufferPeriodSnapshot(nativeHandle);
+                            snapshotTimeMs = elapsedTimeMs;
+                        }
                         try {
                             final int setUpTime = 100;
                             sleep(setUpTime); //just to let it start properly
@@ -313,20 +373,27 @@ public class NativeAudioThread extends Thread {
             mRecorderMaxBufferPeriod = nativeGetRecorderMaxBufferPeriod(nativeHandle);
             mRecorderStdDevBufferPeriod = Math.sqrt(nativeGetRecorderVarianceBufferPeriod(
                     nativeHandle));
+            mRecorderBufferPeriodQuantiles = nativeGetRecorderBufferPeriodQuantiles(nativeHandle);
             mPlayerBufferPeriod = nativeGetPlayerBufferPeriod(nativeHandle);
             mPlayerMaxBufferPeriod = nativeGetPlayerMaxBufferPeriod(nativeHandle);
             mPlayerStdDevBufferPeriod = Math.sqrt(nativeGetPlayerVarianceBufferPeriod(
                     nativeHandle));
+            mPlayerBufferPeriodQuantiles = nativeGetPlayerBufferPeriodQuantiles(nativeHandle);
 
             mPlayerCallbackTimes = nativeGetPlayerCallbackTimeStamps(nativeHandle);
             mRecorderCallbackTimes = nativeGetRecorderCallbackTimeStamps(nativeHandle);
 
             // get glitches data only for buffer test
             if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_BUFFER_PERIOD) {
-                mAllGlitches = mGlitchDetectionThread.getGlitches();
-                mSamples = mGlitchDetectionThread.getWaveData();
-                mGlitchingIntervalTooLong = mGlitchDetectionThread.getGlitchingIntervalTooLong();
+                // stop and join the detection thread first, so it's done with the last frame
+                GlitchDetectionThread glitchDetectionThread = mGlitchDetectionThread;
                 endDetecting();
+                mAllGlitches = glitchDetectionThread.getGlitches();
+                mSamples = glitchDetectionThread.getWaveData();
+                mGlitchingIntervalTooLong = glitchDetectionThread.getGlitchingIntervalTooLong();
+                mGlitchPositions = glitchDetectionThread.getGlitchPositions();
+                mGlitchDurations = glitchDetectionThread.getGlitchDurations();
+                mPipeHealth = glitchDetectionThread.getPipeHealth();
             }
 
             if (mTestType == Constant.LOOPBACK_PLUG_AUDIO_THREAD_TEST_TYPE_LATENCY) {
@@ -387,6 +454,7 @@ public class NativeAudioThread extends Thread {
         mGlitchDetectionThread = new GlitchDetectionThread(mFrequency1, mFrequency2, mSamplingRate,
             mFFTSamplingSize, mFFTOverlapSamples, mBufferTestDurationInSeconds,
             mBufferTestWavePlotDurationInSeconds, mPipeByteBuffer, mCaptureHolder);
+        mGlitchDetectionThread.setDetector(mGlitchDetector);
         mGlitchDetectionThread.start();
     }
 
@@ -495,6 +563,52 @@ public class NativeAudioThread extends Thread {
     }
 
 
+    /** Return the tone injected in the latency test, or null if it was never generated. */
+    double[] getLoopbackTone() {
+        if (mLoopbackTone == null) {
+            return null;
+        }
+        return Utilities.shortToDouble(mLoopbackTone);
+    }
+
+
+    /** Select the tone injected in the latency test, must be called before start(). */
+    void setLatencyStimulus(int latencyStimulus) {
+        mLatencyStimulus = latencyStimulus;
+    }
+
+
+    /** Set how many impulses are injected in the latency test, must be called before start(). */
+    void setLatencyTestImpulses(int latencyTestImpulses) {
+        mLatencyTestImpulses = latencyTestImpulses;
+    }
+
+
+    /** Estimate latency while recording, must be called before start(). */
+    void setStreamingCorrelationEnabled(boolean enabled) {
+        mIsStreamingCorrelationEnabled = enabled;
+    }
+
+
+    StreamingCorrelation getStreamingCorrelation() {
+        return mStreamingCorrelation;
+    }
+
+
+    /** Select one of Constant.GLITCH_DETECTOR_*, must be called before start(). */
+    void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = glitchDetector;
+    }
+
+
+    /** The native engines only record 16 bit samples, other sample formats fall back to it. */
+    void setSampleFormat(int sampleFormat) {
+        if (sampleFormat != AudioFormat.ENCODING_PCM_16BIT) {
+            log("sample format " + sampleFormat + " not supported, recording 16 bit samples");
+        }
+    }
+
+
     public int[] getRecorderBufferPeriod() {
         return mRecorderBufferPeriod;
     }
@@ -507,6 +621,10 @@ public class NativeAudioThread extends Thread {
         return mRecorderStdDevBufferPeriod;
     }
 
+    public double[] getRecorderBufferPeriodQuantiles() {
+        return mRecorderBufferPeriodQuantiles;
+    }
+
     public int[] getPlayerBufferPeriod() {
         return mPlayerBufferPeriod;
     }
@@ -519,16 +637,56 @@ public class NativeAudioThread extends Thread {
         return mPlayerStdDevBufferPeriod;
     }
 
+    public double[] getPlayerBufferPeriodQuantiles() {
+        return mPlayerBufferPeriodQuantiles;
+    }
+
     public int[] getNativeAllGlitches() {
         return mAllGlitches;
     }
 
 
+    /** Return the number of glitching intervals so far, can be called during the test. */
+    public int getGlitchCount() {
+        GlitchDetectionThread glitchDetectionThread = mGlitchDetectionThread;
+        return glitchDetectionThread != null ? glitchDetectionThread.getGlitchCount() : 0;
+    }
+
+
+    /**
+     * Return the recorder statistics taken at most Constant.LIVE_STATS_INTERVAL_MS ago during the
+     * buffer test, or null if none was taken or the engine doesn't support it.
+     */
+    public BufferPeriodSnapshot getRecorderBufferPeriodSnapshot() {
+        return mRecorderBufferPeriodSnapshot;
+    }
+
+
+    public BufferPeriodSnapshot getPlayerBufferPeriodSnapshot() {
+        return mPlayerBufferPeriodSnapshot;
+    }
+
+
     public boolean getGlitchingIntervalTooLong() {
         return mGlitchingIntervalTooLong;
     }
 
 
+    public long[] getGlitchPositions() {
+        return mGlitchPositions;
+    }
+
+
+    public int[] getGlitchDurations() {
+        return mGlitchDurations;
+    }
+
+
+    public PipeHealth getPipeHealth() {
+        return mPipeHealth;
+    }
+
+
     public int getNativeFFTSamplingSize() {
         return mFFTSamplingSize;
     }
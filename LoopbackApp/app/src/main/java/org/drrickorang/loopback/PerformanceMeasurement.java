@@ -31,9 +31,10 @@ public class PerformanceMeasurement {
     // the dashboard
     private static final int mMultiplicationFactor = 10000;
 
-    private int   mExpectedBufferPeriodMs;
-    private int[] mBufferData;
-    private int   mTotalOccurrence;
+    private int      mExpectedBufferPeriodMs;
+    private int[]    mBufferData;  // counts of a LogLinearHistogram
+    private double[] mBucketValuesMs; // value of each bucket of mBufferData
+    private long     mTotalOccurrence;
 
     // used to determine buffer sizes mismatch
     private static final double mPercentOccurrenceThreshold = 0.95;
@@ -42,15 +43,17 @@ public class PerformanceMeasurement {
 
 
     /**
-     * Note: if mBufferSize * Constant.MILLIS_PER_SECOND / mSamplingRate == Integer is satisfied,
-     * the measurement will be more accurate, but this is not necessary.
+     * "bufferData" are the counts of a LogLinearHistogram of buffer periods, each bucket is
+     * measured at its middle.
      */
     public PerformanceMeasurement(int expectedBufferPeriod, int[] bufferData) {
         mBufferData = bufferData;
 
         mTotalOccurrence = 0;
+        mBucketValuesMs = new double[mBufferData.length];
         for (int i = 0; i < mBufferData.length; i++) {
             mTotalOccurrence += mBufferData[i];
+            mBucketValuesMs[i] = LogLinearHistogram.getBucketMidUs(i) / Constant.MICROS_PER_MILLI;
         }
 
         mExpectedBufferPeriodMs = expectedBufferPeriod;
@@ -70,17 +73,19 @@ public class PerformanceMeasurement {
      */
     public void measurePerformance() {
         // calculate standard deviation and mean of mBufferData
-        double mean = computeMean(mBufferData);
-        double standardDeviation = computeStandardDeviation(mBufferData, mean);
+        RunningStats stats = computeStats(mBufferData);
+        double mean = stats.getMean();
+        double standardDeviation = Math.sqrt(stats.getSampleVariance());
         log("mean before discarding 99% data: " + mean);
         log("standard deviation before discarding 99% data: " + standardDeviation);
         log("stdev/mean before discarding 99% data: " + (standardDeviation / mean));
+        log("skewness before discarding 99% data: " + stats.getSkewness());
 
         // calculate standard deviation and mean of dataAfterDiscard
         int[] dataAfterDiscard = computeDataAfterDiscard(mBufferData);
-        double meanAfterDiscard = computeMean(dataAfterDiscard);
-        double standardDeviationAfterDiscard = computeStandardDeviation(dataAfterDiscard,
-                                                                        meanAfterDiscard);
+        RunningStats statsAfterDiscard = computeStats(dataAfterDiscard);
+        double meanAfterDiscard = statsAfterDiscard.getMean();
+        double standardDeviationAfterDiscard = Math.sqrt(statsAfterDiscard.getSampleVariance());
         log("mean after discarding 99% data: " + meanAfterDiscard);
         log("standard deviation after discarding 99% data: " + standardDeviationAfterDiscard);
         log("stdev/mean after discarding 99% data: " + (standardDeviationAfterDiscard /
@@ -100,8 +105,11 @@ public class PerformanceMeasurement {
         log("benchmark: " + benchmark);
         log("number of outliers: " + outliers);
         log("expected buffer period: " + mExpectedBufferPeriodMs + " ms");
-        int maxPeriod = (mBufferData.length - 1);
-        log("max buffer period: " + maxPeriod + " ms");
+        LogLinearHistogram histogram = new LogLinearHistogram(mBufferData);
+        int lastBucket = histogram.getLastBucket();
+        if (lastBucket >= 0) {
+            log("max buffer period: " + mBucketValuesMs[lastBucket] + " ms");
+        }
     }
 
 
@@ -110,14 +118,13 @@ public class PerformanceMeasurement {
      * Returns a value between 0 and 1
      */
     public double percentBufferPeriodsAtExpected() {
-        int occurrenceNearExpectedBufferPeriod = 0;
-        // indicate how many buckets around mExpectedBufferPeriod do we want to add to the count
-        int acceptableOffset = 2;
-        int start = Math.max(0, mExpectedBufferPeriodMs - acceptableOffset);
-        int end = Math.min(mBufferData.length - 1, mExpectedBufferPeriodMs + acceptableOffset);
-        // include the next bucket too because the period is rounded up
-        for (int i = start; i <= end; i++) {
-            occurrenceNearExpectedBufferPeriod += mBufferData[i];
+        long occurrenceNearExpectedBufferPeriod = 0;
+        // how many ms around mExpectedBufferPeriod do we want to add to the count
+        int acceptableOffsetMs = 2;
+        for (int i = 0; i < mBufferData.length; i++) {
+            if (Math.abs(mBucketValuesMs[i] - mExpectedBufferPeriodMs) <= acceptableOffsetMs) {
+                occurrenceNearExpectedBufferPeriod += mBufferData[i];
+            }
         }
         return ((double) occurrenceNearExpectedBufferPeriod) / mTotalOccurrence;
     }
@@ -125,8 +132,8 @@ public class PerformanceMeasurement {
 
     /**
      * Compute a benchmark using the following formula:
-     * (1/totalOccurrence) sum_i(|i - expectedBufferPeriod|^2 * occurrence_i / expectedBufferPeriod)
-     * , for i < expectedBufferPeriod * mOutliersThreshold
+     * (1/totalOccurrence) sum_i(|v_i - expectedBufferPeriod|^2 * occurrence_i / expectedBufferPeriod)
+     * , for v_i < expectedBufferPeriod * mOutliersThreshold, where v_i is the value of bucket i
      * Also, the benchmark is additionally multiplied by mMultiplicationFactor. This is not in the
      * original formula, and it is used only because the original benchmark will be too small to
      * be displayed accurately on the dashboard.
@@ -136,12 +143,10 @@ public class PerformanceMeasurement {
         double weight;
         double benchmark;
 
-        // don't count mExpectedBufferPeriodMs + 1 towards benchmark, cause this beam may be large
-        // due to rounding issue (all results are rounded up when collecting buffer period.)
-        int threshold = Math.min(mBufferData.length, mExpectedBufferPeriodMs * mOutliersThreshold);
-        for (int i = 0; i < threshold; i++) {
-            if (mBufferData[i] != 0 && (i != mExpectedBufferPeriodMs + 1)) {
-                weight = Math.abs(i - mExpectedBufferPeriodMs);
+        int threshold = mExpectedBufferPeriodMs * mOutliersThreshold;
+        for (int i = 0; i < mBufferData.length && mBucketValuesMs[i] < threshold; i++) {
+            if (mBufferData[i] != 0) {
+                weight = Math.abs(mBucketValuesMs[i] - mExpectedBufferPeriodMs);
                 weight *= weight;   // squared
                 weightedCount += weight * mBufferData[i];
             }
@@ -160,8 +165,10 @@ public class PerformanceMeasurement {
     public int countOutliers() {
         int outliersThresholdInMs = mExpectedBufferPeriodMs * mOutliersThreshold;
         int outliersCount = 0;
-        for (int i = outliersThresholdInMs; i < mBufferData.length; i++) {
-            outliersCount += mBufferData[i];
+        for (int i = 0; i < mBufferData.length; i++) {
+            if (mBucketValuesMs[i] >= outliersThresholdInMs) {
+                outliersCount += mBufferData[i];
+            }
         }
         return outliersCount;
     }
@@ -169,7 +176,7 @@ public class PerformanceMeasurement {
 
     /**
      * Output an array that has discarded 99 % of the data in the middle. In this array,
-     * data[i] = x means there are x occurrences of value i.
+     * data[i] = x means there are x occurrences in bucket i.
      */
     private int[] computeDataAfterDiscard(int[] data) {
         // calculate the total amount of data
@@ -220,49 +227,18 @@ public class PerformanceMeasurement {
 
 
     /**
-     * Calculate the mean of int array "data". In this array, data[i] = x means there are
-     * x occurrences of value i.
-     * TODO move to audio_utils
+     * Calculate the statistics in ms of int array "data". In this array, data[i] = x means there
+     * are x occurrences in bucket i.
      */
-    private double computeMean(int[] data) {
-        int count = 0;
-        int sum = 0;
+    private RunningStats computeStats(int[] data) {
+        RunningStats stats = new RunningStats();
         for (int i = 0; i < data.length; i++) {
-            count += data[i];
-            sum += data[i] * i;
+            stats.add(mBucketValuesMs[i], data[i]);
         }
-
-        double mean;
-        if (count != 0) {
-            mean = (double) sum / count;
-        } else {
-            mean = 0;
+        if (stats.getCount() == 0) {
             log("zero count!");
         }
-
-        return mean;
-    }
-
-
-    /**
-     * Calculate the standard deviation of int array "data". In this array, data[i] = x means
-     * there are x occurrences of value i.
-     * TODO move to audio_utils
-     */
-    private double computeStandardDeviation(int[] data, double mean) {
-        double sumDeviation = 0;
-        int count = 0;
-        double standardDeviation;
-
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] != 0) {
-                count += data[i];
-                sumDeviation += (i - mean) * (i - mean) * data[i];
-            }
-        }
-
-        standardDeviation = Math.sqrt(sumDeviation / (count - 1));
-        return standardDeviation;
+        return stats;
     }
 
 
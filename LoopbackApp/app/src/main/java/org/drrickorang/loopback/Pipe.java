@@ -16,6 +16,11 @@
 
 package org.drrickorang.loopback;
 
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
 
 /**
  * This class is a pipe that allows one writer and one reader.
@@ -24,13 +29,16 @@ package org.drrickorang.loopback;
 public abstract class Pipe {
     public static final int OVERRUN = -2;   // when there's an overrun, return this value
 
-    protected int       mSamplesOverrun;
+    protected long      mSamplesOverrun;
     protected int       mOverruns;
     protected final int mMaxValues;   // always a power of two
+    private final PipeHealth mHealth; // updated by the reader
+    private final Region mDoubleRegion = new Region(); // used by read(double[])
 
     /** maxSamples must be >= 2. */
     public Pipe(int maxSamples) {
         mMaxValues = Utilities.roundup(maxSamples); // round up to the nearest power of 2
+        mHealth = new PipeHealth(mMaxValues);
     }
 
     /**
@@ -40,10 +48,139 @@ public abstract class Pipe {
      */
     public abstract int read(short[] buffer, int offset, int count);
 
+    /**
+     * Same as read(), but first block until "count" samples are available to read, an overrun
+     * occurs or "timeoutMs" elapses. After a timeout, just read as much as it can.
+     */
+    public int read(short[] buffer, int offset, int count, int timeoutMs)
+            throws InterruptedException {
+        int avail = waitForAvailable(count, timeoutMs);
+        if (avail <= 0) {
+            return avail;
+        }
+        return read(buffer, offset, count);
+    }
+
+    /**
+     * Same as read(), but convert the samples to doubles normalized to [-1, 1], whatever the
+     * sample format of the pipe. 16 and 32 bit integer samples are scaled by their maximum value,
+     * float samples are copied as they are.
+     */
+    public int read(double[] buffer, int offset, int count) {
+        count = claim(count, mDoubleRegion);
+        if (count <= 0) {
+            return count;
+        }
+        Region region = mDoubleRegion;
+        regionToDouble(region.buffer, region.firstOffset, buffer, offset, region.firstLength);
+        regionToDouble(region.buffer, 0, buffer, offset + region.firstLength,
+                       region.secondLength);
+        release(count);
+        return count;
+    }
+
+
+    private static void regionToDouble(Buffer source, int sourceOffset, double[] buffer,
+                                       int offset, int count) {
+        if (source instanceof FloatBuffer) {
+            FloatBuffer floats = (FloatBuffer) source;
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = floats.get(sourceOffset + i);
+            }
+        } else if (source instanceof IntBuffer) {
+            IntBuffer ints = (IntBuffer) source;
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = ints.get(sourceOffset + i) * (1.0 / Integer.MAX_VALUE);
+            }
+        } else if (source.hasArray()) {
+            // the common case, avoid going through the buffer for each sample
+            short[] shorts = (short[]) source.array();
+            sourceOffset += source.arrayOffset();
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = shorts[sourceOffset + i] * (1.0 / Short.MAX_VALUE);
+            }
+        } else {
+            ShortBuffer shorts = (ShortBuffer) source;
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = shorts.get(sourceOffset + i) * (1.0 / Short.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Block until at least "count" samples are available to read, an overrun occurs or
+     * "timeoutMs" elapses, then return the result of availableToRead().
+     */
+    public abstract int waitForAvailable(int count, int timeoutMs) throws InterruptedException;
+
+    /**
+     * Expose at most "count" readable samples in place through "region", without copying them
+     * and without moving the read position. If fewer samples are available, claim as much as
+     * it can. Return the amount of samples claimed, or OVERRUN. The samples must be processed
+     * before calling release(), as the writer is free to overwrite them afterwards.
+     */
+    public abstract int claim(int count, Region region);
+
+    /** Move the read position past "count" samples previously returned by claim(). */
+    public abstract void release(int count);
+
     /** Return the amount of samples available to read. */
     public abstract int availableToRead();
 
     /** Clear the pipe. */
     public abstract void flush();
 
+    /** Subclasses call this on each read or claim(), with the amount of samples available. */
+    protected void recordFill(int available) {
+        mHealth.recordFill(available);
+    }
+
+    /** Subclasses call this when an overrun discarded "samplesLost" samples. */
+    protected void recordOverrun(long samplesLost) {
+        mSamplesOverrun += samplesLost;
+        ++mOverruns;
+        mHealth.recordOverrun(samplesLost);
+    }
+
+    /** Return a snapshot of the fill level and overrun statistics of the reader. */
+    public PipeHealth getHealth() {
+        return new PipeHealth(mHealth);
+    }
+
+    /** Return how many times the reader fell behind the writer by more than the pipe size. */
+    public int getOverruns() {
+        return mOverruns;
+    }
+
+    /** Return how many samples were lost to overruns. */
+    public long getSamplesOverrun() {
+        return mSamplesOverrun;
+    }
+
+
+    /**
+     * Readable samples of a pipe, filled in by claim(). The samples are in "buffer" starting at
+     * index "firstOffset" for "firstLength" samples, and continue from index 0 for "secondLength"
+     * samples when they wrap around the end of the pipe. "buffer" is a ShortBuffer, IntBuffer or
+     * FloatBuffer depending on the sample format of the pipe.
+     */
+    public static class Region {
+        public Buffer buffer;
+        public int    firstOffset;
+        public int    firstLength;
+        public int    secondLength;
+
+        void set(Buffer buffer, int firstOffset, int firstLength, int secondLength) {
+            this.buffer = buffer;
+            this.firstOffset = firstOffset;
+            this.firstLength = firstLength;
+            this.secondLength = secondLength;
+        }
+
+        public int length() {
+            return firstLength + secondLength;
+        }
+
+    }
+
 }
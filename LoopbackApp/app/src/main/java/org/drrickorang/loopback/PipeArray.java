@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.nio.Buffer;
+
+
+/**
+ * Non-blocking pipe where data are stored in a Java array of primitive samples. Subclasses add
+ * the write() and read() methods for their sample type, which copy through System.arraycopy().
+ * The reader can also block until enough data is written, the writer then unparks it.
+ * The write side of a pipe permits overruns; flow control is the caller's responsibility.
+ */
+
+public abstract class PipeArray extends PipeArrayReader {
+    private long          mRear; // writer's current position
+    private final Object  mArray; // store that data in the pipe, a short[], int[] or float[]
+    // Used to keep rear synchronized. Writing it releases the data written before, reading it
+    // acquires that data.
+    private volatile long mVolatileRear;
+
+
+    /**
+     * "array" has a power of two length, and "regionBuffer" wraps it.
+     * mRear is 64 bit so it doesn't overflow, even in multi-day tests at high sampling rates.
+     */
+    protected PipeArray(Object array, Buffer regionBuffer) {
+        super(regionBuffer);
+        mArray = array;
+    }
+
+
+    /**
+     * offset must be >= 0.
+     * count is maximum number of samples to copy, and must be >= 0.
+     * offset + count must be <= buffer.length.
+     * Return actual number of samples copied, which will be >= 0.
+     */
+    protected int writeArray(Object buffer, int offset, int count) {
+        // mask the upper bits to get the correct position in the pipe
+        int rear = (int) (mRear & (mMaxValues - 1));
+        int written = mMaxValues - rear;
+        if (written > count) {
+            written = count;
+        }
+
+        System.arraycopy(buffer, offset, mArray, rear, written);
+        if (rear + written == mMaxValues) {
+            if ((count -= written) > rear) {
+                count = rear;
+            }
+            if (count > 0) {
+                System.arraycopy(buffer, offset + written, mArray, 0, count);
+                written += count;
+            }
+        }
+
+        mRear += written;
+        mVolatileRear = mRear;
+        wakeUpReader(mRear);
+        return written;
+    }
+
+
+    @Override
+    protected long getVolatileRear() {
+        return mVolatileRear;
+    }
+
+
+    @Override
+    public void flush() {
+        mRear = mFront;
+        mVolatileRear = mFront;
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.drrickorang.loopback;
+
+import java.nio.Buffer;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Read side of a pipe whose samples are stored in a Java array of primitive samples, shared by
+ * PipeArray and the readers of PipeShortBroadcast. Subclasses publish the writer's position
+ * through getVolatileRear() and call wakeUpReader() after each write, so the reader can block in
+ * waitForAvailable() until enough data is written.
+ */
+
+public abstract class PipeArrayReader extends Pipe {
+    protected long       mFront; // reader's current position
+    private final Buffer mRegionBuffer; // wraps the array of samples for claim()
+
+    // reader blocked in waitForAvailable(), woken up by the writer once rear reaches mWakeupRear
+    private volatile Thread mWaitingReader;
+    private volatile long   mWakeupRear;
+
+
+    /**
+     * "regionBuffer" wraps an array with a power of two length.
+     * mFront is 64 bit so it doesn't overflow, even in multi-day tests at high sampling rates.
+     */
+    protected PipeArrayReader(Buffer regionBuffer) {
+        super(regionBuffer.capacity());
+        mRegionBuffer = regionBuffer;
+    }
+
+
+    /**
+     * Return the writer's position, with the semantics of a volatile read: the samples written
+     * before it are visible to the reader.
+     */
+    protected abstract long getVolatileRear();
+
+
+    /** Called by the writer after publishing "rear". */
+    protected void wakeUpReader(long rear) {
+        // The reader publishes itself before checking rear, and rear is published before checking
+        // the reader, so at least one of them sees the other and no wakeup is lost.
+        Thread reader = mWaitingReader;
+        if (reader != null && rear >= mWakeupRear) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+
+    /** Same as read(), for an array of the pipe's own sample type. */
+    protected int readArray(Object buffer, int offset, int count) {
+        int avail = availableToRead();
+        if (avail <= 0) {
+            return avail;
+        }
+        recordFill(avail);
+
+        // An overrun can occur from here on and be silently ignored,
+        // but it will be caught at next read()
+        count = Math.min(count, avail);
+
+        // mask the upper bits to get the correct position in the pipe
+        int front = (int) (mFront & (mMaxValues - 1));
+        int read = Math.min(count, mMaxValues - front);
+
+        // In particular, an overrun during the System.arraycopy will result in reading corrupt data
+        Object array = mRegionBuffer.array();
+        System.arraycopy(array, front, buffer, offset, read);
+        // We could re-read the rear pointer here to detect the corruption, but why bother?
+        if (count > read) {
+            System.arraycopy(array, 0, buffer, offset + read, count - read);
+            read = count;
+        }
+
+        mFront += read;
+        return read;
+    }
+
+
+    /** The region is backed by an array, consumers can use region.buffer.array() directly. */
+    @Override
+    public int claim(int count, Region region) {
+        int avail = availableToRead();
+        if (avail <= 0) {
+            return avail;
+        }
+        recordFill(avail);
+
+        count = Math.min(count, avail);
+        int front = (int) (mFront & (mMaxValues - 1));
+        int firstLength = Math.min(count, mMaxValues - front);
+        region.set(mRegionBuffer, front, firstLength, count - firstLength);
+        return count;
+    }
+
+
+    @Override
+    public void release(int count) {
+        mFront += count;
+    }
+
+
+    @Override
+    public int waitForAvailable(int count, int timeoutMs) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + timeoutMs * Constant.NANOS_PER_MILLI;
+        mWakeupRear = mFront + count;
+        mWaitingReader = Thread.currentThread();
+        try {
+            while (true) {
+                int avail = availableToRead();
+                if (avail < 0 || avail >= count) {
+                    return avail;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0) {
+                    return avail;
+                }
+                LockSupport.parkNanos(this, remainingNs);
+            }
+        } finally {
+            mWaitingReader = null;
+        }
+    }
+
+
+    @Override
+    public int availableToRead() {
+        long rear = getVolatileRear();
+        long avail = rear - mFront;
+        if (avail > mMaxValues) {
+            // Discard 1/16 of the most recent data in pipe to avoid another overrun immediately
+            long oldFront = mFront;
+            mFront = rear - mMaxValues + (mMaxValues >> 4);
+            recordOverrun(mFront - oldFront);
+            return OVERRUN;
+        }
+
+        return (int) avail;
+    }
+
+}
@@ -18,6 +18,7 @@ package org.drrickorang.loopback;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import android.util.Log;
 
@@ -34,31 +35,44 @@ import android.util.Log;
 public class PipeByteBuffer extends Pipe {
     private static final String TAG = "PipeByteBuffer";
 
-    private final ByteBuffer mByteBuffer;
-    private int              mFront = 0; // reader's current position
+    private static final int MIN_WAIT_NS = 500000; // don't wake up more often than this
+
+    private final ByteBuffer  mByteBuffer;
+    private final ShortBuffer mShortView; // the pipe section of mByteBuffer, used for bulk reads
+    private final ShortBuffer mRegionView; // same, but only used by claim()
+    private long             mFront = 0; // reader's current position
+
+    // used to estimate how fast native code writes, see waitForAvailable()
+    private long             mFirstWaitNs = -1;
+    private long             mFirstWaitRear;
 
 
     /**
      * The ByteBuffer in this class consists of two sections. The first section is the actual pipe
      * to store data. This section must have a size in power of 2, and this is enforced by the
      * constructor through rounding maxSamples up to the nearest power of 2. This second section
-     * is used to store metadata. Currently the only metadata is an integer that stores the rear,
-     * where rear is the writer's current position. The metadata is at the end of ByteBuffer, and is
-     * outside of the actual pipe.
+     * is used to store metadata. Currently the only metadata is a 64 bit integer that stores the
+     * rear, where rear is the writer's current position. The metadata is at the end of ByteBuffer,
+     * and is outside of the actual pipe. Native code publishes rear with release ordering, and
+     * nativeGetRear() reads it with acquire ordering, so samples before rear are always visible.
      * IMPORTANT: The code is designed (in native code) such that metadata won't be overwritten when
      * the writer writes to the pipe. If changes to the code are required, please make sure the
      * metadata won't be overwritten.
-     * IMPORTANT: Since a signed integer is used to store rear and mFront, their values should not
-     * exceed 2^31 - 1, or else overflows happens and the positions of read and mFront becomes
-     * incorrect.
      */
     public PipeByteBuffer(int maxSamples) {
         super(maxSamples);
-        int extraInt = 1; // used to store rear
-        int extraShort = extraInt * Constant.SHORTS_PER_INT;
+        int extraLong = 1; // used to store rear
+        int extraShort = extraLong * Constant.SHORTS_PER_LONG;
         int numberOfShorts = mMaxValues + extraShort;
         mByteBuffer = ByteBuffer.allocateDirect(numberOfShorts * Constant.BYTES_PER_SHORT);
         mByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        // a duplicate keeps mByteBuffer's own position and limit untouched, its byte order has to
+        // be set again
+        ByteBuffer pipeSection = mByteBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        pipeSection.limit(mMaxValues * Constant.BYTES_PER_SHORT);
+        mShortView = pipeSection.asShortBuffer();
+        mRegionView = mShortView.duplicate();
     }
 
 
@@ -68,88 +82,158 @@ public class PipeByteBuffer extends Pipe {
      */
     @Override
     public int read(short[] buffer, int offset, int requiredSamples) {
-        // first, update the current rear
-        int rear;
-        synchronized (mByteBuffer) {
-            rear = mByteBuffer.getInt(mMaxValues * Constant.BYTES_PER_SHORT);
+        int read = prepareRead(requiredSamples);
+        if (read <= 0) {
+            return read;
         }
-        //log("initial offset: " + offset + "\n initial requiredSamples: " + requiredSamples);
 
-        // after here, rear may actually be updated further. However, we don't care. If at the point
-        // of checking there's enough data then we will read it. If not just wait until next call
-        // of read.
-        int avail = availableToRead(rear, mFront);
-        if (avail <= 0) {   //return -2 for overrun
-            return avail;
+        // at most two contiguous segments, the second one wraps around to the start of the pipe
+        int front = (int) (mFront & (mMaxValues - 1));
+        int part1 = Math.min(read, mMaxValues - front);
+        mShortView.position(front);
+        mShortView.get(buffer, offset, part1);
+        if (read > part1) {
+            mShortView.position(0);
+            mShortView.get(buffer, offset + part1, read - part1);
         }
 
-        // if not enough samples, just read partial samples
-        if (requiredSamples > avail) {
-            requiredSamples = avail;
-        }
+        mFront += read;
+        return read;
+    }
 
-        // mask the upper bits to get the correct position in the pipe
-        int front = mFront & (mMaxValues - 1);
-        int read = mMaxValues - front;   // total samples from currentIndex until the end of array
-        if (read > requiredSamples) {
-            read = requiredSamples;
-        }
 
-        int byteBufferFront = front * Constant.BYTES_PER_SHORT; // start reading from here
-        byteBufferToArray(buffer, offset, read, byteBufferFront);
+    /**
+     * Same as read(short[], int, int), but copy into "buffer" starting from its position, which
+     * is advanced by the amount of samples read. When "buffer" is a direct buffer this is a plain
+     * memory copy, and consumers don't need a short[] at all.
+     */
+    public int read(ShortBuffer buffer, int requiredSamples) {
+        int read = prepareRead(Math.min(requiredSamples, buffer.remaining()));
+        if (read <= 0) {
+            return read;
+        }
 
-        if (front + read == mMaxValues) {
-            int samplesLeft = requiredSamples - read;
-            if (samplesLeft > 0) {
-                byteBufferFront = 0;
-                byteBufferToArray(buffer, offset + read, read + samplesLeft, byteBufferFront);
-                read += samplesLeft;
-            }
+        int front = (int) (mFront & (mMaxValues - 1));
+        int part1 = Math.min(read, mMaxValues - front);
+        mShortView.limit(front + part1).position(front);
+        buffer.put(mShortView);
+        if (read > part1) {
+            mShortView.limit(read - part1).position(0);
+            buffer.put(mShortView);
         }
+        mShortView.limit(mMaxValues);
 
         mFront += read;
         return read;
     }
 
 
+    @Override
+    public int claim(int count, Region region) {
+        count = prepareRead(count);
+        if (count <= 0) {
+            return count;
+        }
+
+        int front = (int) (mFront & (mMaxValues - 1));
+        int firstLength = Math.min(count, mMaxValues - front);
+        region.set(mRegionView, front, firstLength, count - firstLength);
+        return count;
+    }
+
+
+    @Override
+    public void release(int count) {
+        mFront += count;
+    }
+
+
     /**
-     * Copy mByteBuffer's data (starting from "byteBufferFront") into double array "buffer".
-     * "start" is the starting index of "buffer" and "length" is the amount of samples copying.
+     * Return how many of "requiredSamples" can be read now, or OVERRUN.
+     * After here, rear may actually be updated further. However, we don't care. If at the point
+     * of checking there's enough data then we will read it. If not just wait until next call
+     * of read.
      */
-    private void byteBufferToArray(short[] buffer, int start, int length, int byteBufferFront) {
-        for (int i = start; i < (start + length); i++) {
-            buffer[i] = mByteBuffer.getShort(byteBufferFront);
-            byteBufferFront += Constant.BYTES_PER_SHORT;
+    private int prepareRead(int requiredSamples) {
+        int avail = availableToRead(getRear(), mFront);
+        if (avail <= 0) {   //return -2 for overrun
+            return avail;
         }
+        recordFill(avail);
+
+        // if not enough samples, just read partial samples
+        return Math.min(requiredSamples, avail);
     }
 
 
     /** Private function that actually calculate the number of samples available to read. */
-    private int availableToRead(int rear, int front) {
-        int avail = rear - front;
+    private int availableToRead(long rear, long front) {
+        long avail = rear - front;
         if (avail > mMaxValues) {
             // Discard 1/16 of the most recent data in pipe to avoid another overrun immediately
-            int oldFront = mFront;
+            long oldFront = mFront;
             mFront = rear - mMaxValues + (mMaxValues >> 5);
-            mSamplesOverrun += mFront - oldFront;
-            ++mOverruns;
+            recordOverrun(mFront - oldFront);
             return OVERRUN;
         }
 
-        return avail;
+        return (int) avail;
     }
 
 
+    /**
+     * The writer is native code which can't signal the reader, so sleep until the time the
+     * missing samples are expected at the rate they have been written so far, then check again.
+     */
     @Override
-    public int availableToRead() {
-        int rear;
-        int avail;
-        synchronized (mByteBuffer) {
-            rear = mByteBuffer.getInt(mMaxValues * Constant.BYTES_PER_SHORT);
+    public int waitForAvailable(int count, int timeoutMs) throws InterruptedException {
+        long nowNs = System.nanoTime();
+        long deadlineNs = nowNs + timeoutMs * Constant.NANOS_PER_MILLI;
+        while (true) {
+            long rear = getRear();
+            int avail = availableToRead(rear, mFront);
+            if (avail < 0 || avail >= count) {
+                return avail;
+            }
+
+            if (mFirstWaitNs < 0) {
+                mFirstWaitNs = nowNs;
+                mFirstWaitRear = rear;
+            }
+            long remainingNs = deadlineNs - nowNs;
+            if (remainingNs <= 0) {
+                return avail;
+            }
+
+            long waitNs = MIN_WAIT_NS;
+            long written = rear - mFirstWaitRear;
+            if (written > 0) {
+                waitNs = Math.max((long) ((double) (count - avail) * (nowNs - mFirstWaitNs) /
+                                          written), MIN_WAIT_NS);
+            }
+            waitNs = Math.min(waitNs, remainingNs);
+            Thread.sleep(waitNs / Constant.NANOS_PER_MILLI,
+                         (int) (waitNs % Constant.NANOS_PER_MILLI));
+            nowNs = System.nanoTime();
         }
+    }
+
+
+    /**
+     * A Java read of the ByteBuffer isn't ordered against the native writer, so read rear with an
+     * acquire load in native code. The library is loaded by NativeAudioThread, the only user.
+     */
+    private long getRear() {
+        return nativeGetRear(mByteBuffer);
+    }
 
-        avail = availableToRead(rear, mFront);
-        return avail;
+
+    private static native long nativeGetRear(ByteBuffer byteBuffer);
+
+
+    @Override
+    public int availableToRead() {
+        return availableToRead(getRear(), mFront);
     }
 
 
@@ -162,9 +246,8 @@ public class PipeByteBuffer extends Pipe {
     public void flush() {
         //set rear and front to zero
         mFront = 0;
-        synchronized (mByteBuffer) {
-            mByteBuffer.putInt(mMaxValues * Constant.BYTES_PER_SHORT, 0);
-        }
+        mFirstWaitNs = -1;
+        mByteBuffer.putLong(mMaxValues * Constant.BYTES_PER_SHORT, 0);
     }
 
 
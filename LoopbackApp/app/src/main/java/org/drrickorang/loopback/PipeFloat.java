@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.nio.FloatBuffer;
+
+
+/**
+ * Non-blocking pipe of float samples in [-1, 1], as recorded with AudioFormat.ENCODING_PCM_FLOAT.
+ * Keeping the samples as float avoids quantizing them to 16 bit before the analysis, which reads
+ * them with read(double[]).
+ */
+
+public class PipeFloat extends PipeArray {
+    private float[] mConvertBuffer = new float[0]; // used by read(short[])
+
+
+    public PipeFloat(int maxSamples) {
+        this(new float[Utilities.roundup(maxSamples)]);
+    }
+
+
+    private PipeFloat(float[] array) {
+        super(array, FloatBuffer.wrap(array));
+    }
+
+
+    /**
+     * offset must be >= 0.
+     * count is maximum number of floats to copy, and must be >= 0.
+     * offset + count must be <= buffer.length.
+     * Return actual number of floats copied, which will be >= 0.
+     */
+    public int write(float[] buffer, int offset, int count) {
+        return writeArray(buffer, offset, count);
+    }
+
+
+    public int read(float[] buffer, int offset, int count) {
+        return readArray(buffer, offset, count);
+    }
+
+
+    /** Same as read(float[]), but the samples are converted to 16 bit with clipping. */
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        if (mConvertBuffer.length < count) {
+            mConvertBuffer = new float[count];
+        }
+        int read = readArray(mConvertBuffer, 0, count);
+        for (int i = 0; i < read; i++) {
+            float sample = Math.max(-1.0f, Math.min(mConvertBuffer[i], 1.0f));
+            buffer[offset + i] = (short) (sample * Short.MAX_VALUE);
+        }
+        return read;
+    }
+
+}
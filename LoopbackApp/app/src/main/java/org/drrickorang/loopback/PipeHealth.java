@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * This class keeps track of how full a pipe is each time its reader reads from it, and of when the
+ * reader fell behind by more than the pipe size. A pipe that is often nearly full means the
+ * consumer can't keep up with the producer, rather than the audio device glitching.
+ * It's only updated by the reader, use the copy returned by Pipe.getHealth() from other threads.
+ */
+
+public class PipeHealth {
+    private static final int FILL_HISTOGRAM_BINS = 10; // each bin is a tenth of the pipe size
+
+    private final int    mCapacity;
+    private final long   mStartTimeNs;
+    private int          mHighWaterMark;   // most samples ever found in the pipe when reading
+    private long         mFillSum;
+    private long         mFillCount;
+    private final long[] mFillHistogram;
+    private int          mOverruns;
+    private long         mSamplesOverrun;
+    private final long[] mOverrunTimesMs;  // since the pipe was created, only the first ones
+
+
+    public PipeHealth(int capacity) {
+        mCapacity = capacity;
+        mStartTimeNs = System.nanoTime();
+        mFillHistogram = new long[FILL_HISTOGRAM_BINS];
+        mOverrunTimesMs = new long[Constant.PIPE_HEALTH_MAX_OVERRUN_EVENTS];
+    }
+
+
+    /** Return a copy of "other", to be read while the reader keeps updating "other". */
+    public PipeHealth(PipeHealth other) {
+        mCapacity = other.mCapacity;
+        mStartTimeNs = other.mStartTimeNs;
+        mHighWaterMark = other.mHighWaterMark;
+        mFillSum = other.mFillSum;
+        mFillCount = other.mFillCount;
+        mFillHistogram = other.mFillHistogram.clone();
+        mOverruns = other.mOverruns;
+        mSamplesOverrun = other.mSamplesOverrun;
+        mOverrunTimesMs = other.mOverrunTimesMs.clone();
+    }
+
+
+    /** Called on each read with the amount of samples available to read. */
+    void recordFill(int available) {
+        if (available > mHighWaterMark) {
+            mHighWaterMark = available;
+        }
+        mFillSum += available;
+        mFillCount++;
+        int bin = (int) ((long) available * FILL_HISTOGRAM_BINS / mCapacity);
+        mFillHistogram[Math.min(bin, FILL_HISTOGRAM_BINS - 1)]++;
+    }
+
+
+    /** Called when the reader fell behind and "samplesLost" samples were discarded. */
+    void recordOverrun(long samplesLost) {
+        if (mOverruns < mOverrunTimesMs.length) {
+            mOverrunTimesMs[mOverruns] = (System.nanoTime() - mStartTimeNs) /
+                                         Constant.NANOS_PER_MILLI;
+        }
+        mOverruns++;
+        mSamplesOverrun += samplesLost;
+        // an overrun means the pipe was full
+        mHighWaterMark = mCapacity;
+    }
+
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+
+    /** Return the average amount of samples found in the pipe when reading. */
+    public double getMeanFill() {
+        if (mFillCount == 0) {
+            return 0;
+        }
+        return (double) mFillSum / mFillCount;
+    }
+
+
+    /** Bin i counts the reads that found between i and i + 1 tenths of the pipe filled. */
+    public long[] getFillHistogram() {
+        return mFillHistogram.clone();
+    }
+
+
+    public int getOverruns() {
+        return mOverruns;
+    }
+
+
+    public long getSamplesOverrun() {
+        return mSamplesOverrun;
+    }
+
+
+    /** Return the times of the first overruns in ms since the pipe was created. */
+    public long[] getOverrunTimesMs() {
+        return Arrays.copyOf(mOverrunTimesMs, Math.min(mOverruns, mOverrunTimesMs.length));
+    }
+
+
+    /** Return the report lines, the consumer lag is how long the samples waited in the pipe. */
+    public String getReport(String name, int samplingRate, String endline) {
+        StringBuilder sb = new StringBuilder();
+        double msPerSample = (double) Constant.MILLIS_PER_SECOND / samplingRate;
+        sb.append(String.format(Locale.US, "%s Size = %d samples (%.1f ms)", name, mCapacity,
+                                mCapacity * msPerSample) + endline);
+        sb.append(String.format(Locale.US, "%s High-Water Mark = %d samples (%.1f%%)", name,
+                                mHighWaterMark, 100.0 * mHighWaterMark / mCapacity) + endline);
+        sb.append(String.format(Locale.US, "%s Consumer Lag Mean = %.2f ms", name,
+                                getMeanFill() * msPerSample) + endline);
+        sb.append(String.format(Locale.US, "%s Consumer Lag Max = %.2f ms", name,
+                                mHighWaterMark * msPerSample) + endline);
+
+        sb.append(name + " Fill Histogram =");
+        for (int i = 0; i < FILL_HISTOGRAM_BINS; i++) {
+            sb.append(String.format(Locale.US, " %d-%d%%:%d", i * 100 / FILL_HISTOGRAM_BINS,
+                                    (i + 1) * 100 / FILL_HISTOGRAM_BINS, mFillHistogram[i]));
+        }
+        sb.append(endline);
+
+        sb.append(name + " Overruns = " + mOverruns + " (" + mSamplesOverrun + " samples lost)" +
+                  endline);
+        if (mOverruns > 0) {
+            sb.append(name + " Overrun Times (ms) =");
+            for (long timeMs : getOverrunTimesMs()) {
+                sb.append(" " + timeMs);
+            }
+            if (mOverruns > mOverrunTimesMs.length) {
+                sb.append(" ...");
+            }
+            sb.append(endline);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.nio.IntBuffer;
+
+
+/**
+ * Non-blocking pipe of 32 bit integer samples. 24 bit samples are stored left-justified, so
+ * that both formats use the full int range and are read the same way with read(double[]).
+ */
+
+public class PipeInt extends PipeArray {
+    private int[] mConvertBuffer = new int[0]; // used by read(short[])
+
+
+    public PipeInt(int maxSamples) {
+        this(new int[Utilities.roundup(maxSamples)]);
+    }
+
+
+    private PipeInt(int[] array) {
+        super(array, IntBuffer.wrap(array));
+    }
+
+
+    /**
+     * offset must be >= 0.
+     * count is maximum number of ints to copy, and must be >= 0.
+     * offset + count must be <= buffer.length.
+     * Return actual number of ints copied, which will be >= 0.
+     */
+    public int write(int[] buffer, int offset, int count) {
+        return writeArray(buffer, offset, count);
+    }
+
+
+    public int read(int[] buffer, int offset, int count) {
+        return readArray(buffer, offset, count);
+    }
+
+
+    /** Same as read(int[]), but only the 16 most significant bits of the samples are kept. */
+    @Override
+    public int read(short[] buffer, int offset, int count) {
+        if (mConvertBuffer.length < count) {
+            mConvertBuffer = new int[count];
+        }
+        int read = readArray(mConvertBuffer, 0, count);
+        for (int i = 0; i < read; i++) {
+            buffer[offset + i] = (short) (mConvertBuffer[i] >> 16);
+        }
+        return read;
+    }
+
+}
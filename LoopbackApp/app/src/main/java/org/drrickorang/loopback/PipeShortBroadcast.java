@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Pipe that allows one writer and any number of readers. The writer writes using write() as with
+ * PipeShort and never waits for the readers. Each reader returned by openReader() is a Pipe with
+ * its own read position and overrun accounting, so a slow reader only overruns itself. Readers
+ * can be opened and closed at any time, write() doesn't take any lock to find them.
+ */
+
+public class PipeShortBroadcast {
+    private final short[]     mBuffer; // store that data in the pipe, size is a power of two
+    private final ShortBuffer mRegionBuffer; // wraps mBuffer for claim()
+    private long              mRear; // writer's current position
+    // Used to keep rear synchronized. Writing it releases the data written before, reading it
+    // acquires that data.
+    private volatile long     mVolatileRear;
+
+    // replaced as a whole when a reader is opened or closed, so write() can iterate without lock
+    private volatile Reader[] mReaders = new Reader[0];
+
+
+    /** maxSamples must be >= 2. */
+    public PipeShortBroadcast(int maxSamples) {
+        mBuffer = new short[Utilities.roundup(maxSamples)];
+        mRegionBuffer = ShortBuffer.wrap(mBuffer);
+    }
+
+
+    /**
+     * offset must be >= 0.
+     * count is maximum number of shorts to copy, and must be >= 0.
+     * offset + count must be <= buffer.length.
+     * Return actual number of shorts copied, which will be >= 0.
+     */
+    public int write(short[] buffer, int offset, int count) {
+        int maxValues = mBuffer.length;
+        // mask the upper bits to get the correct position in the pipe
+        int rear = (int) (mRear & (maxValues - 1));
+        count = Math.min(count, maxValues);
+        int written = Math.min(count, maxValues - rear);
+
+        System.arraycopy(buffer, offset, mBuffer, rear, written);
+        if (count > written) {
+            System.arraycopy(buffer, offset + written, mBuffer, 0, count - written);
+            written = count;
+        }
+
+        mRear += written;
+        mVolatileRear = mRear;
+
+        for (Reader reader : mReaders) {
+            reader.wakeUpReader(mRear);
+        }
+        return written;
+    }
+
+
+    /** Return a new reader, which starts reading with the next sample written. */
+    public synchronized Reader openReader() {
+        Reader reader = new Reader(mVolatileRear);
+        Reader[] readers = Arrays.copyOf(mReaders, mReaders.length + 1);
+        readers[readers.length - 1] = reader;
+        mReaders = readers;
+        return reader;
+    }
+
+
+    /** Stop writing to "reader", which must not be used anymore. */
+    public synchronized void closeReader(Reader reader) {
+        Reader[] readers = new Reader[mReaders.length];
+        int count = 0;
+        for (Reader r : mReaders) {
+            if (r != reader) {
+                readers[count++] = r;
+            }
+        }
+        mReaders = Arrays.copyOf(readers, count);
+    }
+
+
+    /** One reader of the pipe, which can be used by a single thread like any other Pipe. */
+    public class Reader extends PipeArrayReader {
+
+        private Reader(long front) {
+            super(mRegionBuffer);
+            mFront = front;
+        }
+
+
+        @Override
+        public int read(short[] buffer, int offset, int count) {
+            return readArray(buffer, offset, count);
+        }
+
+
+        @Override
+        protected long getVolatileRear() {
+            return mVolatileRear;
+        }
+
+
+        /** Skip everything written so far, the writer and the other readers are not affected. */
+        @Override
+        public void flush() {
+            mFront = mVolatileRear;
+        }
+    }
+
+}
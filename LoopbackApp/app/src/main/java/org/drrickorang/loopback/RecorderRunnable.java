@@ -23,6 +23,8 @@ import android.media.AudioRecord;
 import android.os.Build;
 import android.util.Log;
 
+import java.util.Arrays;
+
 /**
  * This thread records incoming sound samples (uses AudioRecord).
  */
@@ -38,8 +40,12 @@ public class RecorderRunnable implements Runnable {
     private final LoopbackAudioThread mAudioThread;
     // This is the pipe that connects the player and the recorder in latency test.
     private final PipeShort           mLatencyTestPipeShort;
-    // This is the pipe that is used in buffer test to send data to GlitchDetectionThread
-    private PipeShort                 mBufferTestPipeShort;
+    // This is the pipe that is used in buffer test to send data to GlitchDetectionThread, and to
+    // any other consumer of the recorded samples
+    private PipeShortBroadcast        mBufferTestPipe;
+    private PipeShortBroadcast.Reader mGlitchDetectionReader;
+    // Used instead of mBufferTestPipe when the buffer test records float samples
+    private PipeFloat                 mBufferTestPipeFloat;
 
     private boolean   mIsRequestStop = false;
     private final int mTestType;    // latency test or buffer test
@@ -48,14 +54,22 @@ public class RecorderRunnable implements Runnable {
 
     private int       mChannelConfig = AudioFormat.CHANNEL_IN_MONO;
     private int       mAudioFormat = AudioFormat.ENCODING_PCM_16BIT;
+    private int       mSampleFormat = AudioFormat.ENCODING_PCM_16BIT; // buffer test only
     private int       mMinRecorderBuffSizeInBytes = 0;
     private int       mMinRecorderBuffSizeInSamples = 0;
 
     private short[] mAudioShortArray;   // this array stores values from mAudioTone in read()
     private short[] mBufferTestShortArray;
+    private float[] mBufferTestFloatArray;
     private short[] mAudioTone;
+    private int     mLatencyStimulus = Constant.LATENCY_STIMULUS_TONE;
+    private int     mImpulseCount = 1;      // number of times mAudioTone is injected
+    private int     mImpulseSpacingSamples; // distance between the start of consecutive impulses
+    private boolean mIsStreamingCorrelationEnabled = false;
+    private StreamingCorrelation mStreamingCorrelation; // ends the latency test once converged
 
     // for glitch detection (buffer test)
+    private int                   mGlitchDetector = Constant.GLITCH_DETECTOR_FFT;
     private BufferPeriod          mRecorderBufferPeriodInRecorder;
     private final int             mBufferTestWavePlotDurationInSeconds;
     private final int             mChannelIndex;
@@ -63,6 +77,9 @@ public class RecorderRunnable implements Runnable {
     private final double          mFrequency2; // not actually used
     private int[]                 mAllGlitches; // value = 1 means there's a glitch in that interval
     private boolean               mGlitchingIntervalTooLong;
+    private long[]                mGlitchPositions; // in samples, only for the residual detector
+    private int[]                 mGlitchDurations;
+    private PipeHealth            mPipeHealth; // of the pipe read by mGlitchDetectionThread
     private int                   mFFTSamplingSize; // the amount of samples used per FFT.
     private int                   mFFTOverlapSamples; // overlap half the samples
     private long                  mStartTimeMs;
@@ -71,7 +88,7 @@ public class RecorderRunnable implements Runnable {
     private final CaptureHolder   mCaptureHolder;
     private final Context         mContext;
     private AudioManager          mAudioManager;
-    private GlitchDetectionThread mGlitchDetectionThread;
+    private volatile GlitchDetectionThread mGlitchDetectionThread; // polled by getGlitchCount()
 
     // for adjusting sound level in buffer test
     private double[] mSoundLevelSamples;
@@ -159,10 +176,12 @@ public class RecorderRunnable implements Runnable {
             }
         }
 
-        //generate sinc wave for use in loopback test
-        ToneGeneration sincTone = new RampedSineTone(mSamplingRate, Constant.LOOPBACK_FREQUENCY);
-        mAudioTone = new short[Constant.LOOPBACK_SAMPLE_FRAMES];
-        sincTone.generateTone(mAudioTone, Constant.LOOPBACK_SAMPLE_FRAMES);
+        //generate sinc wave (or the selected stimulus) for use in loopback test
+        ToneGeneration sincTone = ToneGeneration.createLatencyStimulus(mLatencyStimulus,
+                mSamplingRate);
+        int stimulusFrames = ToneGeneration.getLatencyStimulusFrames(mLatencyStimulus);
+        mAudioTone = new short[stimulusFrames];
+        sincTone.generateTone(mAudioTone, stimulusFrames);
 
         return true;
     }
@@ -171,6 +190,17 @@ public class RecorderRunnable implements Runnable {
     /** Initialize the recording device for buffer test. */
     boolean initBufferRecord() {
         log("Init Record");
+        // float samples can only be read since API 23
+        if (mSampleFormat == AudioFormat.ENCODING_PCM_FLOAT &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mAudioFormat = mSampleFormat;
+            // the buffer size is set in 16 bit frames, keep the same amount of frames
+            mMinRecorderBuffSizeInBytes = mMinRecorderBuffSizeInBytes / Constant.BYTES_PER_FRAME *
+                                          Utilities.getBytesPerSample(mAudioFormat);
+        } else if (mSampleFormat != mAudioFormat) {
+            log("sample format " + mSampleFormat + " not supported, recording 16 bit samples");
+        }
+
         if (mMinRecorderBuffSizeInBytes <= 0) {
 
             mMinRecorderBuffSizeInBytes = AudioRecord.getMinBufferSize(mSamplingRate,
@@ -186,8 +216,13 @@ public class RecorderRunnable implements Runnable {
             return false;
         }
 
-        mMinRecorderBuffSizeInSamples = mMinRecorderBuffSizeInBytes / Constant.BYTES_PER_FRAME;
-        mBufferTestShortArray = new short[mMinRecorderBuffSizeInSamples];
+        mMinRecorderBuffSizeInSamples = mMinRecorderBuffSizeInBytes /
+                                        Utilities.getBytesPerSample(mAudioFormat);
+        if (mAudioFormat == AudioFormat.ENCODING_PCM_FLOAT) {
+            mBufferTestFloatArray = new float[mMinRecorderBuffSizeInSamples];
+        } else {
+            mBufferTestShortArray = new short[mMinRecorderBuffSizeInSamples];
+        }
 
         final int cycles = 100;
         int soundLevelSamples =  (mSamplingRate / (int) mFrequency1) * cycles;
@@ -246,11 +281,19 @@ public class RecorderRunnable implements Runnable {
         }
 
         final int samplesDurationInSecond = 2;
-        int nNewSize = mSamplingRate * samplesDurationInSecond; // 2 seconds!
+        mImpulseSpacingSamples = mSamplingRate * Constant.LATENCY_TEST_IMPULSE_SPACING_MS /
+                Constant.MILLIS_PER_SECOND;
+        // 2 seconds for the first impulse, every additional impulse extends the recording
+        int nNewSize = mSamplingRate * samplesDurationInSecond +
+                (mImpulseCount - 1) * mImpulseSpacingSamples;
         mSamples = new double[nNewSize];
 
         boolean status = initRecord();
         if (status) {
+            if (mIsStreamingCorrelationEnabled) {
+                mStreamingCorrelation = new StreamingCorrelation(
+                        Utilities.shortToDouble(mAudioTone), mSamplingRate, mSamples.length);
+            }
             log("Ready to go.");
             startRecordingForReal();
         } else {
@@ -291,10 +334,20 @@ public class RecorderRunnable implements Runnable {
 
 
     void startBufferRecordingForReal() {
-        mBufferTestPipeShort = new PipeShort(Constant.MAX_SHORTS);
+        Pipe glitchDetectionPipe;
+        if (mAudioFormat == AudioFormat.ENCODING_PCM_FLOAT) {
+            // the glitch detection reads the samples without quantizing them to 16 bit
+            mBufferTestPipeFloat = new PipeFloat(Constant.MAX_SHORTS);
+            glitchDetectionPipe = mBufferTestPipeFloat;
+        } else {
+            mBufferTestPipe = new PipeShortBroadcast(Constant.MAX_SHORTS);
+            mGlitchDetectionReader = mBufferTestPipe.openReader();
+            glitchDetectionPipe = mGlitchDetectionReader;
+        }
         mGlitchDetectionThread = new GlitchDetectionThread(mFrequency1, mFrequency2, mSamplingRate,
                 mFFTSamplingSize, mFFTOverlapSamples, mBufferTestDurationInSeconds,
-                mBufferTestWavePlotDurationInSeconds, mBufferTestPipeShort, mCaptureHolder);
+                mBufferTestWavePlotDurationInSeconds, glitchDetectionPipe, mCaptureHolder);
+        mGlitchDetectionThread.setDetector(mGlitchDetector);
         mGlitchDetectionThread.start();
         mRecorder.startRecording();
     }
@@ -343,11 +396,15 @@ public class RecorderRunnable implements Runnable {
 
                     if (nSamplesRead > 0) {
                         mRecorderBufferPeriodInRecorder.collectBufferPeriod();
-                        { // inject the tone that will be looped-back
+                        { // inject the tone(s) that will be looped-back
                             int currentIndex = mSamplesIndex - 100; //offset
                             for (int i = 0; i < nSamplesRead; i++) {
-                                if (currentIndex >= 0 && currentIndex < mAudioTone.length) {
-                                    mAudioShortArray[i] = mAudioTone[currentIndex];
+                                if (currentIndex >= 0) {
+                                    int impulse = currentIndex / mImpulseSpacingSamples;
+                                    int toneIndex = currentIndex % mImpulseSpacingSamples;
+                                    if (impulse < mImpulseCount && toneIndex < mAudioTone.length) {
+                                        mAudioShortArray[i] = mAudioTone[toneIndex];
+                                    }
                                 }
                                 currentIndex++;
                             }
@@ -355,6 +412,7 @@ public class RecorderRunnable implements Runnable {
 
                         mLatencyTestPipeShort.write(mAudioShortArray, 0, nSamplesRead);
                         if (isStillRoomToRecord()) { //record to vector
+                            int firstIndex = mSamplesIndex;
                             for (int i = 0; i < nSamplesRead; i++) {
                                 double value = mAudioShortArray[i];
                                 value = value / Short.MAX_VALUE;
@@ -363,6 +421,18 @@ public class RecorderRunnable implements Runnable {
                                 }
 
                             }
+
+                            if (mStreamingCorrelation != null) {
+                                mStreamingCorrelation.process(mSamples, firstIndex,
+                                        mSamplesIndex - firstIndex);
+                                if (mStreamingCorrelation.isConverged()) {
+                                    // latency is known, no need to record the rest
+                                    log("streaming correlation converged after " +
+                                        mSamplesIndex + " samples");
+                                    mSamples = Arrays.copyOf(mSamples, mSamplesIndex);
+                                    mIsRunning = false;
+                                }
+                            }
                         } else {
                             mIsRunning = false;
                         }
@@ -374,11 +444,13 @@ public class RecorderRunnable implements Runnable {
                     } else {
                         // before we start the test, first adjust sound level
                         if (mIsAdjustingSoundLevel) {
-                            nSamplesRead = mRecorder.read(mBufferTestShortArray, 0,
-                                    mMinRecorderBuffSizeInSamples);
+                            nSamplesRead = readBufferTest();
                             if (nSamplesRead > 0) {
                                 for (int i = 0; i < nSamplesRead; i++) {
-                                    double value = mBufferTestShortArray[i];
+                                    // the sound level is measured on the 16 bit scale
+                                    double value = mBufferTestFloatArray != null ?
+                                            mBufferTestFloatArray[i] * Short.MAX_VALUE :
+                                            mBufferTestShortArray[i];
                                     if (mSoundLevelSamplesIndex < mSoundLevelSamples.length) {
                                         mSoundLevelSamples[mSoundLevelSamplesIndex++] = value;
                                     } else {
@@ -402,12 +474,16 @@ public class RecorderRunnable implements Runnable {
                             if (elapsedTimeMs >= mBufferTestDurationMs) {
                                 endBufferTest();
                             } else {
-                                nSamplesRead = mRecorder.read(mBufferTestShortArray, 0,
-                                        mMinRecorderBuffSizeInSamples);
+                                nSamplesRead = readBufferTest();
                                 if (nSamplesRead > 0) {
                                     mRecorderBufferPeriodInRecorder.collectBufferPeriod();
-                                    mBufferTestPipeShort.write(mBufferTestShortArray, 0,
-                                            nSamplesRead);
+                                    if (mBufferTestPipeFloat != null) {
+                                        mBufferTestPipeFloat.write(mBufferTestFloatArray, 0,
+                                                nSamplesRead);
+                                    } else {
+                                        mBufferTestPipe.write(mBufferTestShortArray, 0,
+                                                nSamplesRead);
+                                    }
                                 }
                             }
                         }
@@ -420,6 +496,16 @@ public class RecorderRunnable implements Runnable {
     }
 
 
+    /** Read the next buffer of the buffer test in the recorded sample format. */
+    private int readBufferTest() {
+        if (mBufferTestFloatArray != null) {
+            return mRecorder.read(mBufferTestFloatArray, 0, mMinRecorderBuffSizeInSamples,
+                                  AudioRecord.READ_BLOCKING);
+        }
+        return mRecorder.read(mBufferTestShortArray, 0, mMinRecorderBuffSizeInSamples);
+    }
+
+
     /** Someone is requesting to stop the test, will stop the test even if the test is not done. */
     public void requestStop() {
         switch (mTestType) {
@@ -436,17 +522,26 @@ public class RecorderRunnable implements Runnable {
     /** Collect data then clean things up.*/
     private void endBufferTest() {
         mIsRunning = false;
-        mAllGlitches = mGlitchDetectionThread.getGlitches();
-        mGlitchingIntervalTooLong = mGlitchDetectionThread.getGlitchingIntervalTooLong();
-        mSamples = mGlitchDetectionThread.getWaveData();
+        // stop and join the detection thread first, so it's done with the last frame
+        GlitchDetectionThread glitchDetectionThread = mGlitchDetectionThread;
         endDetecting();
+        mAllGlitches = glitchDetectionThread.getGlitches();
+        mGlitchingIntervalTooLong = glitchDetectionThread.getGlitchingIntervalTooLong();
+        mGlitchPositions = glitchDetectionThread.getGlitchPositions();
+        mGlitchDurations = glitchDetectionThread.getGlitchDurations();
+        mPipeHealth = glitchDetectionThread.getPipeHealth();
+        mSamples = glitchDetectionThread.getWaveData();
     }
 
 
     /** Clean everything up. */
     public void endDetecting() {
-        mBufferTestPipeShort.flush();
-        mBufferTestPipeShort = null;
+        if (mBufferTestPipe != null) {
+            mBufferTestPipe.closeReader(mGlitchDetectionReader);
+        }
+        mGlitchDetectionReader = null;
+        mBufferTestPipe = null;
+        mBufferTestPipeFloat = null;
         mGlitchDetectionThread.requestStop();
         GlitchDetectionThread tempThread = mGlitchDetectionThread;
         mGlitchDetectionThread = null;
@@ -525,21 +620,100 @@ public class RecorderRunnable implements Runnable {
     }
 
 
+    /** Estimate latency while recording, and stop the latency test once it's known. */
+    public void setStreamingCorrelationEnabled(boolean enabled) {
+        mIsStreamingCorrelationEnabled = enabled;
+    }
+
+
+    public StreamingCorrelation getStreamingCorrelation() {
+        return mStreamingCorrelation;
+    }
+
+
+    /** Select one of Constant.LATENCY_STIMULUS_* as the tone injected in the latency test. */
+    public void setLatencyStimulus(int latencyStimulus) {
+        mLatencyStimulus = latencyStimulus;
+    }
+
+
+    /** Set how many times the tone is injected in the latency test. */
+    public void setImpulseCount(int impulseCount) {
+        mImpulseCount = impulseCount;
+    }
+
+
+    /** Select one of Constant.GLITCH_DETECTOR_* for the buffer test. */
+    public void setGlitchDetector(int glitchDetector) {
+        mGlitchDetector = glitchDetector;
+    }
+
+
+    /**
+     * Select the format of the samples recorded in the buffer test, either
+     * AudioFormat.ENCODING_PCM_16BIT or AudioFormat.ENCODING_PCM_FLOAT. Float samples need API 23,
+     * before that the buffer test records 16 bit samples.
+     */
+    public void setSampleFormat(int sampleFormat) {
+        mSampleFormat = sampleFormat;
+    }
+
+
     public int[] getAllGlitches() {
         return mAllGlitches;
     }
 
 
+    /** Return the number of glitching intervals so far, can be called during the test. */
+    public int getGlitchCount() {
+        GlitchDetectionThread glitchDetectionThread = mGlitchDetectionThread;
+        return glitchDetectionThread != null ? glitchDetectionThread.getGlitchCount() : 0;
+    }
+
+
     public boolean getGlitchingIntervalTooLong() {
         return mGlitchingIntervalTooLong;
     }
 
 
+    public long[] getGlitchPositions() {
+        return mGlitchPositions;
+    }
+
+
+    public int[] getGlitchDurations() {
+        return mGlitchDurations;
+    }
+
+
+    public PipeHealth getPipeHealth() {
+        return mPipeHealth;
+    }
+
+
+    /**
+     * Return the pipe the buffer test writes recorded samples to, or null when the buffer test
+     * isn't recording or records float samples. Other consumers open their own reader and close it when done.
+     */
+    public PipeShortBroadcast getBufferTestPipe() {
+        return mBufferTestPipe;
+    }
+
+
     public double[] getWaveData() {
         return mSamples;
     }
 
 
+    /** Return the tone injected in the latency test, or null if it was never generated. */
+    public double[] getLoopbackTone() {
+        if (mAudioTone == null) {
+            return null;
+        }
+        return Utilities.shortToDouble(mAudioTone);
+    }
+
+
     public int getFFTSamplingSize() {
         return mFFTSamplingSize;
     }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * This class accumulates the count, mean, variance, skewness and extremes of a stream of values
+ * in constant time and without allocation, so it can be updated on every callback of a test of
+ * several hours. The central moments are updated with Welford's method, generalized to weighted
+ * values (Pebay, 2008) so the counts of a histogram can be added bucket by bucket. The mean and
+ * the sum of squares use Kahan compensated additions, whose increments become tiny compared to
+ * the running totals as the count grows.
+ * The native counterpart is in cpp/running_stats.h.
+ */
+
+public class RunningStats implements Parcelable {
+    private long   mCount;
+    private double mMean;
+    private double mMeanCompensation;
+    private double mM2; // sum of squares of deviations from the mean
+    private double mM2Compensation;
+    private double mM3; // sum of cubes of deviations from the mean
+    private double mMin;
+    private double mMax;
+
+
+    public RunningStats() {
+        reset();
+    }
+
+
+    public void reset() {
+        mCount = 0;
+        mMean = 0;
+        mMeanCompensation = 0;
+        mM2 = 0;
+        mM2Compensation = 0;
+        mM3 = 0;
+        mMin = 0;
+        mMax = 0;
+    }
+
+
+    /** Copy the state of "other", doesn't allocate. */
+    public void set(RunningStats other) {
+        mCount = other.mCount;
+        mMean = other.mMean;
+        mMeanCompensation = other.mMeanCompensation;
+        mM2 = other.mM2;
+        mM2Compensation = other.mM2Compensation;
+        mM3 = other.mM3;
+        mMin = other.mMin;
+        mMax = other.mMax;
+    }
+
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+
+    /** Add "weight" occurrences of "value", ignored if "weight" is not positive. */
+    public void add(double value, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        if (mCount == 0 || value < mMin) {
+            mMin = value;
+        }
+        if (mCount == 0 || value > mMax) {
+            mMax = value;
+        }
+
+        long count = mCount + weight;
+        double delta = value - mMean;
+        double deltaOverCount = delta / count;
+        // the new values have no spread of their own, M3 needs the previous M2
+        mM3 += delta * deltaOverCount * deltaOverCount * mCount * weight * (mCount - weight) -
+               3 * deltaOverCount * weight * mM2;
+
+        double m2Increment = delta * deltaOverCount * mCount * weight - mM2Compensation;
+        double m2 = mM2 + m2Increment;
+        mM2Compensation = (m2 - mM2) - m2Increment;
+        mM2 = m2;
+
+        double meanIncrement = deltaOverCount * weight - mMeanCompensation;
+        double mean = mMean + meanIncrement;
+        mMeanCompensation = (mean - mMean) - meanIncrement;
+        mMean = mean;
+
+        mCount = count;
+    }
+
+
+    public long getCount() {
+        return mCount;
+    }
+
+
+    /** Return the mean, or 0 if no value was added. */
+    public double getMean() {
+        return mMean;
+    }
+
+
+    /** Return the population variance, or 0 if no value was added. */
+    public double getVariance() {
+        return mCount > 0 ? mM2 / mCount : 0;
+    }
+
+
+    /** Return the sample variance, or 0 if less than 2 values were added. */
+    public double getSampleVariance() {
+        return mCount > 1 ? mM2 / (mCount - 1) : 0;
+    }
+
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+
+    /**
+     * Return the root mean square of the deviations from "reference" instead of the mean, for
+     * example from the expected buffer period.
+     */
+    public double getRmsDeviation(double reference) {
+        double bias = mMean - reference;
+        return Math.sqrt(getVariance() + bias * bias);
+    }
+
+
+    /** Return the skewness, positive if the tail is on the high side, 0 if there is no spread. */
+    public double getSkewness() {
+        if (mM2 <= 0) {
+            return 0;
+        }
+        return Math.sqrt(mCount) * mM3 / Math.pow(mM2, 1.5);
+    }
+
+
+    /** Return the smallest value, or 0 if no value was added. */
+    public double getMin() {
+        return mMin;
+    }
+
+
+    /** Return the largest value, or 0 if no value was added. */
+    public double getMax() {
+        return mMax;
+    }
+
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Bundle out = new Bundle();
+        out.putLong("mCount", mCount);
+        out.putDouble("mMean", mMean);
+        out.putDouble("mM2", mM2);
+        out.putDouble("mM3", mM3);
+        out.putDouble("mMin", mMin);
+        out.putDouble("mMax", mMax);
+        dest.writeBundle(out);
+    }
+
+
+    private RunningStats(Parcel source) {
+        Bundle in = source.readBundle(getClass().getClassLoader());
+        mCount = in.getLong("mCount");
+        mMean = in.getDouble("mMean");
+        mM2 = in.getDouble("mM2");
+        mM3 = in.getDouble("mM3");
+        mMin = in.getDouble("mMin");
+        mMax = in.getDouble("mMax");
+    }
+
+
+    public static final Parcelable.Creator<RunningStats> CREATOR
+            = new Parcelable.Creator<RunningStats>() {
+        public RunningStats createFromParcel(Parcel in) {
+            return new RunningStats(in);
+        }
+
+        public RunningStats[] newArray(int size) {
+            return new RunningStats[size];
+        }
+    };
+}
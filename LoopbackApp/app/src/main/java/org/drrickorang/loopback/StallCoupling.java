@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+
+/**
+ * This class tells whether glitches come with stalls of the recorder callbacks, of the player
+ * callbacks or of both, and whether the recorder and player stalls are coupled.
+ * A stall is a late callback, it covers the time since the previous callback. A glitch covers
+ * the FFT interval it was detected in. Both are considered coincident if they overlap within
+ * Constant.STALL_COINCIDENCE_MARGIN_MS.
+ * The late callbacks and the glitches are already sorted, they are walked once with a merge on
+ * the end of the stalls and glitches, so the analysis is linear in the number of events plus the
+ * number of coincident or lagged pairs, which stays small for a test of several hours.
+ */
+
+public class StallCoupling {
+    private static final String TAG = "StallCoupling";
+
+    private static final int RECORDER = 0;
+    private static final int PLAYER = 1;
+    private static final int GLITCH = 2;
+    private static final int STREAMS = 3;
+
+    private static final int LAG_BINS = 2 * (Constant.STALL_MAX_LAG_MS / Constant.STALL_LAG_BIN_MS)
+                                        + 1;
+
+    private final Stream[] mStreams = new Stream[STREAMS];
+    private final byte[]   mGlitchSources; // bit RECORDER and/or bit PLAYER for each glitch
+    private final int[]    mLastStall = {-1, -1};   // last stall merged, for each side
+    private final int[]    mLastCounted = {-1, -1}; // last stall counted as coincident
+    private final int[]    mLagStart = {0, 0};      // first stall which may be within the max lag
+    private final int[]    mLagCounts = new int[LAG_BINS];
+
+    private final int   mDurationMs;
+    private final int[] mStallCounts = new int[2];
+    private final int[] mCoincidentStalls = new int[2];
+    private int mInputGlitches;  // with a recorder stall only
+    private int mOutputGlitches; // with a player stall only
+    private int mSharedGlitches;
+    private int mPeakLagMs;      // player stall end - recorder stall end
+    private double mPeakLagRatio;
+
+
+    /** A sorted stream of late callbacks or of glitches, with a cursor for the merge. */
+    private static class Stream {
+        private final BufferCallbackTimes mCallbackTimes; // null for the glitches
+        private final int[] mGlitchMs;
+        private final int   mGlitchSpanMs;
+        private int mCount; // entries ending within the analyzed duration
+        int mNext;
+
+        Stream(BufferCallbackTimes callbackTimes) {
+            mCallbackTimes = callbackTimes;
+            mGlitchMs = null;
+            mGlitchSpanMs = 0;
+            mCount = callbackTimes.getNumLateOrEarlyCallbacks();
+        }
+
+        Stream(int[] glitchMs, int glitchSpanMs) {
+            mCallbackTimes = null;
+            mGlitchMs = glitchMs;
+            mGlitchSpanMs = glitchSpanMs;
+            mCount = glitchMs.length;
+        }
+
+        void truncate(int durationMs) {
+            while (mCount > 0 && getEnd(mCount - 1) > durationMs) {
+                mCount--;
+            }
+        }
+
+        /** Return false for the early callbacks, which are recorded along with the late ones. */
+        boolean isEvent(int index) {
+            return mCallbackTimes == null || mCallbackTimes.getCallbackDuration(index) >
+                                             mCallbackTimes.getExpectedBufferPeriod();
+        }
+
+        int getStart(int index) {
+            if (mCallbackTimes == null) {
+                return mGlitchMs[index];
+            }
+            return mCallbackTimes.getTimeStamp(index) - mCallbackTimes.getCallbackDuration(index);
+        }
+
+        int getEnd(int index) {
+            if (mCallbackTimes == null) {
+                return mGlitchMs[index] + mGlitchSpanMs;
+            }
+            return mCallbackTimes.getTimeStamp(index);
+        }
+
+        /** Move the cursor to the next event, return false at the end of the stream. */
+        boolean seekEvent() {
+            while (mNext < mCount && !isEvent(mNext)) {
+                mNext++;
+            }
+            return mNext < mCount;
+        }
+    }
+
+
+    /**
+     * Analyze the late callbacks and the glitches over the first "durationMs" of the test.
+     * "glitchMs" are the start times of the FFT intervals with a glitch, which are "glitchSpanMs"
+     * long. If the capacity of late callbacks was exceeded, the analysis stops at the last one
+     * recorded.
+     */
+    public StallCoupling(BufferCallbackTimes recorderCallbackTimes,
+                         BufferCallbackTimes playerCallbackTimes, int[] glitchMs,
+                         int glitchSpanMs, int durationMs) {
+        mStreams[RECORDER] = new Stream(recorderCallbackTimes);
+        mStreams[PLAYER] = new Stream(playerCallbackTimes);
+        mStreams[GLITCH] = new Stream(glitchMs, glitchSpanMs);
+        for (int side = RECORDER; side <= PLAYER; side++) {
+            Stream stream = mStreams[side];
+            if (stream.mCallbackTimes.isCapacityExceeded() && stream.mCount > 0) {
+                durationMs = Math.min(durationMs, stream.getEnd(stream.mCount - 1));
+            }
+        }
+        mDurationMs = durationMs;
+        for (Stream stream : mStreams) {
+            stream.truncate(durationMs);
+        }
+        mGlitchSources = new byte[mStreams[GLITCH].mCount];
+
+        merge();
+
+        for (byte sources : mGlitchSources) {
+            switch (sources) {
+            case 1 << RECORDER:
+                mInputGlitches++;
+                break;
+            case 1 << PLAYER:
+                mOutputGlitches++;
+                break;
+            case (1 << RECORDER) | (1 << PLAYER):
+                mSharedGlitches++;
+                break;
+            }
+        }
+        findPeakLag();
+    }
+
+
+    /** Walk the three streams in order of the end of their events. */
+    private void merge() {
+        while (true) {
+            int current = -1;
+            int currentEnd = 0;
+            for (int i = 0; i < STREAMS; i++) {
+                Stream stream = mStreams[i];
+                if (stream.seekEvent() &&
+                        (current < 0 || stream.getEnd(stream.mNext) < currentEnd)) {
+                    current = i;
+                    currentEnd = stream.getEnd(stream.mNext);
+                }
+            }
+            if (current < 0) {
+                break;
+            }
+
+            int index = mStreams[current].mNext++;
+            if (current == GLITCH) {
+                addGlitch(index);
+            } else {
+                addStall(current, index);
+            }
+        }
+    }
+
+
+    /**
+     * All the glitches merged so far end before this stall, they overlap it if they end after it
+     * starts. They are walked back from the last one until one doesn't.
+     */
+    private void addStall(int side, int index) {
+        Stream stalls = mStreams[side];
+        Stream glitches = mStreams[GLITCH];
+        int start = stalls.getStart(index);
+        int end = stalls.getEnd(index);
+        mStallCounts[side]++;
+        mLastStall[side] = index;
+
+        for (int i = glitches.mNext - 1;
+             i >= 0 && glitches.getEnd(i) >= start - Constant.STALL_COINCIDENCE_MARGIN_MS; i--) {
+            mGlitchSources[i] |= 1 << side;
+            if (mLastCounted[side] != index) {
+                mLastCounted[side] = index;
+                mCoincidentStalls[side]++;
+            }
+        }
+
+        // the stalls of the other side merged so far end before this one, the ones within the
+        // max lag are counted in the cross-correlation
+        Stream other = mStreams[PLAYER - side];
+        while (mLagStart[PLAYER - side] < other.mNext && other.getEnd(mLagStart[PLAYER - side]) <
+                end - Constant.STALL_MAX_LAG_MS) {
+            mLagStart[PLAYER - side]++;
+        }
+        for (int i = mLagStart[PLAYER - side]; i < other.mNext; i++) {
+            if (other.isEvent(i)) {
+                int lag = end - other.getEnd(i);
+                mLagCounts[getLagBin(side == PLAYER ? lag : -lag)]++;
+            }
+        }
+    }
+
+
+    /**
+     * All the stalls merged so far end before this glitch, they overlap it if they end after it
+     * starts. Only the last one needs to be checked to mark the glitch, but the ones before it
+     * are walked back to count them as coincident, up to the last one already counted.
+     */
+    private void addGlitch(int index) {
+        int start = mStreams[GLITCH].getStart(index) - Constant.STALL_COINCIDENCE_MARGIN_MS;
+        for (int side = RECORDER; side <= PLAYER; side++) {
+            Stream stalls = mStreams[side];
+            int last = mLastStall[side];
+            if (last < 0 || stalls.getEnd(last) < start) {
+                continue;
+            }
+            mGlitchSources[index] |= 1 << side;
+            for (int i = last; i > mLastCounted[side] && stalls.getEnd(i) >= start; i--) {
+                if (stalls.isEvent(i)) {
+                    mCoincidentStalls[side]++;
+                }
+            }
+            mLastCounted[side] = last;
+        }
+    }
+
+
+    private static int getLagBin(int lagMs) {
+        return Math.round((float) lagMs / Constant.STALL_LAG_BIN_MS) +
+               Constant.STALL_MAX_LAG_MS / Constant.STALL_LAG_BIN_MS;
+    }
+
+
+    /**
+     * Compare the most frequent lag between recorder and player stalls with the pairs expected
+     * per bin if the two sides stalled independently.
+     */
+    private void findPeakLag() {
+        if (mDurationMs <= 0) {
+            return;
+        }
+        int peak = 0;
+        for (int i = 1; i < LAG_BINS; i++) {
+            if (mLagCounts[i] > mLagCounts[peak]) {
+                peak = i;
+            }
+        }
+        double expected = (double) mStallCounts[RECORDER] * mStallCounts[PLAYER] *
+                          Constant.STALL_LAG_BIN_MS / mDurationMs;
+        if (mLagCounts[peak] < Constant.STALL_LAG_MIN_PAIRS) {
+            return;
+        }
+        double ratio = expected > 0 ? mLagCounts[peak] / expected : Double.POSITIVE_INFINITY;
+        if (ratio >= Constant.STALL_LAG_MIN_RATIO) {
+            mPeakLagMs = (peak - LAG_BINS / 2) * Constant.STALL_LAG_BIN_MS;
+            mPeakLagRatio = ratio;
+            log(String.format(Locale.US, "stalls coupled at %d ms, %d pairs, %.1f expected",
+                              mPeakLagMs, mLagCounts[peak], expected));
+        }
+    }
+
+
+    public int getGlitchCount() {
+        return mGlitchSources.length;
+    }
+
+
+    /** Return the number of glitches with a recorder stall and no player stall. */
+    public int getInputGlitches() {
+        return mInputGlitches;
+    }
+
+
+    /** Return the number of glitches with a player stall and no recorder stall. */
+    public int getOutputGlitches() {
+        return mOutputGlitches;
+    }
+
+
+    /** Return the number of glitches with both a recorder and a player stall. */
+    public int getSharedGlitches() {
+        return mSharedGlitches;
+    }
+
+
+    /** Return true if the player stalls follow the recorder stalls at getPeakLagMs(). */
+    public boolean isStallLagCoupled() {
+        return mPeakLagRatio > 0;
+    }
+
+
+    /** Return the lag of the player stalls after the recorder stalls, negative if before. */
+    public int getPeakLagMs() {
+        return mPeakLagMs;
+    }
+
+
+    /** Return which stalls most glitches come with, or "None" if most come with neither. */
+    public String getGlitchSource() {
+        int coincident = mInputGlitches + mOutputGlitches + mSharedGlitches;
+        if (coincident == 0 || 2 * coincident < getGlitchCount()) {
+            return "None";
+        } else if (mSharedGlitches >= Math.max(mInputGlitches, mOutputGlitches)) {
+            return "Shared";
+        } else if (mInputGlitches >= mOutputGlitches) {
+            return "Input";
+        } else {
+            return "Output";
+        }
+    }
+
+
+    public String getReport(String endline) {
+        StringBuilder sb = new StringBuilder();
+        int glitches = getGlitchCount();
+        sb.append("Glitches With Recorder Stalls Only = " + mInputGlitches + endline);
+        sb.append("Glitches With Player Stalls Only = " + mOutputGlitches + endline);
+        sb.append("Glitches With Recorder And Player Stalls = " + mSharedGlitches + endline);
+        sb.append("Glitches Without Stalls = " +
+                  (glitches - mInputGlitches - mOutputGlitches - mSharedGlitches) + endline);
+        sb.append("Recorder Stalls Coinciding With Glitches = " +
+                  getPercent(mCoincidentStalls[RECORDER], mStallCounts[RECORDER]) + endline);
+        sb.append("Player Stalls Coinciding With Glitches = " +
+                  getPercent(mCoincidentStalls[PLAYER], mStallCounts[PLAYER]) + endline);
+        if (isStallLagCoupled()) {
+            sb.append("Player Stall Lag After Recorder Stall = " + String.format(Locale.US,
+                      "%d ms, %.1fx chance", mPeakLagMs, mPeakLagRatio) + endline);
+        } else {
+            sb.append("Player Stall Lag After Recorder Stall = None" + endline);
+        }
+        sb.append("Glitch Source = " + getGlitchSource() + endline);
+        return sb.toString();
+    }
+
+
+    private static String getPercent(int count, int total) {
+        if (total == 0) {
+            return "0 of 0";
+        }
+        return String.format(Locale.US, "%d of %d (%.1f%%)", count, total,
+                             100.0 * count / total);
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+}
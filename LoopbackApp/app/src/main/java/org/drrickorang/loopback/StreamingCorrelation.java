@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+
+/**
+ * This class estimates latency while the latency test is still recording. Samples are fed as
+ * they arrive and cross-correlated with the injected tone block by block (overlap-save), so the
+ * test can be stopped as soon as the round trip echo of the tone is found with enough confidence.
+ */
+
+public class StreamingCorrelation {
+    private static final String TAG = "StreamingCorrelation";
+
+    private final int      mSamplingRate;
+    private final int      mTemplateLength;
+    private final int      mMinLag;  // peaks closer than this belong to the same main lobe
+    private final FFT      mFFT;
+    private final int      mFFTSize;
+    private final int      mHop;     // number of correlation values produced per FFT
+    private final double[] mTemplateReal; // spectrum of the analytic tone
+    private final double[] mTemplateImag;
+    private final double[] mInput;   // last mFFTSize samples, only mInputCount are valid
+    private int            mInputCount;
+    private final double[] mReal;
+    private final double[] mImag;
+
+    private final double[] mEnvelope; // one value per recorded sample at most
+    private final double[] mEnergy;   // cumulative
+    private int            mEnvelopeCount;
+
+    private int     mFirstPeak = -1;  // strongest peak so far
+    private int     mPrefixPeak = -1; // strongest peak at least mMinLag before the last value
+    private int     mPeakBefore = -1; // strongest peak at least mMinLag before mFirstPeak
+    private int     mPeakAfter = -1;  // strongest peak at least mMinLag after mFirstPeak
+    private boolean mIsConverged = false;
+
+    private double mLatencySamples;
+    private double mConfidence;
+    private double mAverage;
+    private double mRms;
+
+
+    /**
+     * "maxSamples" is the length of the recording, the envelope is allocated up front so that
+     * process() never allocates on the recording thread.
+     */
+    public StreamingCorrelation(double[] template, int samplingRate, int maxSamples) {
+        mSamplingRate = samplingRate;
+        mTemplateLength = template.length;
+        double minLatencyMs = 8;
+        mMinLag = Math.max((int) (minLatencyMs * mSamplingRate / Constant.MILLIS_PER_SECOND),
+                           mTemplateLength);
+
+        mFFTSize = Utilities.roundup(2 * mTemplateLength);
+        mHop = mFFTSize - mTemplateLength + 1;
+        mFFT = new FFT(mFFTSize);
+        mInput = new double[mFFTSize];
+        mReal = new double[mFFTSize];
+        mImag = new double[mFFTSize];
+        mEnvelope = new double[maxSamples];
+        mEnergy = new double[maxSamples + 1];
+
+        // The analytic tone removes the carrier from the correlation. Its imaginary part (the
+        // Hilbert transform) is computed with plenty of padding, then truncated to the tone length
+        // which is accurate enough for a windowed burst and keeps the overlap-save blocks short.
+        int paddedSize = Utilities.roundup(8 * mTemplateLength);
+        double[] paddedReal = new double[paddedSize];
+        double[] paddedImag = new double[paddedSize];
+        System.arraycopy(template, 0, paddedReal, 0, mTemplateLength);
+        FFT paddedFFT = new FFT(paddedSize);
+        paddedFFT.fft(paddedReal, paddedImag, 1);
+        int half = paddedSize / 2;
+        for (int i = 0; i < paddedSize; i++) {
+            double weight = (i == 0 || i == half) ? 1 : (i < half ? 2 : 0);
+            paddedReal[i] *= weight;
+            paddedImag[i] *= weight;
+        }
+        paddedFFT.fft(paddedReal, paddedImag, -1);
+
+        mTemplateReal = new double[mFFTSize];
+        mTemplateImag = new double[mFFTSize];
+        for (int i = 0; i < mTemplateLength; i++) {
+            mTemplateReal[i] = paddedReal[i] / paddedSize;
+            mTemplateImag[i] = paddedImag[i] / paddedSize;
+        }
+        mFFT.fft(mTemplateReal, mTemplateImag, 1);
+    }
+
+
+    /** Feed recorded samples normalized to [-1, 1]. */
+    public void process(double[] samples, int offset, int count) {
+        for (int i = offset; i < offset + count && !mIsConverged; i++) {
+            mInput[mInputCount++] = samples[i];
+            if (mInputCount == mFFTSize) {
+                processBlock();
+            }
+        }
+    }
+
+
+    /** Feed recorded 16 bit samples. */
+    public void process(short[] samples, int offset, int count) {
+        for (int i = offset; i < offset + count && !mIsConverged; i++) {
+            mInput[mInputCount++] = (double) samples[i] / Short.MAX_VALUE;
+            if (mInputCount == mFFTSize) {
+                processBlock();
+            }
+        }
+    }
+
+
+    /**
+     * Correlate the buffered samples with the tone. Only the first mHop values don't wrap around,
+     * the remaining samples are kept as the start of the next block.
+     */
+    private void processBlock() {
+        System.arraycopy(mInput, 0, mReal, 0, mFFTSize);
+        Arrays.fill(mImag, 0);
+        mFFT.fft(mReal, mImag, 1);
+        for (int i = 0; i < mFFTSize; i++) {
+            double re = mReal[i] * mTemplateReal[i] + mImag[i] * mTemplateImag[i];
+            double im = mImag[i] * mTemplateReal[i] - mReal[i] * mTemplateImag[i];
+            mReal[i] = re;
+            mImag[i] = im;
+        }
+        mFFT.fft(mReal, mImag, -1);
+
+        // every envelope value needs a new sample, so this only truncates if fed past maxSamples
+        int count = Math.min(mHop, mEnvelope.length - mEnvelopeCount);
+        for (int i = 0; i < count; i++) {
+            addEnvelopeValue(Math.sqrt(mReal[i] * mReal[i] + mImag[i] * mImag[i]) / mFFTSize);
+        }
+
+        System.arraycopy(mInput, mHop, mInput, 0, mFFTSize - mHop);
+        mInputCount = mFFTSize - mHop;
+
+        checkConvergence();
+    }
+
+
+    private void addEnvelopeValue(double value) {
+        int index = mEnvelopeCount++;
+        mEnvelope[index] = value;
+        mEnergy[index + 1] = mEnergy[index] + value * value;
+
+        // running maximum of mEnvelope[0 .. index - mMinLag]
+        int lagged = index - mMinLag;
+        if (lagged >= 0 && (mPrefixPeak < 0 || mEnvelope[lagged] > mEnvelope[mPrefixPeak])) {
+            mPrefixPeak = lagged;
+        }
+
+        if (mFirstPeak < 0 || value > mEnvelope[mFirstPeak]) {
+            mFirstPeak = index;
+            mPeakAfter = -1;
+            mPeakBefore = mPrefixPeak;
+        } else if (index >= mFirstPeak + mMinLag &&
+                (mPeakAfter < 0 || value > mEnvelope[mPeakAfter])) {
+            mPeakAfter = index;
+        }
+    }
+
+
+    /**
+     * The strongest peak is either the tone or its first echo, the other one is the strongest
+     * peak before or after it. Once both have been followed by mMinLag quieter values, compare
+     * the echo with the rms of everything outside the two main lobes.
+     */
+    private void checkConvergence() {
+        int secondPeak;
+        if (mPeakAfter < 0 || (mPeakBefore >= 0 &&
+                mEnvelope[mPeakBefore] > mEnvelope[mPeakAfter])) {
+            secondPeak = mPeakBefore;
+        } else {
+            secondPeak = mPeakAfter;
+        }
+        if (secondPeak < 0 || mEnvelopeCount < Math.max(mFirstPeak, secondPeak) + mMinLag) {
+            return;
+        }
+
+        // exclude [peak - template length, peak + template length) around both peaks
+        int start1 = Math.max(Math.min(mFirstPeak, secondPeak) - mTemplateLength, 0);
+        int end1 = Math.min(mFirstPeak, secondPeak) + mTemplateLength;
+        int start2 = Math.max(Math.max(mFirstPeak, secondPeak) - mTemplateLength, end1);
+        int end2 = Math.min(Math.max(mFirstPeak, secondPeak) + mTemplateLength, mEnvelopeCount);
+        double excludedEnergy = mEnergy[end1] - mEnergy[start1];
+        int excludedCount = end1 - start1;
+        if (end2 > start2) {
+            excludedEnergy += mEnergy[end2] - mEnergy[start2];
+            excludedCount += end2 - start2;
+        }
+        if (mEnvelopeCount <= excludedCount) {
+            return;
+        }
+        double rms = Math.sqrt(Math.max(mEnergy[mEnvelopeCount] - excludedEnergy, 0) /
+                               (mEnvelopeCount - excludedCount));
+
+        // a silent echo or an all-zero background (digital silence, muted input) tells nothing
+        // about the latency, so neither can converge
+        if (rms <= 0 || mEnvelope[secondPeak] <= 0) {
+            return;
+        }
+        // same scale as the matched filter, full confidence 20 dB above the rms
+        double factor = 9.0;
+        double raw = (mEnvelope[secondPeak] / rms - 1) / factor;
+        double confidence = Math.max(Math.min(raw, 1.0), 0.0);
+
+        if (confidence >= Constant.STREAMING_CORRELATION_MIN_CONFIDENCE) {
+            mIsConverged = true;
+            mConfidence = confidence;
+            mRms = rms;
+            mAverage = sum(mEnvelope, mEnvelopeCount) / mEnvelopeCount;
+            mLatencySamples = Math.abs(interpolatePeak(secondPeak) - interpolatePeak(mFirstPeak));
+            log(String.format("converged after %d samples: %.2f samples, confidence %.2f",
+                              mEnvelopeCount + mInputCount, mLatencySamples, mConfidence));
+        }
+    }
+
+
+    private static double sum(double[] data, int count) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += data[i];
+        }
+        return sum;
+    }
+
+
+    /** Return the sub-sample position of the envelope peak at "index" by fitting a parabola. */
+    private double interpolatePeak(int index) {
+        if (index <= 0 || index >= mEnvelopeCount - 1) {
+            return index;
+        }
+
+        double left = mEnvelope[index - 1];
+        double center = mEnvelope[index];
+        double right = mEnvelope[index + 1];
+        double denominator = left - 2 * center + right;
+        if (denominator == 0) {
+            return index;
+        }
+
+        return index + 0.5 * (left - right) / denominator;
+    }
+
+
+    /** Return true once the latency is known with enough confidence to stop the test. */
+    public boolean isConverged() {
+        return mIsConverged;
+    }
+
+
+    public double getLatencySamples() {
+        return mLatencySamples;
+    }
+
+
+    public double getConfidence() {
+        return mConfidence;
+    }
+
+
+    /** Return the average of the correlation envelope at the time the estimate converged. */
+    public double getAverage() {
+        return mAverage;
+    }
+
+
+    /** Return the rms of the correlation envelope outside of the tone and echo main lobes. */
+    public double getRms() {
+        return mRms;
+    }
+
+
+    public int getSamplingRate() {
+        return mSamplingRate;
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * This class estimates quantiles of a stream of values with the P-square algorithm (Jain and
+ * Chlamtac, 1985). Each quantile only keeps 5 markers instead of the values, updated in constant
+ * time, so the estimator can be fed on every callback and queried at any time during the test.
+ * The native counterpart is in cpp/quantiles.c.
+ */
+
+public class StreamingQuantiles {
+    // Must match QUANTILES in cpp/quantiles.c
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+
+    private static final int MARKERS = 5;
+
+    private final double[][] mHeights = new double[QUANTILES.length][MARKERS]; // marker values
+    private final long[][]   mPositions = new long[QUANTILES.length][MARKERS];
+    private final double[][] mDesiredPositions = new double[QUANTILES.length][MARKERS];
+    private final double[][] mIncrements = new double[QUANTILES.length][MARKERS];
+    private long             mCount;
+    private double           mMax;
+
+
+    public StreamingQuantiles() {
+        reset();
+    }
+
+
+    public void reset() {
+        mCount = 0;
+        mMax = 0;
+        for (int j = 0; j < QUANTILES.length; j++) {
+            double p = QUANTILES[j];
+            double[] increments = {0, p / 2, p, (1 + p) / 2, 1};
+            for (int i = 0; i < MARKERS; i++) {
+                mPositions[j][i] = i;
+                mDesiredPositions[j][i] = 4 * increments[i];
+                mIncrements[j][i] = increments[i];
+            }
+        }
+    }
+
+
+    public void add(double value) {
+        if (mCount == 0 || value > mMax) {
+            mMax = value;
+        }
+
+        if (mCount < MARKERS) {
+            // the first values become the markers once sorted
+            for (int j = 0; j < QUANTILES.length; j++) {
+                mHeights[j][(int) mCount] = value;
+                if (mCount == MARKERS - 1) {
+                    Arrays.sort(mHeights[j]);
+                }
+            }
+            mCount++;
+            return;
+        }
+        mCount++;
+
+        for (int j = 0; j < QUANTILES.length; j++) {
+            double[] q = mHeights[j];
+            long[] n = mPositions[j];
+
+            // find the cell k such that q[k] <= value < q[k + 1], extending the extremes
+            int k;
+            if (value < q[0]) {
+                q[0] = value;
+                k = 0;
+            } else if (value >= q[MARKERS - 1]) {
+                q[MARKERS - 1] = value;
+                k = MARKERS - 2;
+            } else {
+                k = 0;
+                while (value >= q[k + 1]) {
+                    k++;
+                }
+            }
+
+            for (int i = k + 1; i < MARKERS; i++) {
+                n[i]++;
+            }
+            for (int i = 0; i < MARKERS; i++) {
+                mDesiredPositions[j][i] += mIncrements[j][i];
+            }
+
+            // move the middle markers towards their desired positions
+            for (int i = 1; i < MARKERS - 1; i++) {
+                double d = mDesiredPositions[j][i] - n[i];
+                if ((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+                    int sign = d > 0 ? 1 : -1;
+                    double height = parabolic(q, n, i, sign);
+                    if (q[i - 1] < height && height < q[i + 1]) {
+                        q[i] = height;
+                    } else {
+                        q[i] += sign * (q[i + sign] - q[i]) / (n[i + sign] - n[i]);
+                    }
+                    n[i] += sign;
+                }
+            }
+        }
+    }
+
+
+    /** Piecewise parabolic prediction of the height of marker i moved by "sign". */
+    private static double parabolic(double[] q, long[] n, int i, int sign) {
+        return q[i] + (double) sign / (n[i + 1] - n[i - 1]) *
+               ((n[i] - n[i - 1] + sign) * (q[i + 1] - q[i]) / (n[i + 1] - n[i]) +
+                (n[i + 1] - n[i] - sign) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+    }
+
+
+    /** Return the estimate of QUANTILES[index], or 0 if no value was added. */
+    public double getQuantile(int index) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (mCount < MARKERS) {
+            // too few values for the markers, use the nearest rank
+            double[] values = Arrays.copyOf(mHeights[index], (int) mCount);
+            Arrays.sort(values);
+            int rank = (int) Math.ceil(QUANTILES[index] * mCount) - 1;
+            return values[Math.max(rank, 0)];
+        }
+        return mHeights[index][2];
+    }
+
+
+    /** Return the estimates of all the QUANTILES. */
+    public double[] getQuantiles() {
+        double[] quantiles = new double[QUANTILES.length];
+        for (int i = 0; i < QUANTILES.length; i++) {
+            quantiles[i] = getQuantile(i);
+        }
+        return quantiles;
+    }
+
+
+    public double getMax() {
+        return mMax;
+    }
+
+
+    public long getCount() {
+        return mCount;
+    }
+
+
+    /** Return the name of QUANTILES[index] as used in the report, such as "p99.9". */
+    public static String getQuantileName(int index) {
+        String percent = String.format(Locale.US, "%.2f", QUANTILES[index] * 100);
+        // strip the trailing zeros, and the dot if it's a whole percentage
+        return "p" + percent.replaceAll("\\.?0+$", "");
+    }
+
+}
@@ -60,4 +60,54 @@ public abstract class ToneGeneration {
         mAmplitude = amplitude;
     }
 
+
+    /** Create the generator of one of Constant.LATENCY_STIMULUS_*. */
+    public static ToneGeneration createLatencyStimulus(int stimulus, int samplingRate) {
+        return createLatencyStimulus(stimulus, samplingRate, Constant.LATENCY_STIMULUS_FRAMES);
+    }
+
+
+    /**
+     * Same as above, for a stimulus which must fit in "maxFrames". A maximum length sequence is
+     * only white over whole periods, so its order is lowered rather than cutting it short.
+     */
+    public static ToneGeneration createLatencyStimulus(int stimulus, int samplingRate,
+                                                       int maxFrames) {
+        switch (stimulus) {
+        case Constant.LATENCY_STIMULUS_LOG_SWEEP:
+            return new LogSweepTone(samplingRate, Constant.LATENCY_SWEEP_START_FREQUENCY,
+                    Constant.LATENCY_SWEEP_END_FREQUENCY);
+        case Constant.LATENCY_STIMULUS_MLS:
+            return new MaximumLengthSequenceTone(samplingRate, getLatencyMlsOrder(maxFrames));
+        default:
+            return new RampedSineTone(samplingRate, Constant.LOOPBACK_FREQUENCY);
+        }
+    }
+
+
+    /** Return the number of frames of one of Constant.LATENCY_STIMULUS_*. */
+    public static int getLatencyStimulusFrames(int stimulus) {
+        return getLatencyStimulusFrames(stimulus, Constant.LATENCY_STIMULUS_FRAMES);
+    }
+
+
+    /** Return the number of frames of the stimulus created for the same "maxFrames". */
+    public static int getLatencyStimulusFrames(int stimulus, int maxFrames) {
+        switch (stimulus) {
+        case Constant.LATENCY_STIMULUS_TONE:
+            return Math.min(Constant.LOOPBACK_SAMPLE_FRAMES, maxFrames);
+        case Constant.LATENCY_STIMULUS_MLS:
+            return Math.min(MaximumLengthSequenceTone.getPeriod(getLatencyMlsOrder(maxFrames)),
+                            maxFrames);
+        default:
+            return Math.min(Constant.LATENCY_STIMULUS_FRAMES, maxFrames);
+        }
+    }
+
+
+    private static int getLatencyMlsOrder(int maxFrames) {
+        return Math.min(Constant.LATENCY_MLS_ORDER,
+                        MaximumLengthSequenceTone.getOrderForFrames(maxFrames));
+    }
+
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.drrickorang.loopback;
+
+import android.util.Log;
+
+
+/**
+ * This class locks a sine model onto the recorded tone and subtracts it, sample by sample. The
+ * model's cosine and sine coefficients are fitted by exponentially weighted least squares (LMS),
+ * which also follows slow drifts in amplitude, phase and frequency. Anything the model can't
+ * explain shows up in the residual, so a glitch is a burst of residual above the noise level.
+ * Bursts are reported with the sample position where they start and their length in samples.
+ */
+
+public class ToneTracker {
+    private static final String TAG = "ToneTracker";
+
+    private static final double TIME_CONSTANT_MS = 5;       // how fast the model follows the tone
+    private static final double NOISE_TIME_CONSTANT_MS = 100; // how fast the noise level changes
+    private static final double RELOCK_MS = 10; // a burst that lasts longer is a lasting change
+    // a residual larger than this part of the tone amplitude is a glitch
+    private static final double ACCEPTABLE_RESIDUAL = 0.1;
+    // a residual this many times above the rms noise level is a glitch
+    private static final double NOISE_FACTOR = 8;
+    // a tone weaker than this is silence, which is a glitch
+    private static final double MIN_AMPLITUDE = 0.001;
+
+    private final double mRotationCos;   // cos(2 * pi * f / fs), advances the reference
+    private final double mRotationSin;
+    private double       mCos = 1;       // reference cos(2 * pi * f * n / fs)
+    private double       mSin = 0;
+    private double       mA;             // model is mA * mCos + mB * mSin
+    private double       mB;
+    private final double mStep;          // LMS step, 2 / time constant in samples
+    private final double mNoiseStep;
+    private double       mNoisePower;    // mean squared residual outside of bursts
+
+    private final int    mSettleSamples; // samples before the model can be trusted
+    private final int    mRelockSamples;
+    private final int    mMergeSamples;  // bursts closer than this are merged, one tone period
+    private long         mSampleCount;
+
+    private long         mBurstStart = -1; // -1 when not in a burst
+    private long         mBurstEnd;        // last sample of the current burst above threshold
+
+    private final long[] mBurstPositions;
+    private final int[]  mBurstDurations;
+    private int          mBurstCount;
+    private boolean      mBurstsOverflowed = false;
+
+
+    public ToneTracker(double frequency, int samplingRate, int maxBursts) {
+        double omega = Constant.TWO_PI * frequency / samplingRate;
+        mRotationCos = Math.cos(omega);
+        mRotationSin = Math.sin(omega);
+
+        double samplesPerMs = (double) samplingRate / Constant.MILLIS_PER_SECOND;
+        mStep = 2 / (TIME_CONSTANT_MS * samplesPerMs);
+        mNoiseStep = 1 / (NOISE_TIME_CONSTANT_MS * samplesPerMs);
+        mSettleSamples = (int) (5 * TIME_CONSTANT_MS * samplesPerMs);
+        mRelockSamples = (int) (RELOCK_MS * samplesPerMs);
+        mMergeSamples = (int) Math.ceil(samplingRate / frequency);
+
+        mBurstPositions = new long[maxBursts];
+        mBurstDurations = new int[maxBursts];
+    }
+
+
+    /**
+     * Feed the next "count" samples normalized to [-1, 1]. Return true if any of them is part of
+     * a burst, including a burst that started earlier and is still going on.
+     */
+    public boolean process(double[] samples, int offset, int count) {
+        boolean isGlitch = false;
+        for (int i = offset; i < offset + count; i++) {
+            double prediction = mA * mCos + mB * mSin;
+            double residual = samples[i] - prediction;
+            double amplitudeSquared = mA * mA + mB * mB;
+
+            boolean isBurstSample = false;
+            if (mSampleCount >= mSettleSamples) {
+                double threshold = Math.max(ACCEPTABLE_RESIDUAL * ACCEPTABLE_RESIDUAL *
+                        amplitudeSquared, NOISE_FACTOR * NOISE_FACTOR * mNoisePower);
+                isBurstSample = residual * residual > threshold ||
+                        amplitudeSquared < MIN_AMPLITUDE * MIN_AMPLITUDE;
+            }
+
+            if (isBurstSample) {
+                if (mBurstStart < 0) {
+                    mBurstStart = mSampleCount;
+                }
+                mBurstEnd = mSampleCount;
+            } else if (mBurstStart >= 0 && mSampleCount - mBurstEnd > mMergeSamples) {
+                endBurst();
+            }
+
+            // Don't let the model chase a glitch, unless the burst lasts long enough to be a
+            // lasting change in phase or amplitude which the model has to lock on again.
+            boolean inBurst = mBurstStart >= 0;
+            if (!inBurst || mSampleCount - mBurstStart >= mRelockSamples) {
+                mA += mStep * residual * mCos;
+                mB += mStep * residual * mSin;
+            }
+            if (!inBurst) {
+                mNoisePower += mNoiseStep * (residual * residual - mNoisePower);
+            }
+            isGlitch |= inBurst;
+
+            double nextCos = mCos * mRotationCos - mSin * mRotationSin;
+            mSin = mSin * mRotationCos + mCos * mRotationSin;
+            mCos = nextCos;
+            mSampleCount++;
+        }
+
+        // keep the reference on the unit circle despite rounding errors
+        double norm = Math.sqrt(mCos * mCos + mSin * mSin);
+        mCos /= norm;
+        mSin /= norm;
+        return isGlitch;
+    }
+
+
+    private void endBurst() {
+        if (mBurstCount < mBurstPositions.length) {
+            mBurstPositions[mBurstCount] = mBurstStart;
+            mBurstDurations[mBurstCount] = (int) (mBurstEnd - mBurstStart + 1);
+            mBurstCount++;
+        } else if (!mBurstsOverflowed) {
+            log("Not enough room to store glitch positions!");
+            mBurstsOverflowed = true;
+        }
+        mBurstStart = -1;
+    }
+
+
+    /** End the burst going on, if any, so it's included in getBurstPositions(). */
+    public void flush() {
+        if (mBurstStart >= 0) {
+            endBurst();
+        }
+    }
+
+
+    /** Return the index of the first sample of each burst, counted from the first sample fed. */
+    public long[] getBurstPositions() {
+        long[] output = new long[mBurstCount];
+        System.arraycopy(mBurstPositions, 0, output, 0, mBurstCount);
+        return output;
+    }
+
+
+    /** Return the length in samples of each burst, from its first to its last loud sample. */
+    public int[] getBurstDurations() {
+        int[] output = new int[mBurstCount];
+        System.arraycopy(mBurstDurations, 0, output, 0, mBurstCount);
+        return output;
+    }
+
+
+    private static void log(String msg) {
+        Log.v(TAG, msg);
+    }
+}
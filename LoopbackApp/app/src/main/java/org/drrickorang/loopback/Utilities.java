@@ -16,6 +16,8 @@
 
 package org.drrickorang.loopback;
 
+import android.media.AudioFormat;
+
 
 /**
  * This class contains functions that can be reused in different classes.
@@ -57,6 +59,30 @@ public class Utilities {
     }
 
 
+    /** Convert 16-bit samples to doubles in the range -1.0 to 1.0. */
+    public static double[] shortToDouble(short[] samples) {
+        double[] result = new double[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            result[i] = (double) samples[i] / Short.MAX_VALUE;
+        }
+        return result;
+    }
+
+
+    /** Return the size in bytes of one sample in "audioFormat", an AudioFormat.ENCODING_*. */
+    public static int getBytesPerSample(int audioFormat) {
+        switch (audioFormat) {
+        case AudioFormat.ENCODING_PCM_8BIT:
+            return 1;
+        case AudioFormat.ENCODING_PCM_FLOAT:
+            return 4;
+        case AudioFormat.ENCODING_PCM_16BIT:
+        default:
+            return Constant.BYTES_PER_FRAME;
+        }
+    }
+
+
     /**
      * Returns value if value is within inclusive bounds min through max
      * otherwise returns min or max according to if value is less than or greater than the range